@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ActivityInstrumentationTestCase2;
+import android.widget.EditText;
+
+/**
+ * Tests the {@link NoteEditor} activity against the notes that it edits, which are kept in the
+ * application's own provider.
+ */
+public class NoteEditorTest extends ActivityInstrumentationTestCase2<NoteEditor> {
+
+    private ContentResolver mResolver;
+
+    // The note that the activity under test edits
+    private Uri mNoteUri;
+
+    /**
+     * Creates an {@link ActivityInstrumentationTestCase2} for the {@link NoteEditor} activity.
+     */
+    public NoteEditorTest() {
+        super(NoteEditor.class);
+    }
+
+    /*
+     * Inserts a note for the activity to edit, and asks for the activity to be started on it.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mResolver = getInstrumentation().getTargetContext().getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Editor title");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Editor text");
+        mNoteUri = mResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertNotNull(mNoteUri);
+
+        setActivityIntent(new Intent(Intent.ACTION_EDIT, mNoteUri));
+    }
+
+    /*
+     * Finishes the activity, and then deletes the note it edited. Deleting a note only moves it
+     * to the trash, so the note is then deleted from the trash as well.
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        mResolver.delete(mNoteUri, null, null);
+        mResolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_TRASH_ID_URI_BASE,
+                ContentUris.parseId(mNoteUri)), null, null);
+    }
+
+    /*
+     * Renames the note the way TitleEditor does while NoteEditor is paused, and tests that
+     * NoteEditor shows the new title once it resumes, and keeps it when it saves the text.
+     */
+    public void testResumeAfterTitleEdit() {
+        final NoteEditor activity = getActivity();
+        final EditText title = (EditText) activity.findViewById(R.id.title);
+        final EditText text = (EditText) activity.findViewById(R.id.note);
+        assertEquals("Editor title", title.getText().toString());
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                getInstrumentation().callActivityOnPause(activity);
+            }
+        });
+
+        // Updates the title on the condition of the version that was read, as TitleEditor does
+        Uri uri = mNoteUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_EXPECTED_VERSION,
+                        Long.toString(queryLong(NotePad.Notes.COLUMN_NAME_VERSION)))
+                .build();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mResolver.update(uri, values, null, null));
+        long renamedVersion = queryLong(NotePad.Notes.COLUMN_NAME_VERSION);
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                getInstrumentation().callActivityOnResume(activity);
+            }
+        });
+        assertEquals("Renamed", title.getText().toString());
+
+        // Edits the text and saves it. The write is made on the renamed version, so it doesn't
+        // conflict, and the title isn't written back.
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                text.setText("Edited text");
+                getInstrumentation().callActivityOnPause(activity);
+            }
+        });
+        assertEquals(renamedVersion + 1, queryLong(NotePad.Notes.COLUMN_NAME_VERSION));
+
+        Cursor cursor = mResolver.query(mNoteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Renamed", cursor.getString(0));
+            assertEquals("Edited text", cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns a numeric column of the test note.
+    private long queryLong(String column) {
+        Cursor cursor = mResolver.query(mNoteUri, new String[] { column }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
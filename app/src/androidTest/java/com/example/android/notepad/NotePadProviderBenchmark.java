@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * This class measures the provider under the load that the app puts on it. Each benchmark logs
+ * its timings under the tag {@link #TAG}, so that runs before and after a change can be compared.
+ * The assertions only check that the work was done, not how fast it was.
+ */
+public class NotePadProviderBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    // Used for logging the timings.
+    private static final String TAG = "NotePadProviderBenchmark";
+
+    // The number of notes in the list that is read.
+    private static final int NOTE_COUNT = 500;
+
+    // The number of list queries timed in each run.
+    private static final int READ_COUNT = 200;
+
+    // The number of saves timed in each run.
+    private static final int SAVE_COUNT = 500;
+
+    // The text typed into the search box, one character per query.
+    private static final String SEARCH_TYPED = "This is the text of note 42";
+
+    // The number of times the search text is typed in each run.
+    private static final int SEARCH_ROUNDS = 20;
+
+    // The number of large notes in the corpus used to measure compression.
+    private static final int LARGE_NOTE_COUNT = 40;
+
+    // The number of lines in each large note. Each line is about 80 characters.
+    private static final int LARGE_NOTE_LINES = 1000;
+
+    // Contains a reference to the mocked content resolver for the provider under test.
+    private MockContentResolver mMockResolver;
+
+    // Contains an SQLite database, used as test data
+    private SQLiteDatabase mDb;
+
+    /*
+     * Constructor for the test case class.
+     * Calls the super constructor with the class name of the provider under test and the
+     * authority name of the provider.
+     */
+    public NotePadProviderBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    /*
+     * Sets up the test environment before each test method. Creates a mock content resolver,
+     * gets the provider under test, and fills the database with notes through the provider.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mMockResolver = getMockContentResolver();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+
+        long now = System.currentTimeMillis();
+        ContentValues[] valuesArray = new ContentValues[NOTE_COUNT];
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note" + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "This is the text of note " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now - i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - i);
+            valuesArray[i] = values;
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, valuesArray);
+    }
+
+    /*
+     * Times the list query that NotesList runs while another thread keeps saving a note, as
+     * NoteEditor does while the user types. The reads are timed once with the rollback journal,
+     * where every read waits for the save in progress, and once with write-ahead logging.
+     */
+    public void testListReadsDuringAutosave() throws InterruptedException {
+        mDb.disableWriteAheadLogging();
+        long[] rollbackTimes = timeReadsDuringWrites();
+
+        mDb.enableWriteAheadLogging();
+        long[] walTimes = timeReadsDuringWrites();
+
+        log("list read, rollback journal", rollbackTimes);
+        log("list read, write-ahead log", walTimes);
+    }
+
+    /*
+     * Runs READ_COUNT list queries on this thread while a second thread updates a note in a loop,
+     * and returns the time each query took, in microseconds.
+     */
+    private long[] timeReadsDuringWrites() throws InterruptedException {
+        final Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        final boolean[] done = new boolean[1];
+
+        Thread writer = new Thread("autosave") {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                for (int i = 0; !isDone(); i++) {
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Autosaved text " + i);
+                    mMockResolver.update(noteUri, values, null, null);
+                }
+            }
+
+            private boolean isDone() {
+                synchronized (done) {
+                    return done[0];
+                }
+            }
+        };
+        writer.start();
+
+        long[] times = new long[READ_COUNT];
+        try {
+            for (int i = 0; i < READ_COUNT; i++) {
+                long start = System.nanoTime();
+                Cursor cursor = mMockResolver.query(
+                    NotePad.Notes.CONTENT_URI,
+                    NotesList.PROJECTION,
+                    null,
+                    null,
+                    NotePad.Notes.DEFAULT_SORT_ORDER
+                );
+
+                // Fills the cursor's window, as the list does when it binds the rows.
+                assertEquals(NOTE_COUNT, cursor.getCount());
+                cursor.close();
+                times[i] = (System.nanoTime() - start) / 1000;
+            }
+        } finally {
+            synchronized (done) {
+                done[0] = true;
+            }
+            writer.join();
+        }
+        return times;
+    }
+
+    /*
+     * Times the save that NoteEditor makes as the user types: the text and the modification date
+     * of one note, selected by its ID. The same saves are made through the provider twice, once
+     * with a cache that holds no statements, so that every save compiles its statements as the
+     * provider used to, and once with the provider's cache of compiled statements.
+     */
+    public void testAutosaveLatency() {
+        getProvider().setStatementCacheForTest(new StatementCache(0));
+        long[] uncachedTimes = timeSaves();
+
+        getProvider().setStatementCacheForTest(new StatementCache(16));
+        long[] cachedTimes = timeSaves();
+
+        log("save by ID, statements compiled per save", uncachedTimes);
+        log("save by ID, cached statements", cachedTimes);
+    }
+
+    /*
+     * Saves the text of a note SAVE_COUNT times through the provider, and returns the time each
+     * save took, in microseconds. Each save writes a new text, so that none is skipped.
+     */
+    private long[] timeSaves() {
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        long[] times = new long[SAVE_COUNT];
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < SAVE_COUNT; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Autosaved text " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+            long start = System.nanoTime();
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+            times[i] = (System.nanoTime() - start) / 1000;
+        }
+        return times;
+    }
+
+    /*
+     * Times the searches that NotesList runs as the user types, one per keystroke, in thread CPU
+     * time. They are timed once with a cache that holds no SQL, so that every query builds its
+     * SQL, and once with the provider's cache of query SQL. The hit rate of the cache is logged
+     * from the counters that the provider reports.
+     */
+    public void testSearchAsYouType() {
+        getProvider().setQueryPlanCacheForTest(new QueryPlanCache(0));
+        long[] uncachedTimes = timeSearchKeystrokes();
+
+        getProvider().setQueryPlanCacheForTest(new QueryPlanCache(32));
+        long[] cachedTimes = timeSearchKeystrokes();
+
+        Bundle stats = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_GET_CACHE_STATS, null, null);
+        long hits = stats.getLong(NotePad.Notes.KEY_PLAN_CACHE_HITS);
+        long misses = stats.getLong(NotePad.Notes.KEY_PLAN_CACHE_MISSES);
+        assertEquals(cachedTimes.length, hits + misses);
+
+        log("search keystroke CPU, SQL built each time", uncachedTimes);
+        log("search keystroke CPU, cached SQL", cachedTimes);
+        Log.i(TAG, "query plan cache: " + hits + " hits, " + misses + " misses, hit rate "
+                + (100 * hits / (hits + misses)) + "%, CPU saved per query "
+                + (mean(uncachedTimes) - mean(cachedTimes)) + "us");
+    }
+
+    /*
+     * Types SEARCH_TYPED into the search SEARCH_ROUNDS times, querying the search URI with each
+     * prefix, and returns the thread CPU time each query took, in microseconds.
+     */
+    private long[] timeSearchKeystrokes() {
+        long[] times = new long[SEARCH_ROUNDS * SEARCH_TYPED.length()];
+        int query = 0;
+        for (int round = 0; round < SEARCH_ROUNDS; round++) {
+            for (int length = 1; length <= SEARCH_TYPED.length(); length++) {
+                Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH,
+                                SEARCH_TYPED.substring(0, length))
+                        .build();
+                long start = Debug.threadCpuTimeNanos();
+                Cursor cursor = mMockResolver.query(searchUri, NotesList.PROJECTION, null, null,
+                        null);
+                cursor.getCount();
+                cursor.close();
+                times[query++] = (Debug.threadCpuTimeNanos() - start) / 1000;
+            }
+        }
+        return times;
+    }
+
+    /*
+     * Stores the same corpus of large notes with and without compression, and logs the space it
+     * takes in the database and the time taken to write each note and to read it back by ID.
+     */
+    public void testCompressedBodies() {
+        String[] corpus = new String[LARGE_NOTE_COUNT];
+        for (int i = 0; i < LARGE_NOTE_COUNT; i++) {
+            corpus[i] = buildLogNote(i);
+        }
+
+        getProvider().setCompressionThresholdForTest(-1);
+        timeLargeNotes("uncompressed", corpus);
+
+        getProvider().setCompressionThresholdForTest(32768);
+        timeLargeNotes("compressed", corpus);
+    }
+
+    /*
+     * Inserts the notes of a corpus one at a time, reads each one back, and then deletes them,
+     * logging the timings and the bytes that the notes took in the database.
+     */
+    private void timeLargeNotes(String name, String[] corpus) {
+        long bytesBefore = usedBytes();
+        long[] writeTimes = new long[corpus.length];
+        Uri[] noteUris = new Uri[corpus.length];
+        for (int i = 0; i < corpus.length; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Log " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, corpus[i]);
+            long start = System.nanoTime();
+            noteUris[i] = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            writeTimes[i] = (System.nanoTime() - start) / 1000;
+        }
+        long bytes = usedBytes() - bytesBefore;
+
+        long[] readTimes = new long[corpus.length];
+        for (int i = 0; i < corpus.length; i++) {
+            long start = System.nanoTime();
+            Cursor cursor = mMockResolver.query(noteUris[i],
+                    new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(corpus[i].length(), cursor.getString(0).length());
+            cursor.close();
+            readTimes[i] = (System.nanoTime() - start) / 1000;
+        }
+
+        for (Uri noteUri : noteUris) {
+            mMockResolver.delete(noteUri, null, null);
+        }
+        mMockResolver.delete(NotePad.Notes.CONTENT_TRASH_URI, null, null);
+
+        Log.i(TAG, "large notes, " + name + ": " + bytes + " bytes for " + corpus.length
+                + " notes");
+        log("large note write, " + name, writeTimes);
+        log("large note read, " + name, readTimes);
+    }
+
+    /*
+     * Builds the text of a large note that looks like a pasted log: lines with a timestamp, a
+     * level and a message, repeating with small differences.
+     */
+    private static String buildLogNote(int seed) {
+        String[] levels = { "DEBUG", "INFO", "WARN", "ERROR" };
+        StringBuilder text = new StringBuilder(LARGE_NOTE_LINES * 80);
+        for (int i = 0; i < LARGE_NOTE_LINES; i++) {
+            int n = seed * LARGE_NOTE_LINES + i;
+            text.append("2024-05-").append(10 + n % 20).append(' ')
+                    .append(n % 24).append(':').append(n % 60).append(':').append(n * 7 % 60)
+                    .append(' ').append(levels[n % levels.length])
+                    .append(" sync: fetched page ").append(n % 37)
+                    .append(" of notes for account ").append(seed)
+                    .append(" in ").append(n * 13 % 1000).append("ms\n");
+        }
+        return text.toString();
+    }
+
+    /*
+     * Returns the number of bytes in the pages of the database that are in use.
+     */
+    private long usedBytes() {
+        long pageCount = DatabaseUtils.longForQuery(mDb, "PRAGMA page_count", null);
+        long freePages = DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null);
+        return (pageCount - freePages) * mDb.getPageSize();
+    }
+
+    /*
+     * Returns the mean of a set of timings.
+     */
+    private static long mean(long[] times) {
+        long sum = 0;
+        for (long time : times) {
+            sum += time;
+        }
+        return sum / times.length;
+    }
+
+    /*
+     * Logs the median, 90th percentile and maximum of a set of timings, in microseconds.
+     */
+    static void log(String name, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        Log.i(TAG, name + ": p50=" + sorted[sorted.length / 2]
+                + "us p90=" + sorted[sorted.length * 9 / 10]
+                + "us max=" + sorted[sorted.length - 1] + "us");
+    }
+}
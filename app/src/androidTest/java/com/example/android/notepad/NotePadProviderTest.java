@@ -16,21 +16,43 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.ResultReceiver;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 
@@ -136,9 +158,6 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      * and populated in insertData if necessary.
      */
     private void insertData() {
-        // Creates an instance of the ContentValues map type expected by database insertions
-        ContentValues values = new ContentValues();
-
         // Sets up test data
         for (int index = 0; index < TEST_NOTES.length; index++) {
 
@@ -146,12 +165,22 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
             TEST_NOTES[index].setCreationDate(START_DATE + (index * ONE_DAY_MILLIS));
             TEST_NOTES[index].setModificationDate(START_DATE + (index * ONE_WEEK_MILLIS));
 
+            // The note's text is stored in the body table, not in the notes table.
+            ContentValues values = TEST_NOTES[index].getContentValues();
+            values.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+
             // Adds a record to the database.
-            mDb.insertOrThrow(
+            long noteId = mDb.insertOrThrow(
                 NotePad.Notes.TABLE_NAME,             // the table name for the insert
                 NotePad.Notes.COLUMN_NAME_TITLE,      // column set to null if empty values map
-                TEST_NOTES[index].getContentValues()  // the values map to insert
+                values                                // the values map to insert
             );
+
+            // Adds the note's body.
+            ContentValues body = new ContentValues();
+            body.put(NotePadProvider.BODIES_COLUMN_NAME_NOTE_ID, noteId);
+            body.put(NotePad.Notes.COLUMN_NAME_NOTE, TEST_NOTES[index].note);
+            mDb.insertOrThrow(NotePadProvider.BODIES_TABLE_NAME, null, body);
         }
     }
 
@@ -186,9 +215,12 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. The whole directory can be exported, as JSON Lines.
+        String[] exportTypes =
+                mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(1, exportTypes.length);
+        assertEquals(NotePad.Notes.EXPORT_MIME_TYPE, exportTypes[0]);
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -219,10 +251,10 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertNull(mimeType);
 
         /*
-         * Tests with a URI that should not have any associated stream MIME types, but with a
-         * filter that returns all types. The result should still be null.
+         * Tests the notes table URI with a filter that only matches plain text. The directory
+         * isn't available as plain text, so the result should be null.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT);
         assertNull(mimeType);
 
     }
@@ -315,6 +347,137 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests the export of the whole notes directory as JSON Lines. There are more notes than
+     * the exporter reads in one batch, and one of them is stored compressed.
+     */
+    public void testExportNotes() throws IOException, JSONException {
+        getProvider().setCompressionThresholdForTest(64);
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longText.append("A long line with \"quotes\" and\nbreaks. ");
+        }
+
+        int count = NoteExporter.BATCH_SIZE * 2 + 10;
+        ContentValues[] valuesArray = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            valuesArray[i] = new ContentValues();
+            valuesArray[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Export " + i);
+            valuesArray[i].put(NotePad.Notes.COLUMN_NAME_NOTE,
+                    i == 5 ? longText.toString() : "Text " + i);
+        }
+        assertEquals(count, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, valuesArray));
+
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_MIME_TYPE, null);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(descriptor.getParcelFileDescriptor().getFileDescriptor()),
+                "UTF-8"));
+
+        // Each line is one note, in _ID order, with its text as it was written.
+        int lines = 0;
+        long lastId = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            JSONObject note = new JSONObject(line);
+            assertTrue(note.getLong(NotePad.Notes._ID) > lastId);
+            lastId = note.getLong(NotePad.Notes._ID);
+            String title = note.getString(NotePad.Notes.COLUMN_NAME_TITLE);
+            int index = Integer.parseInt(title.substring("Export ".length()));
+            assertEquals(valuesArray[index].getAsString(NotePad.Notes.COLUMN_NAME_NOTE),
+                    note.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+            assertEquals(0, note.getLong(NotePad.Notes.COLUMN_NAME_IS_TODO));
+            lines++;
+        }
+        reader.close();
+        assertEquals(count, lines);
+    }
+
+    /*
+     * Tests the import of notes from a JSON Lines stream. The stream holds more notes than one
+     * batch, and some lines that must be skipped without ending the import.
+     */
+    public void testImportNotes() throws IOException, InterruptedException {
+        final int noteCount = 1200;
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+
+        // Writes the stream on another thread, as a caller would, since the pipe's buffer is
+        // much smaller than the stream. A failed write closes the pipe, so that the import ends,
+        // and is thrown again on this thread.
+        final IOException[] writeError = new IOException[1];
+        Thread writer = new Thread("import writer") {
+            @Override
+            public void run() {
+                Writer out = null;
+                try {
+                    out = new OutputStreamWriter(
+                            new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]), "UTF-8");
+                    for (int i = 0; i < noteCount; i++) {
+                        out.write("{\"title\":\"Imported " + i + "\",\"note\":\"Text " + i
+                                + "\",\"modified\":" + (START_DATE + i) + ",\"is_todo\":1}\n");
+                        if (i == 10) {
+                            out.write("not json\n");
+                            out.write("\n");
+                            out.write("{\"title\":[\"not\", \"a string\"]}\n");
+                            out.write("{\"note\":\"Missing modified\",\"is_done\":\"yes\"}\n");
+                        }
+                    }
+                } catch (IOException e) {
+                    writeError[0] = e;
+                } finally {
+                    try {
+                        if (out != null) {
+                            out.close();
+                        } else {
+                            pipe[1].close();
+                        }
+                    } catch (IOException e) {
+                        if (writeError[0] == null) {
+                            writeError[0] = e;
+                        }
+                    }
+                }
+            }
+        };
+        writer.start();
+
+        final ArrayList<Bundle> reports = new ArrayList<Bundle>();
+        ResultReceiver progress = new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                reports.add(resultData);
+            }
+        };
+
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.KEY_IMPORT_FILE, pipe[0]);
+        extras.putParcelable(NotePad.Notes.KEY_IMPORT_PROGRESS, progress);
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_IMPORT_NOTES, null, extras);
+        writer.join();
+        if (writeError[0] != null) {
+            throw writeError[0];
+        }
+
+        // Every valid note is imported, and the three malformed lines are skipped.
+        assertEquals(noteCount, result.getInt(NotePad.Notes.KEY_IMPORTED_COUNT));
+        assertEquals(3, result.getInt(NotePad.Notes.KEY_SKIPPED_COUNT));
+        assertEquals(noteCount, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+
+        // Progress is reported after each committed batch, and the last report has the totals.
+        assertTrue(reports.size() > 1);
+        assertEquals(noteCount,
+                reports.get(reports.size() - 1).getInt(NotePad.Notes.KEY_IMPORTED_COUNT));
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_IS_TODO },
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Imported 7" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Text 7", cursor.getString(0));
+        assertEquals(1, cursor.getInt(1));
+        cursor.close();
+    }
+
     /*
      * Tests the provider's method for actually returning writing data into a pipe. The method is
      * writeDataToPipe, but this method is not called directly. Instead, a caller invokes
@@ -415,6 +578,63 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertEquals(TEST_NOTES[0].note, inputData[2]);
     }
 
+    /*
+     * Tests reading a large note's stream whole and in ranges, with the text stored both as text
+     * and compressed. The text has multi-byte characters, so byte offsets differ from character
+     * offsets.
+     */
+    public void testNoteStreamRanges() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("Ligne ").append(i).append(" été — ");
+        }
+
+        for (int threshold : new int[] { -1, 64 }) {
+            getProvider().setCompressionThresholdForTest(threshold);
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Big note");
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+            Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            byte[] expected = ("Big note\n\n" + text + "\n").getBytes("UTF-8");
+
+            // The whole stream is the title, an empty line and the text.
+            assertTrue(Arrays.equals(expected, readNoteStream(noteUri, null)));
+
+            // A range that starts and ends inside the text.
+            Bundle opts = new Bundle();
+            opts.putLong(NotePad.Notes.OPT_RANGE_START, 100000);
+            opts.putLong(NotePad.Notes.OPT_RANGE_LENGTH, 5000);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, 100000, 105000),
+                    readNoteStream(noteUri, opts)));
+
+            // A range without a length runs to the end of the stream, including the last
+            // line break.
+            opts.remove(NotePad.Notes.OPT_RANGE_LENGTH);
+            opts.putLong(NotePad.Notes.OPT_RANGE_START, expected.length - 10);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, expected.length - 10,
+                    expected.length), readNoteStream(noteUri, opts)));
+
+            // A range past the end of the stream is empty.
+            opts.putLong(NotePad.Notes.OPT_RANGE_START, expected.length + 10);
+            assertEquals(0, readNoteStream(noteUri, opts).length);
+        }
+    }
+
+    // Reads a note's text/plain stream to its end.
+    private byte[] readNoteStream(Uri noteUri, Bundle opts) throws IOException {
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, opts);
+        InputStream in = descriptor.createInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
     /*
      * Tests the provider's public API for querying data in the table, using the URI for
      * a dataset of records.
@@ -685,6 +905,136 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         }
     }
 
+    /*
+     * Tests bulk inserts into the data model.
+     */
+    public void testBulkInserts() {
+        // Bulk insert subtest 1.
+        // Inserts every test note in one call, plus one note with no values at all.
+        ContentValues[] valuesArray = new ContentValues[TEST_NOTES.length + 1];
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            valuesArray[index] = TEST_NOTES[index].getContentValues();
+        }
+        valuesArray[TEST_NOTES.length] = new ContentValues();
+
+        int inserted = mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, valuesArray);
+
+        // Asserts that every row was inserted.
+        assertEquals(valuesArray.length, inserted);
+
+        Cursor cursor = mMockResolver.query(
+            NotePad.Notes.CONTENT_URI, // the main table URI
+            null,                      // no projection, return all the columns
+            null,                      // no selection criteria, return all the rows in the model
+            null,                      // no selection arguments
+            null                       // default sort order
+        );
+        assertEquals(valuesArray.length, cursor.getCount());
+        cursor.close();
+
+        // Asserts that the empty row got the same defaults that insert() fills in.
+        cursor = mMockResolver.query(
+            NotePad.Notes.CONTENT_URI,
+            null,
+            NotePad.Notes.COLUMN_NAME_NOTE + " = ''",
+            null,
+            null
+        );
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertFalse(cursor.isNull(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        assertTrue(cursor.getLong(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CREATE_DATE))
+                > 0);
+        assertEquals(0, cursor.getInt(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_IS_TODO)));
+        assertEquals(0, cursor.getInt(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_IS_DONE)));
+        cursor.close();
+
+        // Bulk insert subtest 2.
+        // Tests that a batch with one bad row inserts nothing. The second row reuses the ID of
+        // the first, so it fails after the first row was already written.
+        ContentValues first = TEST_NOTES[0].getContentValues();
+        first.put(NotePad.Notes._ID, 1000);
+        ContentValues duplicate = TEST_NOTES[1].getContentValues();
+        duplicate.put(NotePad.Notes._ID, 1000);
+
+        try {
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                    new ContentValues[] { first, duplicate });
+            fail("Expected bulk insert failure for a duplicate ID but it succeeded.");
+        } catch (Exception e) {
+          // succeeded, so do nothing.
+        }
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(valuesArray.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests applying batches of operations to the data model.
+     */
+    public void testApplyBatch() throws RemoteException, OperationApplicationException {
+        // Batch subtest 1.
+        // Inserts two notes, then updates the second one through a back reference to its URI.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(TEST_NOTES[0].getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(TEST_NOTES[1].getContentValues())
+                .withYieldAllowed(true)
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes._ID + " = ?", new String[1])
+                .withSelectionBackReference(0, 1)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Updated in batch")
+                .withExpectedCount(1)
+                .build());
+
+        ContentProviderResult[] results =
+                mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+
+        // Asserts that each operation returned its result.
+        assertEquals(3, results.length);
+        assertNotNull(results[0].uri);
+        assertNotNull(results[1].uri);
+        assertEquals(1, results[2].count.intValue());
+
+        Cursor cursor = mMockResolver.query(
+            results[1].uri,                                // the second note's URI
+            new String[] { NotePad.Notes.COLUMN_NAME_TITLE },
+            null,
+            null,
+            null
+        );
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Updated in batch", cursor.getString(0));
+        cursor.close();
+
+        // Batch subtest 2.
+        // Tests that a batch whose last operation fails leaves no trace of the earlier ones.
+        operations.clear();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(TEST_NOTES[2].getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                        new String[] { "No such note" })
+                .withExpectedCount(1)
+                .build());
+
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected batch failure for an unmatched delete but the batch succeeded.");
+        } catch (OperationApplicationException e) {
+          // succeeded, so do nothing.
+        }
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
     /*
      * Tests deletions from the data model.
      */
@@ -790,6 +1140,1434 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests updates and deletes of single notes selected by ID alone, which run cached
+     * statements. Saves with different sets of columns must each change only their own columns
+     * of their own note.
+     */
+    public void testUpdatesById() {
+        insertData();
+
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2);
+
+        // By ID subtest 1.
+        // Saves the text and the modification date, then only the title, then the text again.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First save");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 1000L);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        ContentValues titleValues = new ContentValues();
+        titleValues.put(NotePad.Notes.COLUMN_NAME_TITLE, "Saved title");
+        assertEquals(1, mMockResolver.update(noteUri, titleValues, null, null));
+
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Second save");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 2000L);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        Cursor cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_PREVIEW }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Saved title", cursor.getString(0));
+        assertEquals("Second save", cursor.getString(1));
+        assertEquals(2000L, cursor.getLong(2));
+        assertEquals("Second save", cursor.getString(3));
+        cursor.close();
+
+        // By ID subtest 2.
+        // The other notes are unchanged.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                NotePad.Notes._ID + " != 2", null, null);
+        while (cursor.moveToNext()) {
+            assertFalse(cursor.getString(0).endsWith("save"));
+        }
+        cursor.close();
+
+        // By ID subtest 3.
+        // A note that doesn't exist isn't updated or deleted.
+        Uri missingUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1000);
+        assertEquals(0, mMockResolver.update(missingUri, values, null, null));
+        assertEquals(0, mMockResolver.update(missingUri, titleValues, null, null));
+        assertEquals(0, mMockResolver.delete(missingUri, null, null));
+
+        // By ID subtest 4.
+        // Moves the note to the trash, then deletes it and its body from the trash.
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(0, mMockResolver.query(noteUri, null, null, null, null).getCount());
+        assertEquals(0, mMockResolver.delete(noteUri, null, null));
+        assertEquals(1, mMockResolver.delete(trashUriFor(noteUri), null, null));
+        assertEquals(TEST_NOTES.length - 1, DatabaseUtils.queryNumEntries(mDb,
+                NotePadProvider.BODIES_TABLE_NAME));
+    }
+
+    /*
+     * Tests that the notifications sent during a burst of writes are merged. The provider's
+     * notifications are counted instead of being sent to the mock resolver, which drops them.
+     */
+    public void testNotificationCoalescing() {
+        ArrayList<Uri> notified = new ArrayList<Uri>();
+        NotificationCoalescer notifications = collectNotifications(notified);
+
+        // Coalescing subtest 1.
+        // A burst of 1,000 inserts, each notifying its own note's URI, is delivered as one
+        // notification for the whole notes URI.
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 1000; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Burst " + i);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        assertEquals(0, notified.size());
+        notifications.flush();
+        assertEquals(1, notified.size());
+        assertEquals(NotePad.Notes.CONTENT_URI, notified.get(0));
+
+        // Coalescing subtest 2.
+        // Repeated saves of one note are delivered once, for that note's URI, and writes that
+        // change nothing aren't delivered at all.
+        notified.clear();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        for (int i = 0; i < 1000; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved " + i);
+            mMockResolver.update(noteUri, values, null, null);
+        }
+        mMockResolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 5000),
+                null, null);
+        notifications.flush();
+        assertEquals(1, notified.size());
+        assertEquals(noteUri, notified.get(0));
+
+        // Coalescing subtest 3.
+        // Nothing is left to deliver once the notifications have been flushed.
+        notified.clear();
+        notifications.flush();
+        assertEquals(0, notified.size());
+    }
+
+    /*
+     * Tests that updates and deletes on the notes URI notify observers of exactly the notes
+     * they changed, each on its own URI.
+     */
+    public void testPerNoteNotifications() {
+        insertData();
+        ArrayList<Uri> notified = new ArrayList<Uri>();
+        NotificationCoalescer notifications = collectNotifications(notified);
+
+        // Per note subtest 1.
+        // An update selected by title notifies the URIs of the notes it changed.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Work");
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?)", new String[] { "Note2", "Note5" }));
+        notifications.flush();
+        assertEquals(2, notified.size());
+        assertTrue(notified.contains(noteUriForTitle("Note2")));
+        assertTrue(notified.contains(noteUriForTitle("Note5")));
+
+        // Per note subtest 2.
+        // So does an update of the text selected by the text.
+        notified.clear();
+        Uri note3Uri = noteUriForTitle("Note3");
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed by its text");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { TEST_NOTES[3].note }));
+        notifications.flush();
+        assertEquals(1, notified.size());
+        assertEquals(note3Uri, notified.get(0));
+
+        // Per note subtest 3.
+        // A delete notifies the URIs of the notes it moved to the trash, and the trash, and one
+        // that deletes nothing notifies nothing.
+        notified.clear();
+        Uri note2Uri = noteUriForTitle("Note2");
+        Uri note5Uri = noteUriForTitle("Note5");
+        String[] workArgs = new String[] { Long.toString(categoryId("Work")) };
+        assertEquals(2, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?", workArgs));
+        assertEquals(0, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?", workArgs));
+        notifications.flush();
+        assertEquals(3, notified.size());
+        assertTrue(notified.contains(note2Uri));
+        assertTrue(notified.contains(note5Uri));
+        assertTrue(notified.contains(NotePad.Notes.CONTENT_TRASH_URI));
+    }
+
+    /*
+     * Tests an update of more notes than the provider lists in the IN clause of one statement.
+     * Every note that the where clause selects is changed, in both tables.
+     */
+    public void testUpdateManyNotes() {
+        int count = 1200;
+        insertManyNotes(count);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed together");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Many");
+        assertEquals(count, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?", new String[] { "Many %" }));
+        assertEquals(count, categoryNoteCount("Many"));
+        assertEquals(count, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                + NotePadProvider.BODIES_TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " = ?", new String[] { "Changed together" }));
+    }
+
+    /*
+     * Makes the provider deliver its change notifications to a list, only when the returned
+     * coalescer is flushed. MockContentResolver drops the notifications it is sent.
+     */
+    private NotificationCoalescer collectNotifications(final ArrayList<Uri> notified) {
+
+        // Uses a window longer than the test, so that only flush() delivers the notifications.
+        NotificationCoalescer notifications = new NotificationCoalescer(
+                new Handler(Looper.getMainLooper()), ONE_DAY_MILLIS, NotePad.Notes.CONTENT_URI,
+                new NotificationCoalescer.Sink() {
+                    @Override
+                    public void notifyChange(Uri uri) {
+                        notified.add(uri);
+                    }
+                });
+        getProvider().setNotificationCoalescerForTest(notifications);
+        return notifications;
+    }
+
+    // Returns the _ID of the category with the given name.
+    private long categoryId(String name) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT " + NotePad.Categories._ID + " FROM "
+                + NotePad.Categories.TABLE_NAME + " WHERE "
+                + NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { name });
+    }
+
+    // Returns the number of notes in the category with the given name, read through the
+    // provider.
+    private int categoryNoteCount(String name) {
+        Cursor cursor = mMockResolver.query(ContentUris.withAppendedId(
+                NotePad.Categories.CONTENT_ID_URI_BASE, categoryId(name)),
+                new String[] { NotePad.Categories.COLUMN_NAME_NOTE_COUNT }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the URI of the note with the given title.
+    private Uri noteUriForTitle(String title) {
+        long noteId = DatabaseUtils.longForQuery(mDb, "SELECT " + NotePad.Notes._ID + " FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                new String[] { title });
+        return ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+    }
+
+    /*
+     * Tests the cache of recently read notes: repeated queries for a note are answered from it,
+     * and every kind of write removes the notes it changed.
+     */
+    public void testNoteCache() throws RemoteException, OperationApplicationException {
+        insertData();
+        Uri noteUri = noteUriForTitle("Note1");
+        String[] projection = { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE };
+
+        // Cache subtest 1.
+        // The first query reads the database and the second one is answered from the cache.
+        Bundle before = cacheStats();
+        assertEquals("Note1", queryTitle(noteUri, projection));
+        assertEquals("Note1", queryTitle(noteUri, projection));
+        Bundle after = cacheStats();
+        assertEquals(1, after.getLong(NotePad.Notes.KEY_CACHE_MISSES)
+                - before.getLong(NotePad.Notes.KEY_CACHE_MISSES));
+        assertEquals(1, after.getLong(NotePad.Notes.KEY_CACHE_HITS)
+                - before.getLong(NotePad.Notes.KEY_CACHE_HITS));
+        assertTrue(after.getLong(NotePad.Notes.KEY_CACHE_BYTES) > 0);
+
+        // A query of another note that doesn't ask for its text reads only the columns it asks
+        // for, and caches nothing.
+        String[] titleOnly = { NotePad.Notes.COLUMN_NAME_TITLE };
+        assertEquals("Note2", queryTitle(noteUriForTitle("Note2"), titleOnly));
+        assertEquals("Note2", queryTitle(noteUriForTitle("Note2"), titleOnly));
+        assertEquals(after.getLong(NotePad.Notes.KEY_CACHE_BYTES),
+                cacheStats().getLong(NotePad.Notes.KEY_CACHE_BYTES));
+
+        // Cache subtest 2.
+        // Updates by ID and by a where clause are seen by the next query.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed by ID");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals("Renamed by ID", queryTitle(noteUri, projection));
+
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed by text");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { TEST_NOTES[1].note });
+        assertEquals("Renamed by text", queryTitle(noteUri, projection));
+
+        // Cache subtest 3.
+        // So are the changes made by a batch.
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(noteUri)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed by batch")
+                .build());
+        mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals("Renamed by batch", queryTitle(noteUri, projection));
+
+        // Cache subtest 4.
+        // A note deleted by a where clause is gone from the cache.
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Renamed by batch" }));
+        assertEquals(0, mMockResolver.query(noteUri, projection, null, null, null).getCount());
+    }
+
+    // Returns the counters of the provider's cache of recently read notes.
+    private Bundle cacheStats() {
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_GET_CACHE_STATS, null, null);
+    }
+
+    // Returns the title of a note, read through the provider.
+    private String queryTitle(Uri noteUri, String[] projection) {
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests the cache of query SQL: queries that differ only in the values taken from their URIs
+     * share their SQL, and each one still reads its own rows.
+     */
+    public void testQueryPlanCache() {
+        insertData();
+        // The deleted date isn't kept by the cache of recently read notes, so the queries by ID
+        // below read the database.
+        String[] projection = { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_DELETED_DATE };
+
+        // Plan cache subtest 1.
+        // Two notes read by ID, and two searches for different terms, are built into the same
+        // SQL, with the values from the URI bound as arguments.
+        NotePadProvider.QuerySpec note1 = getProvider().buildQuery(
+                noteUriForTitle("Note1"), projection, null, null, null);
+        NotePadProvider.QuerySpec note2 = getProvider().buildQuery(
+                noteUriForTitle("Note2"), projection, null, null, null);
+        assertEquals(note1.sql, note2.sql);
+        assertFalse(Arrays.equals(note1.selectionArgs, note2.selectionArgs));
+
+        NotePadProvider.QuerySpec search1 = getProvider().buildQuery(
+                searchUri("note"), projection, null, null, null);
+        NotePadProvider.QuerySpec search2 = getProvider().buildQuery(
+                searchUri("this"), projection, null, null, null);
+        assertEquals(search1.sql, search2.sql);
+
+        // Plan cache subtest 2.
+        // A query that reuses the SQL is counted as a hit, and reads the note it asked for.
+        long hits = cacheStats().getLong(NotePad.Notes.KEY_PLAN_CACHE_HITS);
+        assertEquals("Note2", queryTitle(noteUriForTitle("Note2"), projection));
+        assertEquals("Note3", queryTitle(noteUriForTitle("Note3"), projection));
+        assertEquals(hits + 2, cacheStats().getLong(NotePad.Notes.KEY_PLAN_CACHE_HITS));
+    }
+
+    /*
+     * Tests the provider's metrics: each call is counted under its operation and URI pattern,
+     * and the slowest queries are kept with their plans, in the "stats" call and in dump().
+     */
+    public void testStats() {
+        insertData();
+        // With a threshold of 0, every query is slow.
+        getProvider().setMetricsForTest(new ProviderMetrics(0, 2));
+
+        // Stats subtest 1.
+        // Each call is counted under its operation and URI pattern, with the rows it returned
+        // or changed, and its latency in one bucket of the histogram.
+        assertEquals(TEST_NOTES.length, queryCount(NotePad.Notes.CONTENT_URI));
+        assertEquals(TEST_NOTES.length, queryCount(NotePad.Notes.CONTENT_URI));
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Stats");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        Bundle stats = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_GET_STATS, null, null);
+        Bundle operations = stats.getBundle(NotePad.Notes.KEY_STATS_OPERATIONS);
+        Bundle query = operations.getBundle("query notes");
+        assertEquals(2, query.getLong(NotePad.Notes.KEY_STATS_COUNT));
+        assertEquals(2 * TEST_NOTES.length, query.getLong(NotePad.Notes.KEY_STATS_ROWS));
+        long[] histogram = query.getLongArray(NotePad.Notes.KEY_STATS_HISTOGRAM);
+        assertEquals(stats.getLongArray(NotePad.Notes.KEY_STATS_BUCKET_BOUNDS).length + 1,
+                histogram.length);
+        long calls = 0;
+        for (long bucket : histogram) {
+            calls += bucket;
+        }
+        assertEquals(2, calls);
+        assertEquals(1, operations.getBundle("insert notes").getLong(NotePad.Notes.KEY_STATS_ROWS));
+        assertEquals(1,
+                operations.getBundle("update notes/#").getLong(NotePad.Notes.KEY_STATS_ROWS));
+
+        // Stats subtest 2.
+        // Only the most recent slow queries are kept, with their rows, selection and plan.
+        String selection = NotePad.Notes.COLUMN_NAME_TITLE + " = ?";
+        mMockResolver.query(NotePad.Notes.CONTENT_URI, null, selection, new String[] { "Stats" },
+                null).close();
+        stats = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_GET_STATS,
+                null, null);
+        assertEquals(3, stats.getLong(NotePad.Notes.KEY_STATS_SLOW_QUERY_COUNT));
+        ArrayList<Bundle> slowQueries =
+                stats.getParcelableArrayList(NotePad.Notes.KEY_STATS_SLOW_QUERIES);
+        assertEquals(2, slowQueries.size());
+        Bundle slowest = slowQueries.get(1);
+        assertEquals(1, slowest.getLong(NotePad.Notes.KEY_STATS_ROWS));
+        assertEquals(selection, slowest.getString(NotePad.Notes.KEY_STATS_SELECTION));
+        assertTrue(slowest.getString(NotePad.Notes.KEY_STATS_PLAN).length() > 0);
+
+        // Stats subtest 3.
+        // dump() writes the same metrics as text.
+        StringWriter dump = new StringWriter();
+        getProvider().dump(null, new PrintWriter(dump), null);
+        assertTrue(dump.toString(), dump.toString().contains("query notes: 3 calls"));
+    }
+
+    /*
+     * Tests the revision history of a note. Every save of the text must be listed, and every
+     * revision must rebuild to the text that was saved, across keyframes and compressed text.
+     */
+    public void testRevisions() {
+        getProvider().setCompressionThresholdForTest(64);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "History");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Draft \uD83D\uDE00");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+        Uri revisionsUri = Uri.withAppendedPath(noteUri, NotePad.Revisions.PATH_SEGMENT);
+
+        // Saves edits in the middle of a growing text, one save with the same text, and one
+        // update through a where clause.
+        ArrayList<String> texts = new ArrayList<String>();
+        texts.add("Draft \uD83D\uDE00");
+        StringBuilder text = new StringBuilder("Draft \uD83D\uDE00");
+        int saves = NoteRevisions.KEYFRAME_INTERVAL * 3;
+        for (int i = 0; i < saves; i++) {
+            text.insert(text.length() / 2, " edit " + i + " \u00E9");
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+            if (i == 10) {
+                assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                        NotePad.Notes._ID + " = ?", new String[] { Long.toString(noteId) }));
+            } else {
+                assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+            }
+            texts.add(text.toString());
+        }
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        // Revisions subtest 1.
+        // The list has one revision for each distinct save, newest first, without the text.
+        Cursor cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(texts.size(), cursor.getCount());
+        assertEquals(-1, cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_NOTE));
+        assertTrue(cursor.moveToFirst());
+        assertEquals(texts.size(), cursor.getLong(
+                cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_REVISION)));
+        cursor.close();
+        assertEquals(NotePad.Revisions.CONTENT_TYPE, mMockResolver.getType(revisionsUri));
+
+        // Revisions subtest 2.
+        // Each revision rebuilds to the text that was saved.
+        for (int i = 0; i < texts.size(); i++) {
+            Uri revisionUri = ContentUris.withAppendedId(revisionsUri, i + 1);
+            cursor = mMockResolver.query(revisionUri, new String[] {
+                    NotePad.Revisions.COLUMN_NAME_REVISION, NotePad.Revisions.COLUMN_NAME_NOTE },
+                    null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(i + 1, cursor.getLong(0));
+            assertEquals(texts.get(i), cursor.getString(1));
+            cursor.close();
+        }
+        cursor = mMockResolver.query(ContentUris.withAppendedId(revisionsUri, texts.size() + 1),
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Revisions subtest 3.
+        // Chains from a keyframe are bounded, and most revisions are stored as small deltas.
+        String where = " FROM " + NotePadProvider.REVISIONS_TABLE_NAME + " WHERE "
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + noteId;
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT MAX("
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " - "
+                + NotePadProvider.REVISIONS_COLUMN_NAME_KEYFRAME + ")" + where, null)
+                < NoteRevisions.KEYFRAME_INTERVAL);
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*)" + where + " AND "
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " = "
+                + NotePadProvider.REVISIONS_COLUMN_NAME_KEYFRAME, null) <= 4);
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT MAX(length("
+                + NotePadProvider.REVISIONS_COLUMN_NAME_DATA + "))" + where + " AND "
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " != "
+                + NotePadProvider.REVISIONS_COLUMN_NAME_KEYFRAME, null) < 20);
+
+        // Revisions subtest 4.
+        // Deleting the note from the trash deletes its revisions.
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(1, mMockResolver.delete(trashUriFor(noteUri), null, null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*)" + where, null));
+    }
+
+    /*
+     * Tests that a note's text, which is stored apart from the rest of the note, is written,
+     * read, filtered on and deleted together with the note.
+     */
+    public void testNoteBodies() {
+        insertData();
+
+        // Body subtest 1.
+        // Updates only the text of one note, and then only its title.
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Only the text changed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Only the title changed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        Cursor cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Only the title changed",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        assertEquals("Only the text changed",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE)));
+        cursor.close();
+
+        // Body subtest 2.
+        // Updates the text and the title of the notes selected by their text.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Selected by text");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "This is note 2 again");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { TEST_NOTES[2].note }));
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE },
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { "This is note 2 again" },
+                null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Selected by text", cursor.getString(0));
+        cursor.close();
+
+        // Body subtest 3.
+        // Deletes the notes selected by their text, then deletes them from the trash, and checks
+        // that their bodies went with them.
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { TEST_NOTES[3].note }));
+        assertEquals(TEST_NOTES.length, DatabaseUtils.queryNumEntries(mDb,
+                NotePadProvider.BODIES_TABLE_NAME));
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_TRASH_URI,
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { TEST_NOTES[3].note }));
+        assertEquals(TEST_NOTES.length - 1, DatabaseUtils.queryNumEntries(mDb,
+                NotePadProvider.BODIES_TABLE_NAME));
+    }
+
+    /*
+     * Tests that category names written to notes are stored as category IDs, and that the
+     * number of notes in each category follows every kind of write.
+     */
+    public void testCategories() {
+        insertData();
+
+        // Category subtest 1.
+        // Naming a new category adds it, and the note reads back the name and the ID.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Work");
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?)", new String[] { "Note1", "Note2" }));
+        long workId = categoryId("Work");
+        assertEquals(2, categoryNoteCount("Work"));
+
+        Uri note1Uri = noteUriForTitle("Note1");
+        Cursor cursor = mMockResolver.query(note1Uri, new String[] {
+                NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.COLUMN_NAME_CATEGORY_ID },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Work", cursor.getString(0));
+            assertEquals(workId, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+
+        // Category subtest 2.
+        // Inserts, one by one and in bulk, reuse the category by its name.
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Inserted");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Bulk inserted");
+        assertEquals(2, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                new ContentValues[] { values, values }));
+        assertEquals(5, categoryNoteCount("Work"));
+        assertEquals(workId, categoryId("Work"));
+
+        // Category subtest 3.
+        // Filtering on the ID finds the notes, and the count matches them.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[] { Long.toString(workId) }, null);
+        assertEquals(5, cursor.getCount());
+        cursor.close();
+
+        // Category subtest 4.
+        // Moving a note to another category, or out of every category, moves its count.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Home");
+        assertEquals(1, mMockResolver.update(note1Uri, values, null, null));
+        assertEquals(4, categoryNoteCount("Work"));
+        assertEquals(1, categoryNoteCount("Home"));
+
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "");
+        assertEquals(1, mMockResolver.update(note1Uri, values, null, null));
+        assertEquals(0, categoryNoteCount("Home"));
+        cursor = mMockResolver.query(note1Uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_CATEGORY }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isNull(0));
+        cursor.close();
+
+        // Category subtest 5.
+        // Notes in the trash aren't counted, and are counted again once restored.
+        Uri note2Uri = noteUriForTitle("Note2");
+        assertEquals(1, mMockResolver.delete(note2Uri, null, null));
+        assertEquals(3, categoryNoteCount("Work"));
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_DATE, 0);
+        assertEquals(1, mMockResolver.update(trashUriFor(note2Uri), values, null, null));
+        assertEquals(4, categoryNoteCount("Work"));
+
+        assertEquals(1, mMockResolver.delete(note2Uri, null, null));
+        assertEquals(1, mMockResolver.delete(trashUriFor(note2Uri), null, null));
+        assertEquals(3, categoryNoteCount("Work"));
+
+        // Category subtest 6.
+        // The categories URI lists every category once, and can't be written to.
+        cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI, null,
+                NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { "Work" }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        try {
+            mMockResolver.delete(NotePad.Categories.CONTENT_URI, null, null);
+            fail("Deleted categories");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /*
+     * Tests that deleting a note moves it to the trash, where it can be restored or deleted for
+     * good, and that the purge deletes the notes that have been in the trash too long.
+     */
+    public void testTrash() {
+        insertData();
+        Uri noteUri = noteUriForTitle("Note1");
+        Uri trashUri = trashUriFor(noteUri);
+
+        // Trash subtest 1.
+        // A deleted note is gone from the notes, the note's URI and search, and can no longer be
+        // updated through its URI, but its rows stay in the database.
+        long before = System.currentTimeMillis();
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(TEST_NOTES.length - 1, queryCount(NotePad.Notes.CONTENT_URI));
+        assertEquals(0, queryCount(noteUri));
+        assertEquals(TEST_NOTES.length - 1, queryCount(searchUri("this")));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed in the trash");
+        assertEquals(0, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(TEST_NOTES.length, DatabaseUtils.queryNumEntries(mDb,
+                NotePadProvider.BODIES_TABLE_NAME));
+
+        // Trash subtest 2.
+        // The trash lists the note, with the time it was deleted.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_TRASH_URI, new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_DELETED_DATE }, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Note1", cursor.getString(0));
+            assertEquals(TEST_NOTES[1].note, cursor.getString(1));
+            assertTrue(cursor.getLong(2) >= before);
+        } finally {
+            cursor.close();
+        }
+        assertEquals(1, queryCount(trashUri));
+
+        // Trash subtest 3.
+        // Setting the deleted date to 0 through the trash restores the note.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_DATE, 0);
+        assertEquals(1, mMockResolver.update(trashUri, values, null, null));
+        assertEquals(1, queryCount(noteUri));
+        assertEquals(0, queryCount(NotePad.Notes.CONTENT_TRASH_URI));
+
+        // The deleted date can't be set through the notes URIs.
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_DATE, before);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note1");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(1, queryCount(noteUri));
+
+        // Trash subtest 4.
+        // The purge deletes only the notes deleted before the given time, with their bodies.
+        assertEquals(2, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?)", new String[] { "Note1", "Note2" }));
+        NotePadProvider provider = getProvider();
+        assertEquals(0, provider.purgeTrash(before));
+        assertEquals(2, provider.purgeTrash(System.currentTimeMillis() + 1));
+        assertEquals(0, queryCount(NotePad.Notes.CONTENT_TRASH_URI));
+        assertEquals(TEST_NOTES.length - 2, DatabaseUtils.queryNumEntries(mDb,
+                NotePadProvider.BODIES_TABLE_NAME));
+
+        // Trash subtest 5.
+        // Deleting through the trash URIs only deletes notes that are in the trash.
+        assertEquals(0, mMockResolver.delete(NotePad.Notes.CONTENT_TRASH_URI, null, null));
+        assertEquals(TEST_NOTES.length - 2, queryCount(NotePad.Notes.CONTENT_URI));
+    }
+
+    /*
+     * Tests moving more notes to the trash, and deleting more from it, than the provider lists
+     * in the IN clause of one statement.
+     */
+    public void testTrashManyNotes() {
+        int count = 1200;
+        insertManyNotes(count);
+        String where = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?";
+        String[] whereArgs = new String[] { "Many %" };
+
+        assertEquals(count, mMockResolver.delete(NotePad.Notes.CONTENT_URI, where, whereArgs));
+        assertEquals(0, queryCount(NotePad.Notes.CONTENT_URI));
+        assertEquals(count, mMockResolver.delete(NotePad.Notes.CONTENT_TRASH_URI, where,
+                whereArgs));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+    }
+
+    // Inserts the given number of notes, titled "Many 0", "Many 1" and so on.
+    private void insertManyNotes(int count) {
+        ContentValues[] valuesArray = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            valuesArray[i] = new ContentValues();
+            valuesArray[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Many " + i);
+            valuesArray[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "One of many");
+        }
+        assertEquals(count, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, valuesArray));
+    }
+
+    // Returns the number of rows that a query of a URI returns.
+    private int queryCount(Uri uri) {
+        Cursor cursor = mMockResolver.query(uri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the trash URI of the note with the given note URI.
+    private static Uri trashUriFor(Uri noteUri) {
+        return ContentUris.withAppendedId(NotePad.Notes.CONTENT_TRASH_ID_URI_BASE,
+                ContentUris.parseId(noteUri));
+    }
+
+    /*
+     * Tests that the counts follow every write to the notes, including writes made straight to
+     * the database, and that they leave out the notes in the trash.
+     */
+    public void testCounts() {
+        // Count subtest 1.
+        // Notes written straight to the database are counted, and the totals row comes first.
+        insertData();
+        assertTotals(TEST_NOTES.length, 0, 0);
+
+        // Count subtest 2.
+        // Marking notes as to-dos, and one of them as done, moves them between the totals.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_IS_TODO, 1);
+        assertEquals(3, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?, ?)",
+                new String[] { "Note1", "Note2", "Note3" }));
+        assertTotals(TEST_NOTES.length, 3, 0);
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_IS_DONE, 1);
+        Uri note3Uri = noteUriForTitle("Note3");
+        assertEquals(1, mMockResolver.update(note3Uri, values, null, null));
+        assertTotals(TEST_NOTES.length, 2, 1);
+
+        // Count subtest 3.
+        // Notes in the trash aren't counted, and are counted again once restored. Deleting a
+        // note from the trash leaves the counts as they are.
+        Uri note2Uri = noteUriForTitle("Note2");
+        assertEquals(1, mMockResolver.delete(note2Uri, null, null));
+        assertTotals(TEST_NOTES.length - 1, 1, 1);
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_DATE, 0);
+        assertEquals(1, mMockResolver.update(trashUriFor(note2Uri), values, null, null));
+        assertTotals(TEST_NOTES.length, 2, 1);
+
+        assertEquals(1, mMockResolver.delete(note3Uri, null, null));
+        assertEquals(1, mMockResolver.delete(trashUriFor(note3Uri), null, null));
+        assertTotals(TEST_NOTES.length - 1, 2, 0);
+
+        // Count subtest 4.
+        // Inserted notes are counted, and each category has a row with its number of notes.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Work");
+        values.put(NotePad.Notes.COLUMN_NAME_IS_TODO, 1);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertTotals(TEST_NOTES.length, 3, 0);
+
+        Cursor cursor = mMockResolver.query(NotePad.Counts.CONTENT_URI, new String[] {
+                NotePad.Counts.COLUMN_NAME_NOTE_COUNT, NotePad.Counts.COLUMN_NAME_TODO_COUNT },
+                NotePad.Counts.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[] { Long.toString(categoryId("Work")) }, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1, cursor.getInt(0));
+            assertTrue(cursor.isNull(1));
+        } finally {
+            cursor.close();
+        }
+
+        // Count subtest 5.
+        // The counts can't be written to.
+        try {
+            mMockResolver.delete(NotePad.Counts.CONTENT_URI, null, null);
+            fail("Deleted counts");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    // Asserts the totals that the first row of the counts holds.
+    private void assertTotals(int notes, int todo, int done) {
+        Cursor cursor = mMockResolver.query(NotePad.Counts.CONTENT_URI, new String[] {
+                NotePad.Counts.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Counts.COLUMN_NAME_NOTE_COUNT,
+                NotePad.Counts.COLUMN_NAME_TODO_COUNT,
+                NotePad.Counts.COLUMN_NAME_DONE_COUNT }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertTrue(cursor.isNull(0));
+            assertEquals(notes, cursor.getInt(1));
+            assertEquals(todo, cursor.getInt(2));
+            assertEquals(done, cursor.getInt(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests the call() methods that change one note and return its new state.
+     */
+    public void testNoteStateCalls() {
+        insertData();
+        Uri note1Uri = noteUriForTitle("Note1");
+
+        // State subtest 1.
+        // Toggling a note's to-do state twice returns it to where it started, and marking a note
+        // as done makes it a to-do.
+        Bundle state = callOnNote(NotePad.Notes.METHOD_TOGGLE_TODO, note1Uri, null);
+        assertEquals(ContentUris.parseId(note1Uri), state.getLong(NotePad.Notes._ID));
+        assertEquals(1, state.getInt(NotePad.Notes.COLUMN_NAME_IS_TODO));
+        assertEquals(0, state.getInt(NotePad.Notes.COLUMN_NAME_IS_DONE));
+        assertTotals(TEST_NOTES.length, 1, 0);
+
+        state = callOnNote(NotePad.Notes.METHOD_TOGGLE_TODO, note1Uri, null);
+        assertEquals(0, state.getInt(NotePad.Notes.COLUMN_NAME_IS_TODO));
+        assertTotals(TEST_NOTES.length, 0, 0);
+
+        state = callOnNote(NotePad.Notes.METHOD_TOGGLE_DONE, note1Uri, null);
+        assertEquals(1, state.getInt(NotePad.Notes.COLUMN_NAME_IS_TODO));
+        assertEquals(1, state.getInt(NotePad.Notes.COLUMN_NAME_IS_DONE));
+        assertTotals(TEST_NOTES.length, 0, 1);
+
+        // Toggling the to-do state of a done note also clears its done state.
+        state = callOnNote(NotePad.Notes.METHOD_TOGGLE_TODO, note1Uri, null);
+        assertEquals(0, state.getInt(NotePad.Notes.COLUMN_NAME_IS_TODO));
+        assertEquals(0, state.getInt(NotePad.Notes.COLUMN_NAME_IS_DONE));
+
+        // State subtest 2.
+        // Setting a category adds it and moves the note into it, and an empty name clears it.
+        Bundle extras = new Bundle();
+        extras.putString(NotePad.Notes.COLUMN_NAME_CATEGORY, "Work");
+        state = callOnNote(NotePad.Notes.METHOD_SET_CATEGORY, note1Uri, extras);
+        assertEquals("Work", state.getString(NotePad.Notes.COLUMN_NAME_CATEGORY));
+        assertEquals(categoryId("Work"), state.getLong(NotePad.Notes.COLUMN_NAME_CATEGORY_ID));
+        assertEquals(1, categoryNoteCount("Work"));
+
+        extras.putString(NotePad.Notes.COLUMN_NAME_CATEGORY, "");
+        state = callOnNote(NotePad.Notes.METHOD_SET_CATEGORY, note1Uri, extras);
+        assertFalse(state.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY));
+        assertEquals(0, categoryNoteCount("Work"));
+
+        // State subtest 3.
+        // A duplicate is a new note with the same title, text, category and to-do state, and
+        // it can be found by a search.
+        extras.putString(NotePad.Notes.COLUMN_NAME_CATEGORY, "Home");
+        callOnNote(NotePad.Notes.METHOD_SET_CATEGORY, note1Uri, extras);
+        callOnNote(NotePad.Notes.METHOD_TOGGLE_TODO, note1Uri, null);
+
+        state = callOnNote(NotePad.Notes.METHOD_DUPLICATE, note1Uri, null);
+        Uri copyUri = state.getParcelable(NotePad.Notes.KEY_NOTE_URI);
+        assertFalse(note1Uri.equals(copyUri));
+        assertEquals(ContentUris.parseId(copyUri), state.getLong(NotePad.Notes._ID));
+        assertEquals(1, state.getInt(NotePad.Notes.COLUMN_NAME_IS_TODO));
+        assertEquals("Home", state.getString(NotePad.Notes.COLUMN_NAME_CATEGORY));
+        assertEquals(2, categoryNoteCount("Home"));
+        assertTotals(TEST_NOTES.length + 1, 2, 0);
+
+        Cursor cursor = mMockResolver.query(copyUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE }, null, null,
+                null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Note1", cursor.getString(0));
+            assertEquals("This is note 1", cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+
+        cursor = mMockResolver.query(searchUri("note 1"), null, null, null, null);
+        try {
+            assertEquals(2, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+
+        // State subtest 4.
+        // A note in the trash can't be changed, and the argument must be the URI of one note.
+        assertEquals(1, mMockResolver.delete(note1Uri, null, null));
+        assertNull(callOnNote(NotePad.Notes.METHOD_TOGGLE_DONE, note1Uri, null));
+        assertNull(callOnNote(NotePad.Notes.METHOD_DUPLICATE, note1Uri, null));
+
+        try {
+            callOnNote(NotePad.Notes.METHOD_TOGGLE_TODO, NotePad.Notes.CONTENT_URI, null);
+            fail("Toggled every note");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    // Calls a method that changes one note.
+    private Bundle callOnNote(String method, Uri noteUri, Bundle extras) {
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI, method, noteUri.toString(), extras);
+    }
+
+    /*
+     * Tests the version of each note, and updates made on the condition of a version.
+     */
+    public void testVersions() {
+        insertData();
+        Uri note1Uri = noteUriForTitle("Note1");
+
+        // Version subtest 1.
+        // A note starts at version 1, and every write adds 1, whatever version a caller writes.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note1");
+        Uri insertedUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(1, queryVersion(insertedUri));
+
+        values.put(NotePad.Notes.COLUMN_NAME_VERSION, 100);
+        assertEquals(1, mMockResolver.update(insertedUri, values, null, null));
+        assertEquals(2, queryVersion(insertedUri));
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "A new text");
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" }));
+        assertEquals(3, queryVersion(insertedUri));
+        assertEquals(2, queryVersion(note1Uri));
+
+        // Version subtest 2.
+        // The call() methods, and moving a note to the trash and back, are writes too.
+        Bundle state = callOnNote(NotePad.Notes.METHOD_TOGGLE_TODO, note1Uri, null);
+        assertEquals(3, state.getLong(NotePad.Notes.COLUMN_NAME_VERSION));
+
+        assertEquals(1, mMockResolver.delete(note1Uri, null, null));
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_DATE, 0);
+        assertEquals(1, mMockResolver.update(trashUriFor(note1Uri), values, null, null));
+        assertEquals(5, queryVersion(note1Uri));
+
+        // Version subtest 3.
+        // A conditional update changes the note only while it has the expected version.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved by the editor");
+        assertEquals(1, mMockResolver.update(expectVersion(note1Uri, 5), values, null, null));
+        assertEquals(6, queryVersion(note1Uri));
+
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "A stale save");
+        assertEquals(0, mMockResolver.update(expectVersion(note1Uri, 5), values, null, null));
+        assertEquals(6, queryVersion(note1Uri));
+        Cursor cursor = mMockResolver.query(note1Uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Saved by the editor", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+
+        // A note in the trash fails the condition as well.
+        assertEquals(1, mMockResolver.delete(note1Uri, null, null));
+        assertEquals(0, mMockResolver.update(expectVersion(note1Uri, 7), values, null, null));
+
+        // Version subtest 4.
+        // The expected version must be a number.
+        try {
+            mMockResolver.update(note1Uri.buildUpon().appendQueryParameter(
+                    NotePad.Notes.QUERY_PARAMETER_EXPECTED_VERSION, "latest").build(), values,
+                    null, null);
+            fail("Updated with a bad expected version");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // Version subtest 5.
+        // A write made outside the provider adds 1 as well, and one that sets the version
+        // itself keeps it.
+        mDb.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_TITLE + " = 'Renamed' WHERE " + NotePad.Notes._ID
+                + " = " + ContentUris.parseId(insertedUri));
+        assertEquals(4, queryVersion(insertedUri));
+
+        mDb.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_VERSION + " = 10 WHERE " + NotePad.Notes._ID + " = "
+                + ContentUris.parseId(insertedUri));
+        assertEquals(10, queryVersion(insertedUri));
+    }
+
+    /*
+     * Tests the autosaver behind NoteEditor: saves that change nothing write nothing, and a save
+     * that finds the note changed by another writer is reported, and keeps the other writer's
+     * changes to the columns it didn't change.
+     */
+    public void testAutosaver() {
+        insertData();
+        Uri note1Uri = noteUriForTitle("Note1");
+        final int[] conflicts = new int[1];
+
+        // Uses a pause longer than the test, so that only flush() and saveIfUnchanged() save.
+        Handler handler = new Handler(Looper.getMainLooper());
+        NoteAutosaver autosaver = new NoteAutosaver(mMockResolver, note1Uri, handler, handler,
+                ONE_DAY_MILLIS,
+                new NoteAutosaver.Source() {
+                    @Override
+                    public ContentValues getValues() {
+                        throw new AssertionError("Saved after a pause");
+                    }
+                },
+                new NoteAutosaver.Listener() {
+                    @Override
+                    public void onConflict() {
+                        conflicts[0]++;
+                    }
+                });
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note1");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, TEST_NOTES[1].note);
+        autosaver.reset(queryVersion(note1Uri), values);
+        autosaver.onEdited();
+
+        // Autosave subtest 1.
+        // Saving the values that were read writes nothing, and leaves the modification date.
+        long modified = queryModified(note1Uri);
+        autosaver.flush(new ContentValues(values));
+        assertEquals(1, autosaver.skips());
+        assertEquals(0, autosaver.writes());
+        assertEquals(1, queryVersion(note1Uri));
+        assertEquals(modified, queryModified(note1Uri));
+
+        // Autosave subtest 2.
+        // A changed text is written, once, with a new modification date.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Typed in the editor");
+        autosaver.flush(new ContentValues(values));
+        autosaver.flush(new ContentValues(values));
+        assertEquals(1, autosaver.writes());
+        assertEquals(2, autosaver.skips());
+        assertEquals(2, queryVersion(note1Uri));
+        assertTrue(queryModified(note1Uri) != modified);
+        assertEquals("Typed in the editor", queryNote(note1Uri));
+
+        // Autosave subtest 3.
+        // A revert isn't written over a change made by another writer.
+        ContentValues elsewhere = new ContentValues();
+        elsewhere.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed elsewhere");
+        assertEquals(1, mMockResolver.update(note1Uri, elsewhere, null, null));
+
+        ContentValues revert = new ContentValues();
+        revert.put(NotePad.Notes.COLUMN_NAME_NOTE, TEST_NOTES[1].note);
+        assertFalse(autosaver.saveIfUnchanged(revert));
+        assertEquals("Changed elsewhere", queryNote(note1Uri));
+        assertEquals(0, conflicts[0]);
+
+        // Autosave subtest 4.
+        // A save is written over it, and the conflict is reported. Only the text was changed in
+        // the editor, so the title that the other writer changed is kept, by this save and the
+        // next one.
+        ContentValues renamed = new ContentValues();
+        renamed.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed elsewhere");
+        assertEquals(1, mMockResolver.update(note1Uri, renamed, null, null));
+
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Typed again");
+        autosaver.flush(new ContentValues(values));
+        assertEquals(1, conflicts[0]);
+        assertEquals("Typed again", queryNote(note1Uri));
+
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Typed once more");
+        autosaver.flush(new ContentValues(values));
+        assertEquals("Typed once more", queryNote(note1Uri));
+        assertEquals(note1Uri, noteUriForTitle("Renamed elsewhere"));
+    }
+
+    // Returns the modification date of a note, read straight from the database.
+    private long queryModified(Uri noteUri) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?",
+                new String[] { Long.toString(ContentUris.parseId(noteUri)) });
+    }
+
+    // Returns the text of a note, read through the provider.
+    private String queryNote(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the version of a note, read straight from the database.
+    private long queryVersion(Uri noteUri) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT " + NotePad.Notes.COLUMN_NAME_VERSION
+                + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?",
+                new String[] { Long.toString(ContentUris.parseId(noteUri)) });
+    }
+
+    // Returns a note's URI for an update on the condition of the given version.
+    private static Uri expectVersion(Uri noteUri, long version) {
+        return noteUri.buildUpon().appendQueryParameter(
+                NotePad.Notes.QUERY_PARAMETER_EXPECTED_VERSION, Long.toString(version)).build();
+    }
+
+    /*
+     * Tests that the provider keeps each note's preview in step with its text, and that the
+     * preview can be read without the text.
+     */
+    public void testPreviews() {
+        // Preview subtest 1.
+        // Inserts a note whose text starts with whitespace and spans several lines.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "  First line\n\n\tsecond   line ");
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, "Ignored");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals("First line second line", queryPreview(noteUri));
+
+        // Preview subtest 2.
+        // Replaces the text with one longer than a preview.
+        StringBuilder longText = new StringBuilder();
+        while (longText.length() <= NotePadProvider.PREVIEW_LENGTH) {
+            longText.append("word ");
+        }
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longText.toString());
+        mMockResolver.update(noteUri, values, null, null);
+
+        String preview = queryPreview(noteUri);
+        assertTrue(preview.length() <= NotePadProvider.PREVIEW_LENGTH);
+        assertTrue(longText.toString().startsWith(preview));
+
+        // Preview subtest 3.
+        // Tests that the preview can't be written on its own.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, "Ignored");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals(preview, queryPreview(noteUri));
+    }
+
+    /*
+     * Returns the preview of a note.
+     */
+    private String queryPreview(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_PREVIEW }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that notes stored compressed read back the same as notes stored as text.
+     */
+    public void testCompressedBodies() throws IOException {
+        getProvider().setCompressionThresholdForTest(64);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("Line ").append(i).append(" of a long note about the meeting. ");
+        }
+        String note = text.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long note");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+
+        // Compression subtest 1.
+        // The text is stored compressed, and queries return it as text.
+        assertEquals("blob", DatabaseUtils.stringForQuery(mDb, "SELECT typeof("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePadProvider.BODIES_TABLE_NAME
+                + " WHERE " + NotePadProvider.BODIES_COLUMN_NAME_NOTE_ID + " = " + noteId, null));
+
+        Cursor cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        int noteColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(noteColumn));
+        assertEquals(note, cursor.getString(noteColumn));
+        cursor.close();
+
+        // Compression subtest 2.
+        // The text written to a pipe is the text of the note.
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        BufferedReader reader = new BufferedReader(new FileReader(
+                descriptor.getParcelFileDescriptor().getFileDescriptor()));
+        assertEquals("Long note", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals(note, reader.readLine());
+        reader.close();
+
+        // Compression subtest 3.
+        // Compressed text is still searchable, and so is the text that replaces it.
+        assertEquals(1, mMockResolver.query(searchUri("meeting"), null, null, null, null)
+                .getCount());
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note.replace("meeting", "workshop"));
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, mMockResolver.query(searchUri("meeting"), null, null, null, null)
+                .getCount());
+        assertEquals(1, mMockResolver.query(searchUri("workshop"), null, null, null, null)
+                .getCount());
+
+        // Compression subtest 4.
+        // Short text, and any text once compression is turned off, is stored as text.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals("text", DatabaseUtils.stringForQuery(mDb, "SELECT typeof("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePadProvider.BODIES_TABLE_NAME
+                + " WHERE " + NotePadProvider.BODIES_COLUMN_NAME_NOTE_ID + " = " + noteId, null));
+
+        getProvider().setCompressionThresholdForTest(-1);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals("text", DatabaseUtils.stringForQuery(mDb, "SELECT typeof("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePadProvider.BODIES_TABLE_NAME
+                + " WHERE " + NotePadProvider.BODIES_COLUMN_NAME_NOTE_ID + " = " + noteId, null));
+    }
+
+    /*
+     * Tests paging through the notes URI. Each page resumes after the last note of the previous
+     * one, so the pages must add up to the whole list, in order, even when two notes share a
+     * modification date.
+     */
+    public void testPagedQueries() {
+        insertData();
+
+        // Gives Note3 the same modification date as Note4. Note4 has the larger ID, so it comes
+        // first.
+        mDb.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = "
+                + TEST_NOTES[4].modDate + " WHERE " + NotePad.Notes.COLUMN_NAME_TITLE
+                + " = '" + TEST_NOTES[3].title + "'");
+
+        final String[] PAGE_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        // Paged query subtest 1.
+        // Reads the whole list three notes at a time.
+        ArrayList<String> titles = new ArrayList<>();
+        int pages = 0;
+        Uri pageUri = pageUri(3, null, null);
+        while (pageUri != null) {
+            Cursor cursor = mMockResolver.query(pageUri, PAGE_PROJECTION, null, null, null);
+            assertTrue(cursor.getCount() <= 3);
+            pages++;
+
+            pageUri = null;
+            while (cursor.moveToNext()) {
+                titles.add(cursor.getString(1));
+                if (cursor.isLast() && cursor.getCount() == 3) {
+                    pageUri = pageUri(3, cursor.getLong(2), cursor.getLong(0));
+                }
+            }
+            cursor.close();
+        }
+
+        // Asserts that every note was returned once, newest first.
+        assertEquals(TEST_NOTES.length, titles.size());
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            assertEquals(TEST_NOTES[TEST_NOTES.length - 1 - index].title, titles.get(index));
+        }
+        assertEquals(4, pages);
+
+        // Paged query subtest 2.
+        // Tests that a selection is combined with the page position.
+        Cursor cursor = mMockResolver.query(
+            pageUri(3, TEST_NOTES[8].modDate, 9L),
+            PAGE_PROJECTION,
+            NotePad.Notes.COLUMN_NAME_TITLE + " != ?",
+            new String[] { TEST_NOTES[6].title },
+            null
+        );
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[7].title, cursor.getString(1));
+        assertTrue(cursor.moveToNext());
+        assertEquals(TEST_NOTES[5].title, cursor.getString(1));
+        cursor.close();
+
+        // Paged query subtest 3.
+        // Tests that invalid page parameters are rejected.
+        try {
+            mMockResolver.query(pageUri(0, null, null), PAGE_PROJECTION, null, null, null);
+            fail("Expected a failure for an empty page but the query succeeded.");
+        } catch (IllegalArgumentException e) {
+          // succeeded, so do nothing.
+        }
+        try {
+            mMockResolver.query(
+                NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "3")
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID, "9")
+                    .build(),
+                PAGE_PROJECTION, null, null, null);
+            fail("Expected a failure for a page position without a date but the query succeeded.");
+        } catch (IllegalArgumentException e) {
+          // succeeded, so do nothing.
+        }
+    }
+
+    /*
+     * Returns the URI of a page of notes that starts after the given note, or at the newest note
+     * if afterModified is null.
+     */
+    private static Uri pageUri(int limit, Long afterModified, Long afterId) {
+        Uri.Builder builder = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, Integer.toString(limit));
+        if (afterModified != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_MODIFIED,
+                    afterModified.toString());
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID,
+                    afterId.toString());
+        }
+        return builder.build();
+    }
+
+    /*
+     * Tests full-text search through the search URI. The search index is maintained by triggers,
+     * so it must follow inserts, updates and deletes made on the notes table.
+     */
+    public void testSearch() {
+        // Inserts the test data into the provider's underlying data source
+        insertData();
+
+        // Subtest 1.
+        // Every test note contains the word "note", and "not" is a prefix of it.
+        Cursor cursor = mMockResolver.query(searchUri("not"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // Subtest 2.
+        // Every term must match, and a selection passed by the caller is combined with the match.
+        cursor = mMockResolver.query(searchUri("note 3"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+
+        cursor = mMockResolver.query(
+            searchUri("note"),                                    // search for "note"
+            null,                                                 // get all columns
+            NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?)",       // select on the title column
+            new String[] { "Note2", "Note7" },                    // titles "Note2" or "Note7"
+            null                                                  // use the ranked order
+        );
+        assertEquals(2, cursor.getCount());
+
+        // The caller can also select on the text and sort by the title, which the search index
+        // has columns of its own for.
+        cursor = mMockResolver.query(searchUri("note"),
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE },
+                NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?", new String[] { "%note 2" },
+                NotePad.Notes.COLUMN_NAME_TITLE + " DESC");
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Note2", cursor.getString(0));
+        cursor.close();
+
+        // Subtest 3.
+        // A note that matches the terms more often is ranked ahead of the others.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "note after note after note");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note4" });
+
+        cursor = mMockResolver.query(searchUri("note"),
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Note4", cursor.getString(0));
+
+        // Subtest 4.
+        // Updated and deleted notes leave the index.
+        cursor = mMockResolver.query(searchUri("this"), null, null, null, null);
+        assertEquals(TEST_NOTES.length - 1, cursor.getCount());
+
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note0" });
+        cursor = mMockResolver.query(searchUri("this"), null, null, null, null);
+        assertEquals(TEST_NOTES.length - 2, cursor.getCount());
+
+        // Subtest 5.
+        // Terms that the tokenizer can't split into words fall back to a substring match.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "今天开会");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note5" });
+        cursor = mMockResolver.query(searchUri("开会"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+    }
+
+    // Builds a search URI for the given terms.
+    private static Uri searchUri(String terms) {
+        return NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, terms)
+                .build();
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import java.util.ArrayList;
+
+/**
+ * This class guards the query plans of the selections that NotesList sends to the provider.
+ * Each selection is run through EXPLAIN QUERY PLAN, and the test fails if SQLite reads the whole
+ * notes table or sorts the results into a temporary B-tree instead of using an index.
+ */
+public class NotePadQueryPlanTest extends ProviderTestCase2<NotePadProvider> {
+
+    // The category filters offered by NotesList. null means "all categories".
+    private static final Long[] CATEGORY_FILTERS = { null, 1L };
+
+    // The to-do filters offered by NotesList.
+    private static final int[] TODO_FILTERS = {
+        NotesList.TODO_FILTER_ALL,
+        NotesList.TODO_FILTER_ONLY_TODO,
+        NotesList.TODO_FILTER_ONLY_DONE
+    };
+
+    // Contains an SQLite database, used to explain the queries
+    private SQLiteDatabase mDb;
+
+    /*
+     * Constructor for the test case class.
+     * Calls the super constructor with the class name of the provider under test and the
+     * authority name of the provider.
+     */
+    public NotePadQueryPlanTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    /*
+     * Sets up the test environment before each test method. Gets the database underlying the
+     * provider under test.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    }
+
+    /*
+     * Tests every combination of the category and to-do filters on the notes URI, sorted by the
+     * modification date as NotesList sorts them. Walking an index in order is allowed, since the
+     * unfiltered list does need every row; scanning the table or sorting is not.
+     */
+    public void testListSelectionsUseIndexes() {
+        for (Long category : CATEGORY_FILTERS) {
+            for (int todoFilter : TODO_FILTERS) {
+                ArrayList<String> args = new ArrayList<>();
+                String selection = NotesList.buildSelection(category, todoFilter, args);
+
+                String plan = explain(NotePad.Notes.CONTENT_URI, selection, args,
+                        NotePad.Notes.DEFAULT_SORT_ORDER);
+
+                assertFalse("full table scan for " + selection + ": " + plan,
+                        hasTableScan(plan));
+                assertFalse("sort without an index for " + selection + ": " + plan,
+                        plan.contains("TEMP B-TREE"));
+            }
+        }
+    }
+
+    /*
+     * Tests the same combinations on a page of the notes URI that starts after a given note, as
+     * NotesList requests them while the user scrolls. The page position must narrow the index
+     * walk, and the tie-breaking order on _ID must not add a sort.
+     */
+    public void testPagedSelectionsUseIndexes() {
+        Uri pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "50")
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_MODIFIED, "1000")
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID, "10")
+                .build();
+
+        for (Long category : CATEGORY_FILTERS) {
+            for (int todoFilter : TODO_FILTERS) {
+                ArrayList<String> args = new ArrayList<>();
+                String selection = NotesList.buildSelection(category, todoFilter, args);
+
+                String plan = explain(pageUri, selection, args, null);
+
+                assertFalse("full table scan for " + selection + ": " + plan,
+                        hasTableScan(plan));
+                assertFalse("sort without an index for " + selection + ": " + plan,
+                        plan.contains("TEMP B-TREE"));
+            }
+        }
+    }
+
+    /*
+     * Tests the same combinations on the search URI. Matches are found through the search index
+     * and joined to the notes by primary key. Ranking sorts the matched rows only, so a temporary
+     * B-tree for the ORDER BY is expected here, but reading the whole notes table is not.
+     */
+    public void testSearchSelectionsUseIndexes() {
+        Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "note")
+                .build();
+
+        for (Long category : CATEGORY_FILTERS) {
+            for (int todoFilter : TODO_FILTERS) {
+                ArrayList<String> args = new ArrayList<>();
+                String selection = NotesList.buildSelection(category, todoFilter, args);
+
+                String plan = explain(searchUri, selection, args, null);
+
+                assertFalse("full table scan for " + selection + ": " + plan,
+                        hasTableScan(plan));
+            }
+        }
+    }
+
+    /*
+     * Tests the trash, listed most recently deleted first. The notes in it are the end of the
+     * same indexes that the lists walk, so neither a scan nor a sort is allowed.
+     */
+    public void testTrashUsesIndexes() {
+        String plan = explain(NotePad.Notes.CONTENT_TRASH_URI, null, new ArrayList<String>(),
+                null);
+
+        assertFalse("full table scan for the trash: " + plan, hasTableScan(plan));
+        assertFalse("sort without an index for the trash: " + plan,
+                plan.contains("TEMP B-TREE"));
+    }
+
+    /*
+     * Runs EXPLAIN QUERY PLAN on the statement the provider builds for the given URI and
+     * selection, and returns the plan's detail lines joined by newlines.
+     */
+    private String explain(Uri uri, String selection, ArrayList<String> args, String sortOrder) {
+        String[] selectionArgs = selection != null ? args.toArray(new String[0]) : null;
+        NotePadProvider.QuerySpec spec = getProvider().buildQuery(
+                uri, NotesList.PROJECTION, selection, selectionArgs, sortOrder);
+
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + spec.sql, spec.selectionArgs);
+        StringBuilder plan = new StringBuilder();
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailIndex)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+
+    /*
+     * Returns true if any step of the plan reads a table without an index. Depending on the
+     * SQLite version, a step reads "SCAN TABLE notes" or "SCAN notes"; index walks and search
+     * index lookups name the index they use.
+     */
+    private static boolean hasTableScan(String plan) {
+        for (String step : plan.split("\n")) {
+            if (step.startsWith("SCAN") && !step.contains("INDEX")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Handler;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Saves the note that NoteEditor is editing while the user types.
+ *
+ * Each edit restarts a pause timer. When the user has stopped typing for the length of the pause,
+ * the editor's values are read on the main thread and written on a background thread. A save
+ * compares a digest of each value with the digest of the value last read or written, and sends
+ * only the columns that changed, along with a new modification date. A save that changes nothing
+ * writes nothing, so the note keeps its place in the list.
+ *
+ * Writes are made one at a time: a save waits for the one in flight to finish, and values read
+ * while a background save is waiting replace the ones it was going to write. Each write is
+ * conditional on the note's {@link NotePad.Notes#COLUMN_NAME_VERSION}, as last read or written.
+ */
+final class NoteAutosaver {
+
+    /**
+     * Supplies the values to save. It is called on the main thread.
+     */
+    interface Source {
+        /**
+         * Returns the note's columns as the editor shows them, such as its title and text.
+         */
+        ContentValues getValues();
+    }
+
+    /**
+     * Hears about saves that found the note changed by another writer. The columns changed on the
+     * screen were written anyway, and the other writer's changes to the rest were kept. It is
+     * called on the thread that made the save.
+     */
+    interface Listener {
+        void onConflict();
+    }
+
+    // The digest of a null value. A digest of any string is longer.
+    private static final byte[] NULL_DIGEST = new byte[0];
+
+    private final ContentResolver mResolver;
+    private final Uri mNoteUri;
+    private final Handler mMainHandler;
+    private final Handler mSaveHandler;
+    private final long mDelayMillis;
+    private final Source mSource;
+    private final Listener mListener;
+
+    // The values read at the end of the last pause, waiting for the background save, or null.
+    private ContentValues mPendingValues;
+
+    // The digest of each column as last read or written. A column without one is always written.
+    private final HashMap<String, byte[]> mSavedDigests = new HashMap<String, byte[]>();
+
+    // The note's version as last read or written, or 0 if it isn't known.
+    private long mVersion;
+
+    private long mWrites;
+    private long mSkips;
+
+    // Reads the editor's values once the user stops typing, and hands them to the save thread.
+    private final Runnable mCapture = new Runnable() {
+        @Override
+        public void run() {
+            ContentValues values = mSource.getValues();
+            synchronized (NoteAutosaver.this) {
+                boolean queued = mPendingValues != null;
+                mPendingValues = values;
+                if (queued) {
+                    return;
+                }
+            }
+            mSaveHandler.post(mSavePending);
+        }
+    };
+
+    // Writes the values waiting for the save thread, if they haven't been saved or dropped.
+    private final Runnable mSavePending = new Runnable() {
+        @Override
+        public void run() {
+            ContentValues values;
+            synchronized (NoteAutosaver.this) {
+                values = mPendingValues;
+                mPendingValues = null;
+            }
+            if (values != null) {
+                save(values, true);
+            }
+        }
+    };
+
+    /**
+     * @param resolver The resolver that the note is written through.
+     * @param noteUri The URI of the note.
+     * @param mainHandler A handler on the main thread, which times the pauses.
+     * @param saveHandler A handler on the thread that writes the note.
+     * @param delayMillis The length of the pause after which the note is saved. If it is 0 or
+     * less, the note is only saved by {@link #flush}.
+     * @param source Supplies the values to save.
+     * @param listener Hears about conflicts with other writers.
+     */
+    NoteAutosaver(ContentResolver resolver, Uri noteUri, Handler mainHandler, Handler saveHandler,
+            long delayMillis, Source source, Listener listener) {
+        mResolver = resolver;
+        mNoteUri = noteUri;
+        mMainHandler = mainHandler;
+        mSaveHandler = saveHandler;
+        mDelayMillis = delayMillis;
+        mSource = source;
+        mListener = listener;
+    }
+
+    /**
+     * Records the note as it was just read, so that later saves send only what differs from it.
+     *
+     * @param version The note's version, or 0 if it isn't known.
+     * @param values The columns that were read.
+     */
+    synchronized void reset(long version, ContentValues values) {
+        mVersion = version;
+        mSavedDigests.clear();
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            mSavedDigests.put(entry.getKey(), digest(values.getAsString(entry.getKey())));
+        }
+    }
+
+    /**
+     * Restarts the pause after which the note is saved. It is called on the main thread for
+     * each edit.
+     */
+    void onEdited() {
+        if (mDelayMillis <= 0) {
+            return;
+        }
+        mMainHandler.removeCallbacks(mCapture);
+        mMainHandler.postDelayed(mCapture, mDelayMillis);
+    }
+
+    /**
+     * Saves the given values now, instead of after the pause, and drops any save that is
+     * waiting. It is called on the main thread, and returns once the note is written.
+     */
+    void flush(ContentValues values) {
+        cancel();
+        save(values, true);
+    }
+
+    /**
+     * Writes the given values only if no other writer changed the note since it was last read
+     * or written, and drops any save that is waiting. It is called on the main thread.
+     *
+     * @return False if another writer changed the note first, and nothing was written.
+     */
+    boolean saveIfUnchanged(ContentValues values) {
+        cancel();
+        return save(values, false);
+    }
+
+    /**
+     * Drops the save that is waiting for the pause to end or for the save thread, if any. A
+     * write already in flight still finishes.
+     */
+    void cancel() {
+        mMainHandler.removeCallbacks(mCapture);
+        synchronized (this) {
+            mPendingValues = null;
+        }
+    }
+
+    /**
+     * Returns the number of saves that wrote the note.
+     */
+    synchronized long writes() {
+        return mWrites;
+    }
+
+    /**
+     * Returns the number of saves that found nothing to write.
+     */
+    synchronized long skips() {
+        return mSkips;
+    }
+
+    /**
+     * Writes the columns whose values differ from the ones last read or written. Holding the
+     * lock while writing keeps a second write of the note from starting before this one ends.
+     *
+     * @param overwrite Whether to write the values anyway if another writer changed the note.
+     * @return False if another writer changed the note and nothing was written.
+     */
+    private synchronized boolean save(ContentValues values, boolean overwrite) {
+        HashMap<String, byte[]> digests = new HashMap<String, byte[]>();
+        ContentValues changed = new ContentValues();
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            String column = entry.getKey();
+            byte[] digest = digest(values.getAsString(column));
+            digests.put(column, digest);
+            if (!Arrays.equals(digest, mSavedDigests.get(column))) {
+                changed.put(column, values.getAsString(column));
+            }
+        }
+        if (changed.size() == 0) {
+            mSkips++;
+            return true;
+        }
+        changed.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+
+        if (mVersion == 0) {
+            mResolver.update(mNoteUri, changed, null, null);
+        } else {
+            Uri uri = mNoteUri.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_EXPECTED_VERSION,
+                            Long.toString(mVersion))
+                    .build();
+            if (mResolver.update(uri, changed, null, null) > 0) {
+                // The provider adds 1 to the version on every write.
+                mVersion++;
+            } else if (!overwrite) {
+                return false;
+            } else {
+                // Another writer changed the note. Only the columns changed here are written, so
+                // the other writer's changes to the rest are kept. The version is unknown until
+                // the note is read again.
+                mVersion = 0;
+                if (mResolver.update(mNoteUri, changed, null, null) > 0) {
+                    mListener.onConflict();
+                }
+            }
+        }
+
+        mSavedDigests.putAll(digests);
+        mWrites++;
+        return true;
+    }
+
+    // Returns the SHA-1 digest of a value's UTF-8 bytes.
+    private static byte[] digest(String value) {
+        if (value == null) {
+            return NULL_DIGEST;
+        }
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.MatrixCursor;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the rows of recently read notes, so that NotePadProvider can answer repeated queries for
+ * a single note without reading the database. The cache is bounded by the estimated size of the
+ * rows in memory, not by their number, since one long note can take as much memory as thousands
+ * of short ones. The least recently read rows are evicted first.
+ *
+ * A row read from the database must not be cached if the note changed while it was being read.
+ * Each invalidation advances a generation number. A reader takes the generation before it reads
+ * the database and passes it to {@link #put}, which drops the row if any invalidation has
+ * happened since.
+ */
+final class NoteCache {
+
+    /**
+     * The columns kept for each note, in the order of the values in a cached row
+     */
+    static final String[] COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+            NotePad.Notes.COLUMN_NAME_IS_TODO,
+            NotePad.Notes.COLUMN_NAME_IS_DONE,
+            NotePad.Notes.COLUMN_NAME_VERSION
+    };
+
+    // The estimated size of a row apart from its strings, in bytes.
+    private static final int ROW_OVERHEAD = 16 + 16 * COLUMNS.length;
+
+    private final long mMaxBytes;
+
+    // The cached rows, keyed by note ID, in order of last use.
+    private final LinkedHashMap<Long, Object[]> mRows =
+            new LinkedHashMap<Long, Object[]>(16, 0.75f, true);
+
+    private long mBytes;
+    private long mGeneration;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    /**
+     * @param maxBytes The estimated size of the rows that the cache holds at most. If it is 0
+     * or less, nothing is cached.
+     */
+    NoteCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns true if every column of a projection is kept by the cache. A null projection
+     * asks for all of them.
+     */
+    static boolean covers(String[] projection) {
+        return projection == null
+                || Arrays.asList(COLUMNS).containsAll(Arrays.asList(projection));
+    }
+
+    /**
+     * Returns the cached row of a note, or null if it isn't cached. Counts a hit or a miss.
+     */
+    synchronized Object[] get(long noteId) {
+        Object[] row = mRows.get(noteId);
+        if (row != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return row;
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} with a row read afterwards.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the row of a note, unless the cache was invalidated after the given generation or
+     * the row alone would take more than a quarter of the cache.
+     */
+    synchronized void put(long noteId, Object[] row, long generation) {
+        long size = sizeOf(row);
+        if (generation != mGeneration || size > mMaxBytes / 4) {
+            return;
+        }
+
+        Object[] previous = mRows.put(noteId, row);
+        if (previous != null) {
+            mBytes -= sizeOf(previous);
+        }
+        mBytes += size;
+
+        Iterator<Object[]> eldest = mRows.values().iterator();
+        while (mBytes > mMaxBytes && eldest.hasNext()) {
+            mBytes -= sizeOf(eldest.next());
+            eldest.remove();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Removes the rows of the given notes.
+     */
+    synchronized void invalidate(long... noteIds) {
+        mGeneration++;
+        for (long noteId : noteIds) {
+            Object[] row = mRows.remove(noteId);
+            if (row != null) {
+                mBytes -= sizeOf(row);
+            }
+        }
+    }
+
+    /**
+     * Removes every row.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mRows.clear();
+        mBytes = 0;
+    }
+
+    synchronized long hits() {
+        return mHits;
+    }
+
+    synchronized long misses() {
+        return mMisses;
+    }
+
+    synchronized long evictions() {
+        return mEvictions;
+    }
+
+    synchronized long bytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns a cursor over a cached row, with the columns of a projection, or all of the
+     * cached columns if the projection is null.
+     *
+     * @param row The row, or null for an empty cursor.
+     */
+    static MatrixCursor toCursor(Object[] row, String[] projection) {
+        String[] columns = projection != null ? projection : COLUMNS;
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        if (row != null) {
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = row[Arrays.asList(COLUMNS).indexOf(columns[i])];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    // Estimates the memory that a row takes, counting two bytes for each character.
+    private static long sizeOf(Object[] row) {
+        long size = ROW_OVERHEAD;
+        for (Object value : row) {
+            if (value instanceof String) {
+                size += 40 + 2L * ((String) value).length();
+            } else if (value instanceof byte[]) {
+                size += 16 + ((byte[]) value).length;
+            }
+        }
+        return size;
+    }
+}
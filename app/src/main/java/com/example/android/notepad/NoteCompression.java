@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.SQLException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the text of large notes for storage, and reads it back.
+ *
+ * NotePadProvider stores the text of a note in the note column of the body table. Text longer
+ * than the provider's threshold is stored there as a BLOB holding the DEFLATE-compressed UTF-8
+ * bytes of the text, instead of as TEXT. SQLite keeps the type of each value, so the two kinds
+ * of value can be told apart when they are read. Cursors returned by the provider are wrapped in
+ * a {@link DecompressingCursor}, so callers only ever see text.
+ */
+final class NoteCompression {
+
+    // The size of the buffer used to inflate and deflate, in bytes.
+    private static final int BUFFER_SIZE = 8192;
+
+    private NoteCompression() {
+    }
+
+    /**
+     * Returns the value to store for a note's text: the text itself, or its compressed bytes if
+     * the text is longer than the threshold and compressing it makes it smaller.
+     *
+     * @param note The note's text, or null.
+     * @param threshold The length in characters above which the text is compressed, or a
+     * negative number to never compress.
+     * @return A String, a byte[] or null.
+     */
+    static Object toStoredValue(String note, int threshold) {
+        if (note == null || threshold < 0 || note.length() <= threshold) {
+            return note;
+        }
+
+        byte[] bytes = toUtf8(note);
+        byte[] compressed = deflate(bytes);
+        return compressed.length < bytes.length ? compressed : note;
+    }
+
+    /**
+     * Returns the text that was compressed into the given bytes.
+     *
+     * @throws SQLException if the bytes aren't a compressed note.
+     */
+    static String decompress(byte[] compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new SQLException("Truncated note body");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } catch (DataFormatException e) {
+            throw new SQLException("Corrupt note body: " + e.getMessage());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Compresses bytes with DEFLATE, in the zlib format.
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Encodes a text as UTF-8.
+    private static byte[] toUtf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A cursor that returns the text of compressed notes in place of their compressed bytes.
+     * Only the column at the given index is affected. Values in it that are stored as TEXT are
+     * returned as they are.
+     */
+    static class DecompressingCursor extends CursorWrapper {
+
+        // The index of the column that holds the note text.
+        private final int mNoteColumn;
+
+        DecompressingCursor(Cursor cursor, int noteColumn) {
+            super(cursor);
+            mNoteColumn = noteColumn;
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex == mNoteColumn && super.getType(columnIndex) == FIELD_TYPE_BLOB) {
+                return decompress(super.getBlob(columnIndex));
+            }
+            return super.getString(columnIndex);
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            int type = super.getType(columnIndex);
+            if (columnIndex == mNoteColumn && type == FIELD_TYPE_BLOB) {
+                return FIELD_TYPE_STRING;
+            }
+            return type;
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            if (columnIndex == mNoteColumn && super.getType(columnIndex) == FIELD_TYPE_BLOB) {
+                char[] text = getString(columnIndex).toCharArray();
+                buffer.data = text;
+                buffer.sizeCopied = text.length;
+                return;
+            }
+            super.copyStringToBuffer(columnIndex, buffer);
+        }
+    }
+}
@@ -33,12 +33,18 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.EditText;
+import android.widget.Toast;
 
 /**
  * This Activity handles "editing" a note, where editing is responding to
@@ -62,7 +68,8 @@ public class NoteEditor extends Activity {
         new String[] {
             NotePad.Notes._ID,
             NotePad.Notes.COLUMN_NAME_TITLE,
-            NotePad.Notes.COLUMN_NAME_NOTE
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_VERSION
     };
 
     // A label for the saved state of the activity
@@ -81,6 +88,10 @@ public class NoteEditor extends Activity {
     private EditText mText;
     private String mOriginalContent;
 
+    // Saves the note while the user types, on mSaveThread.
+    private NoteAutosaver mAutosaver;
+    private HandlerThread mSaveThread;
+
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
      */
@@ -200,6 +211,34 @@ public class NoteEditor extends Activity {
             return;
         }
 
+        // Starts the thread that saves the note while the user types. It must exist before a
+        // paste saves the note below.
+        mSaveThread = new HandlerThread("NoteAutosave", Process.THREAD_PRIORITY_BACKGROUND);
+        mSaveThread.start();
+        mAutosaver = new NoteAutosaver(getContentResolver(), mUri, new Handler(),
+                new Handler(mSaveThread.getLooper()),
+                getResources().getInteger(R.integer.note_autosave_delay),
+                new NoteAutosaver.Source() {
+                    @Override
+                    public ContentValues getValues() {
+                        String title = mTitle.getText().toString();
+                        return noteValues(mText.getText().toString(),
+                                title.isEmpty() ? null : title);
+                    }
+                },
+                new NoteAutosaver.Listener() {
+                    @Override
+                    public void onConflict() {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Toast.makeText(NoteEditor.this, R.string.note_changed_elsewhere,
+                                        Toast.LENGTH_LONG).show();
+                            }
+                        });
+                    }
+                });
+
         /*
          * Using the URI passed in with the triggering Intent, gets the note or notes in
          * the provider.
@@ -232,6 +271,27 @@ public class NoteEditor extends Activity {
         mTitle = (EditText) findViewById(R.id.title);
         mText  = (EditText) findViewById(R.id.note);
 
+        // 每次输入都重新计时，停止输入一段时间后自动保存
+        TextWatcher autosave = new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                // 笔记已删除或已撤销时不再保存
+                if (mCursor != null) {
+                    mAutosaver.onEdited();
+                }
+            }
+        };
+        mTitle.addTextChangedListener(autosave);
+        mText.addTextChangedListener(autosave);
+
         /*
          * If this Activity had stopped previously, its state was written the ORIGINAL_CONTENT
          * location in the saved Instance state. This gets the state.
@@ -258,8 +318,16 @@ public class NoteEditor extends Activity {
          * process. This tests that it's not null, since it should always contain data.
          */
         if (mCursor != null) {
-            // Requery in case something changed while paused (such as the title)
-            mCursor.requery();
+            // Queries the note again in case something changed while paused (such as the title).
+            // The provider answers a single note from its cache with a cursor that requery()
+            // doesn't refresh, so the old cursor is replaced instead.
+            Cursor cursor = getContentResolver().query(mUri, PROJECTION, null, null, null);
+            if (cursor != null) {
+                stopManagingCursor(mCursor);
+                mCursor.close();
+                mCursor = cursor;
+                startManagingCursor(mCursor);
+            }
 
             /* Moves to the first record. Always call moveToFirst() before accessing data in
              * a Cursor for the first time. The semantics of using a Cursor are that when it is
@@ -300,6 +368,18 @@ public class NoteEditor extends Activity {
                 mOriginalContent = note;
             }
 
+            // Tells the autosaver what was read, so that it saves only what the user changes
+            // from here, and only if no other writer changes the note in the meantime. The text
+            // set above isn't an edit, so the save that it scheduled is dropped.
+            ContentValues saved = new ContentValues();
+            saved.put(NotePad.Notes.COLUMN_NAME_TITLE,
+                    mCursor.getString(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+            saved.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+            mAutosaver.reset(
+                    mCursor.getLong(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_VERSION)),
+                    saved);
+            mAutosaver.cancel();
+
         /*
          * Something is wrong. The Cursor should always contain data. Report an error in the
          * note.
@@ -381,6 +461,18 @@ public class NoteEditor extends Activity {
         }
     }
 
+    /**
+     * Stops the thread that saves the note while the user types. onPause() has already saved
+     * the note, so no save is waiting.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mSaveThread != null) {
+            mSaveThread.quit();
+        }
+    }
+
     /**
      * This method is called when the user clicks the device's Menu button the first time for
      * this Activity. Android passes in a Menu object that is populated with items.
@@ -523,14 +615,35 @@ public class NoteEditor extends Activity {
 
     /**
      * Replaces the current note contents with the text and title provided as arguments.
+     * Columns that are already saved with the same values aren't written, and the note is left
+     * as it is if nothing changed.
      * @param text The new note contents to use.
      * @param title The new note title to use
      */
     private final void updateNote(String text, String title) {
 
+        /*
+         * Updates the provider with the values that changed. The ListView is updated
+         * automatically. The provider sets this up by setting the notification URI for
+         * query Cursor objects to the incoming URI. The content resolver is thus
+         * automatically notified when the Cursor for the URI changes, and the UI is
+         * updated.
+         * Note: This is being done on the UI thread. It will block the thread until the
+         * update completes, and until any autosave in flight on mSaveThread completes.
+         */
+        mAutosaver.flush(noteValues(text, title));
+    }
+
+    /**
+     * Returns the values that save the given text and title. The modification date is set by
+     * the autosaver, only if a value changed.
+     * @param text The note contents.
+     * @param title The note title, or null to keep the title of a saved note.
+     */
+    private final ContentValues noteValues(String text, String title) {
+
         // Sets up a map to contain values to be updated in the provider.
         ContentValues values = new ContentValues();
-        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
 
         // If the action is to insert a new note, this creates an initial title for it.
         if (mState == STATE_INSERT) {
@@ -563,26 +676,7 @@ public class NoteEditor extends Activity {
 
         // This puts the desired notes text into the map.
         values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
-
-        /*
-         * Updates the provider with the new values in the map. The ListView is updated
-         * automatically. The provider sets this up by setting the notification URI for
-         * query Cursor objects to the incoming URI. The content resolver is thus
-         * automatically notified when the Cursor for the URI changes, and the UI is
-         * updated.
-         * Note: This is being done on the UI thread. It will block the thread until the
-         * update completes. In a sample app, going against a simple provider based on a
-         * local database, the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
-         */
-        getContentResolver().update(
-                mUri,    // The URI for the record to update.
-                values,  // The map of column names and new values to apply to them.
-                null,    // No selection criteria are used, so no where columns are necessary.
-                null     // No where columns are used, so no where arguments are necessary.
-            );
-
-
+        return values;
     }
 
     /**
@@ -597,7 +691,13 @@ public class NoteEditor extends Activity {
                 mCursor = null;
                 ContentValues values = new ContentValues();
                 values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+
+                // If another writer changed the note since this Activity read it, its text is
+                // newer than the original, so it is kept.
+                if (!mAutosaver.saveIfUnchanged(values)) {
+                    Toast.makeText(this, R.string.revert_changed_elsewhere, Toast.LENGTH_LONG)
+                            .show();
+                }
             } else if (mState == STATE_INSERT) {
                 // We inserted an empty note, make sure to delete it
                 deleteNote();
@@ -616,6 +716,9 @@ public class NoteEditor extends Activity {
             mCursor = null;
             getContentResolver().delete(mUri, null, null);
             mText.setText("");
+
+            // Drops any save that is waiting, including the one that clearing the text started.
+            mAutosaver.cancel();
         }
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentProvider.PipeDataWriter;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Writes every note that isn't in the trash to a pipe as JSON Lines ({@link NotePad.Notes#EXPORT_MIME_TYPE}): one JSON
+ * object per line, with the columns in {@link #COLUMNS} as its keys.
+ *
+ * The notes are read in batches of {@link #BATCH_SIZE}, in _ID order, each batch starting after
+ * the last note of the one before, and each note is written to the pipe as soon as it is read.
+ * Only one batch's cursor window and one note's text are in memory at a time, however many
+ * notes there are and however long they are.
+ *
+ * Where the platform has {@link SQLiteDatabase}'s beginTransactionReadOnly(), all of the batches
+ * are read in one deferred, read-only transaction. It reads a snapshot of the write-ahead log
+ * on one of the pool's reader connections, so the export is consistent even if notes change
+ * while it runs, and writers aren't held up by a slow pipe reader. Elsewhere no transaction is
+ * held, since the older transactions all take the write lock: each batch is then consistent on
+ * its own, but a note changed after its batch was read is written as it was, and one added
+ * after the last batch was read isn't written at all.
+ */
+final class NoteExporter implements PipeDataWriter<SQLiteDatabase> {
+
+    // Used for debugging and logging
+    private static final String TAG = "NoteExporter";
+
+    /**
+     * The columns written for each note, which are also the keys of its JSON object. The
+     * preview isn't written, since it is computed from the text.
+     */
+    static final String[] COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_IS_TODO,
+            NotePad.Notes.COLUMN_NAME_IS_DONE
+    };
+
+    // The position of the note text in COLUMNS.
+    private static final int NOTE_INDEX = 2;
+
+    // The position of the category name in COLUMNS. The name is read from the categories table.
+    private static final int CATEGORY_INDEX = 5;
+
+    // The number of notes read from the database at a time.
+    static final int BATCH_SIZE = 100;
+
+    // Reads the batch of notes that follows the note whose _ID is the argument.
+    private static final String BATCH_SQL;
+
+    static {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i == 0 ? "" : ", ");
+            if (i == CATEGORY_INDEX) {
+                sql.append(NotePadProvider.CATEGORY_NAME_SQL);
+                continue;
+            }
+            String table = i == NOTE_INDEX
+                    ? NotePadProvider.BODIES_TABLE_NAME : NotePad.Notes.TABLE_NAME;
+            sql.append(table).append('.').append(COLUMNS[i]);
+        }
+        sql.append(" FROM ").append(NotePad.Notes.TABLE_NAME).append(NotePadProvider.BODIES_JOIN)
+                .append(" WHERE ").append(NotePad.Notes.TABLE_NAME).append('.')
+                .append(NotePad.Notes.COLUMN_NAME_DELETED_DATE).append(" = 0 AND ")
+                .append(NotePad.Notes.TABLE_NAME).append('.')
+                .append(NotePad.Notes._ID).append(" > ? ORDER BY ")
+                .append(NotePad.Notes.TABLE_NAME).append('.').append(NotePad.Notes._ID)
+                .append(" LIMIT ").append(BATCH_SIZE);
+        BATCH_SQL = sql.toString();
+    }
+
+    // SQLiteDatabase.beginTransactionReadOnly(), or null if the platform doesn't have it. It was
+    // added in API level 35, after the SDK that the app is built against, so it is looked up
+    // when the class is loaded.
+    private static final Method BEGIN_READ_ONLY = findBeginReadOnly();
+
+    // Counts the bytes of each export.
+    private final ProviderMetrics mMetrics;
+
+    NoteExporter(ProviderMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+            Bundle opts, SQLiteDatabase db) {
+        long start = System.nanoTime();
+        ProviderMetrics.CountingOutputStream fout = new ProviderMetrics.CountingOutputStream(
+                new FileOutputStream(output.getFileDescriptor()));
+        Writer out = null;
+        boolean snapshot = beginReadOnly(db);
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(fout, "UTF-8"));
+            long lastId = Long.MIN_VALUE;
+            int count;
+            do {
+                Cursor c = new NoteCompression.DecompressingCursor(
+                        db.rawQuery(BATCH_SQL, new String[] { Long.toString(lastId) }),
+                        NOTE_INDEX);
+                try {
+                    count = 0;
+                    while (c.moveToNext()) {
+                        writeNote(out, c);
+                        lastId = c.getLong(0);
+                        count++;
+                    }
+                } finally {
+                    c.close();
+                }
+            } while (count == BATCH_SIZE);
+            out.flush();
+        } catch (IOException e) {
+            // The reader closed its end of the pipe before the export was done.
+            Log.w(TAG, "Export of " + uri + " ended early", e);
+        } finally {
+            if (snapshot) {
+                db.endTransaction();
+            }
+            try {
+                if (out != null) {
+                    out.close();
+                } else {
+                    fout.close();
+                }
+            } catch (IOException e) {
+            }
+            mMetrics.recordStream(NotePadProvider.patternOf(uri), start, fout.count());
+        }
+    }
+
+    // Writes the note at the cursor's position as one line of JSON.
+    private static void writeNote(Writer out, Cursor c) throws IOException {
+        out.write('{');
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(JSONObject.quote(COLUMNS[i]));
+            out.write(':');
+            switch (c.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    out.write("null");
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    out.write(Long.toString(c.getLong(i)));
+                    break;
+                default:
+                    out.write(JSONObject.quote(c.getString(i)));
+                    break;
+            }
+        }
+        out.write("}\n");
+    }
+
+    // Starts a read-only transaction if the platform has them, and returns true if it did.
+    private static boolean beginReadOnly(SQLiteDatabase db) {
+        if (BEGIN_READ_ONLY == null) {
+            return false;
+        }
+        try {
+            BEGIN_READ_ONLY.invoke(db);
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
+        } catch (InvocationTargetException e) {
+            Log.w(TAG, "Couldn't start a read-only transaction", e.getCause());
+            return false;
+        }
+    }
+
+    // Returns SQLiteDatabase.beginTransactionReadOnly(), or null if the platform doesn't have it.
+    private static Method findBeginReadOnly() {
+        try {
+            return SQLiteDatabase.class.getMethod("beginTransactionReadOnly");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
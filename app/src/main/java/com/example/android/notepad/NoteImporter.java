@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads notes from a stream of JSON Lines, in the format written by {@link NoteExporter}, one
+ * note at a time.
+ *
+ * Each line must be a JSON object. Its title, note and category must be strings, and its dates
+ * and to-do flags must be numbers. Keys that aren't note columns are ignored, and so is _ID,
+ * since imported notes get new IDs. A line that doesn't meet these rules, or that is longer
+ * than {@link #MAX_RECORD_LENGTH}, is skipped and counted instead of ending the import. Only one
+ * line is held in memory at a time, so memory use doesn't depend on the size of the stream.
+ */
+final class NoteImporter {
+
+    /**
+     * The longest line that is read, in characters. Longer lines are skipped without being
+     * held in memory.
+     */
+    static final int MAX_RECORD_LENGTH = 4 * 1024 * 1024;
+
+    // The columns read from each record that hold text.
+    private static final String[] TEXT_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY
+    };
+
+    // The columns read from each record that hold numbers.
+    private static final String[] NUMBER_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_IS_TODO,
+            NotePad.Notes.COLUMN_NAME_IS_DONE
+    };
+
+    private final Reader mIn;
+    private final char[] mBuffer = new char[8192];
+    private int mBufferPosition;
+    private int mBufferLength;
+
+    private int mSkipped;
+    private int mLineLength;
+
+    NoteImporter(Reader in) {
+        mIn = in;
+    }
+
+    /**
+     * Returns the values of the next note in the stream, or null at the end of the stream.
+     * Blank lines are ignored, and malformed ones are skipped.
+     */
+    ContentValues next() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (readLine(line)) {
+            if (mLineLength > MAX_RECORD_LENGTH) {
+                mSkipped++;
+            } else if (line.toString().trim().length() > 0) {
+                ContentValues values = parse(line.toString());
+                if (values != null) {
+                    return values;
+                }
+                mSkipped++;
+            }
+            line.setLength(0);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of malformed lines skipped so far.
+     */
+    int skipped() {
+        return mSkipped;
+    }
+
+    /**
+     * Reads the next line into the builder, without its line break. Stops adding characters
+     * once the line is longer than MAX_RECORD_LENGTH, but still reads to its end, and sets
+     * mLineLength to its full length.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean readLine(StringBuilder line) throws IOException {
+        mLineLength = 0;
+        boolean readAny = false;
+        while (true) {
+            if (mBufferPosition == mBufferLength) {
+                mBufferLength = mIn.read(mBuffer);
+                mBufferPosition = 0;
+                if (mBufferLength <= 0) {
+                    mBufferLength = 0;
+                    return readAny;
+                }
+            }
+            readAny = true;
+
+            int start = mBufferPosition;
+            while (mBufferPosition < mBufferLength && mBuffer[mBufferPosition] != '\n') {
+                mBufferPosition++;
+            }
+            int count = mBufferPosition - start;
+            if (mLineLength + count <= MAX_RECORD_LENGTH) {
+                line.append(mBuffer, start, count);
+            }
+            mLineLength += count;
+
+            if (mBufferPosition < mBufferLength) {
+                // Consumes the line break.
+                mBufferPosition++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the values of the note in a line, or null if the line is malformed.
+     */
+    static ContentValues parse(String line) {
+        JSONObject record;
+        try {
+            record = new JSONObject(line);
+        } catch (JSONException e) {
+            return null;
+        }
+
+        ContentValues values = new ContentValues();
+        for (String column : TEXT_COLUMNS) {
+            if (!record.has(column)) {
+                continue;
+            }
+            Object value = record.opt(column);
+            if (value == JSONObject.NULL) {
+                values.putNull(column);
+            } else if (value instanceof String) {
+                values.put(column, (String) value);
+            } else {
+                return null;
+            }
+        }
+        for (String column : NUMBER_COLUMNS) {
+            if (!record.has(column)) {
+                continue;
+            }
+            Object value = record.opt(column);
+            if (!(value instanceof Number)) {
+                return null;
+            }
+            values.put(column, ((Number) value).longValue());
+        }
+
+        // A note needs a title or text to be worth importing.
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                && !values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return null;
+        }
+        return values;
+    }
+}
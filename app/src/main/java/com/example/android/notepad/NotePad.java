@@ -68,11 +68,31 @@ public final class NotePad {
          */
         private static final String PATH_NOTE_ID = "/notes/";
 
+        /**
+         * Path part for the full-text search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
         /**
          * 0-relative position of a note ID segment in the path part of a note ID URI
          */
         public static final int NOTE_ID_PATH_POSITION = 1;
 
+        /**
+         * Path part for the trash URI
+         */
+        private static final String PATH_TRASH = "/trash";
+
+        /**
+         * Path part for the URI of a single note in the trash
+         */
+        private static final String PATH_TRASH_ID = "/trash/";
+
+        /**
+         * 0-relative position of a note ID segment in the path part of a trash item URI
+         */
+        public static final int TRASH_ID_PATH_POSITION = 1;
+
         /**
          * Path part for the Live Folder URI
          */
@@ -97,6 +117,304 @@ public final class NotePad {
         public static final Uri CONTENT_ID_URI_PATTERN
             = Uri.parse(SCHEME + AUTHORITY + PATH_NOTE_ID + "/#");
 
+        /**
+         * The content:// style URL for a ranked full-text search over note titles and contents.
+         * Callers supply the search terms in the {@link #QUERY_PARAMETER_SEARCH} query parameter;
+         * any selection passed to query() is combined with the match.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * The content:// style URL for the notes in the trash. Deleting a note through
+         * {@link #CONTENT_URI} or its note ID URI moves it here, and every other URI leaves it
+         * out. Updating a note here with {@link #COLUMN_NAME_DELETED_DATE} set to 0 restores it,
+         * and deleting it here removes it for good. Notes are also removed once they have been in
+         * the trash for longer than the retention period.
+         */
+        public static final Uri CONTENT_TRASH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_TRASH);
+
+        /**
+         * The content URI base for a single note in the trash. Callers must append a numeric
+         * note id to this Uri.
+         */
+        public static final Uri CONTENT_TRASH_ID_URI_BASE
+            = Uri.parse(SCHEME + AUTHORITY + PATH_TRASH_ID);
+
+        /**
+         * The default sort order of the trash, most recently deleted first
+         */
+        public static final String TRASH_SORT_ORDER = "deleted DESC";
+
+        /**
+         * Query parameter of {@link #CONTENT_SEARCH_URI} that holds the user's search terms
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} that asks for one page of notes instead of the
+         * whole directory. Its value is the number of notes in the page, which the provider caps
+         * at {@link #MAX_PAGE_SIZE}. Pages are sorted by modification date and then by _ID, both
+         * newest first, and any sort order passed to query() is ignored.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter of a paged {@link #CONTENT_URI} that holds the modification date of the
+         * last note of the previous page. The next page starts right after that note. It must be
+         * used together with {@link #QUERY_PARAMETER_AFTER_ID}.
+         */
+        public static final String QUERY_PARAMETER_AFTER_MODIFIED = "after_modified";
+
+        /**
+         * Query parameter of a paged {@link #CONTENT_URI} that holds the _ID of the last note of
+         * the previous page. It must be used together with {@link #QUERY_PARAMETER_AFTER_MODIFIED}.
+         */
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+        /**
+         * Query parameter of a note's URI, in {@link #CONTENT_ID_URI_BASE}, that makes an update
+         * conditional. Its value is the {@link #COLUMN_NAME_VERSION} that the caller last read.
+         * The update changes the note only if its version is still that one, and returns 0
+         * otherwise: the note was changed by another writer, moved to the trash or deleted.
+         * When the update returns 1, the note's new version is the given one plus 1.
+         */
+        public static final String QUERY_PARAMETER_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * The largest number of notes returned in one page
+         */
+        public static final int MAX_PAGE_SIZE = 200;
+
+        /**
+         * The MIME type of the export of every note, which is opened with
+         * {@link android.content.ContentResolver#openTypedAssetFileDescriptor} on
+         * {@link #CONTENT_URI}. It is JSON Lines: one JSON object per note and line, whose keys
+         * are the note's column names.
+         */
+        public static final String EXPORT_MIME_TYPE = "application/x-ndjson";
+
+        /**
+         * The method passed to {@link android.content.ContentResolver#call} to import notes. The
+         * extras hold the stream to import in {@link #KEY_IMPORT_FILE}, and optionally a
+         * receiver of progress reports in {@link #KEY_IMPORT_PROGRESS}. The result holds the
+         * counts in {@link #KEY_IMPORTED_COUNT} and {@link #KEY_SKIPPED_COUNT}.
+         */
+        public static final String METHOD_IMPORT_NOTES = "import_notes";
+
+        /**
+         * A {@link android.os.ParcelFileDescriptor} open for reading notes in the format of
+         * {@link #EXPORT_MIME_TYPE}. The notes get new IDs. Lines that aren't valid notes are
+         * skipped. The provider closes the descriptor.
+         */
+        public static final String KEY_IMPORT_FILE = "import_file";
+
+        /**
+         * An {@link android.os.ResultReceiver} that is sent the counts so far, in the same keys as
+         * the result, each time a batch of imported notes is committed.
+         */
+        public static final String KEY_IMPORT_PROGRESS = "import_progress";
+
+        /**
+         * The number of notes imported, as an int
+         */
+        public static final String KEY_IMPORTED_COUNT = "imported_count";
+
+        /**
+         * The number of lines skipped by an import because they weren't valid notes, as an int
+         */
+        public static final String KEY_SKIPPED_COUNT = "skipped_count";
+
+        /**
+         * The method passed to {@link android.content.ContentResolver#call} to toggle whether a
+         * note is a to-do. The argument is the note's URI. A to-do stops being one, and any other
+         * note becomes a to-do that isn't done. The result holds the note's new state, as
+         * described for {@link #METHOD_DUPLICATE}, or is null if the note doesn't exist or is in
+         * the trash.
+         */
+        public static final String METHOD_TOGGLE_TODO = "toggle_todo";
+
+        /**
+         * The method passed to {@link android.content.ContentResolver#call} to toggle whether a
+         * to-do is done. The argument is the note's URI. A note that isn't a to-do becomes one
+         * that is done. The result is as for {@link #METHOD_TOGGLE_TODO}.
+         */
+        public static final String METHOD_TOGGLE_DONE = "toggle_done";
+
+        /**
+         * The method passed to {@link android.content.ContentResolver#call} to set a note's
+         * category. The argument is the note's URI, and the extras hold the category's name in
+         * {@link #COLUMN_NAME_CATEGORY}. A new name adds the category; a missing or empty name
+         * takes the note out of every category. The result is as for
+         * {@link #METHOD_TOGGLE_TODO}.
+         */
+        public static final String METHOD_SET_CATEGORY = "set_category";
+
+        /**
+         * The method passed to {@link android.content.ContentResolver#call} to copy a note into
+         * a new note, created and modified now. The argument is the note's URI. The result holds
+         * the new note's URI in {@link #KEY_NOTE_URI}, or is null if the note doesn't exist or
+         * is in the trash.
+         *
+         * The result of each of these methods holds the state of the note after the change, read
+         * in the same transaction: its {@link #_ID} as a long, {@link #COLUMN_NAME_IS_TODO} and
+         * {@link #COLUMN_NAME_IS_DONE} as ints, {@link #COLUMN_NAME_VERSION} as a long, and
+         * {@link #COLUMN_NAME_CATEGORY} as a String and {@link #COLUMN_NAME_CATEGORY_ID} as a long
+         * if the note is in a category.
+         */
+        public static final String METHOD_DUPLICATE = "duplicate";
+
+        /**
+         * The URI of the note created by {@link #METHOD_DUPLICATE}, as a {@link Uri}
+         */
+        public static final String KEY_NOTE_URI = "note_uri";
+
+        /**
+         * The method passed to {@link android.content.ContentResolver#call} to get the counters
+         * of the provider's cache of recently read notes. They are returned as longs under
+         * {@link #KEY_CACHE_HITS}, {@link #KEY_CACHE_MISSES}, {@link #KEY_CACHE_EVICTIONS} and
+         * {@link #KEY_CACHE_BYTES}, along with the counters of its cache of query SQL under
+         * {@link #KEY_PLAN_CACHE_HITS} and {@link #KEY_PLAN_CACHE_MISSES}.
+         */
+        public static final String METHOD_GET_CACHE_STATS = "get_cache_stats";
+
+        /**
+         * The number of queries for a single note answered from the cache
+         */
+        public static final String KEY_CACHE_HITS = "cache_hits";
+
+        /**
+         * The number of queries for a single note that read the database
+         */
+        public static final String KEY_CACHE_MISSES = "cache_misses";
+
+        /**
+         * The number of notes evicted to keep the cache within its size
+         */
+        public static final String KEY_CACHE_EVICTIONS = "cache_evictions";
+
+        /**
+         * The estimated size of the notes in the cache, in bytes
+         */
+        public static final String KEY_CACHE_BYTES = "cache_bytes";
+
+        /**
+         * The number of queries whose SQL was reused from an earlier query of the same shape
+         */
+        public static final String KEY_PLAN_CACHE_HITS = "plan_cache_hits";
+
+        /**
+         * The number of queries whose SQL was built
+         */
+        public static final String KEY_PLAN_CACHE_MISSES = "plan_cache_misses";
+
+        /**
+         * The method passed to {@link android.content.ContentResolver#call} to get the provider's
+         * metrics: how often each operation was called on each URI pattern, how long the calls
+         * took, and the most recent queries that were slow. The result holds:
+         * <ul>
+         * <li>{@link #KEY_STATS_OPERATIONS}, a Bundle with a Bundle for each operation and URI
+         * pattern, keyed by both, such as "query notes/#"</li>
+         * <li>{@link #KEY_STATS_BUCKET_BOUNDS}, the bounds of the latency histograms</li>
+         * <li>{@link #KEY_STATS_SLOW_QUERIES}, the slow queries, oldest first</li>
+         * <li>{@link #KEY_STATS_SLOW_QUERY_COUNT}, the number of slow queries so far</li>
+         * </ul>
+         * The same metrics are written by dumpsys.
+         */
+        public static final String METHOD_GET_STATS = "stats";
+
+        /**
+         * The metrics of each operation on each URI pattern, as a Bundle of Bundles. Each holds
+         * {@link #KEY_STATS_COUNT}, {@link #KEY_STATS_TOTAL_MICROS},
+         * {@link #KEY_STATS_MAX_MICROS}, {@link #KEY_STATS_ROWS}, {@link #KEY_STATS_BYTES} and
+         * {@link #KEY_STATS_HISTOGRAM}. Streams are counted as the "stream" operation.
+         */
+        public static final String KEY_STATS_OPERATIONS = "operations";
+
+        /**
+         * The upper bound of each latency bucket but the last, in microseconds, as a long array.
+         * The last bucket holds the calls slower than every bound.
+         */
+        public static final String KEY_STATS_BUCKET_BOUNDS = "bucket_bounds";
+
+        /**
+         * The number of calls, as a long
+         */
+        public static final String KEY_STATS_COUNT = "count";
+
+        /**
+         * The time the calls took, or a slow query took, in microseconds, as a long
+         */
+        public static final String KEY_STATS_TOTAL_MICROS = "total_micros";
+
+        /**
+         * The time the slowest call took, in microseconds, as a long
+         */
+        public static final String KEY_STATS_MAX_MICROS = "max_micros";
+
+        /**
+         * The number of rows that the calls returned or changed, or that a slow query returned,
+         * as a long
+         */
+        public static final String KEY_STATS_ROWS = "rows";
+
+        /**
+         * The number of bytes that the calls streamed, as a long
+         */
+        public static final String KEY_STATS_BYTES = "bytes";
+
+        /**
+         * The number of calls in each latency bucket, as a long array
+         */
+        public static final String KEY_STATS_HISTOGRAM = "histogram";
+
+        /**
+         * The most recent queries that were slower than the provider's threshold, as an
+         * ArrayList of Bundles. Each holds {@link #KEY_STATS_TIME},
+         * {@link #KEY_STATS_TOTAL_MICROS}, {@link #KEY_STATS_ROWS}, {@link #KEY_STATS_URI},
+         * {@link #KEY_STATS_SELECTION} and {@link #KEY_STATS_PLAN}.
+         */
+        public static final String KEY_STATS_SLOW_QUERIES = "slow_queries";
+
+        /**
+         * The number of slow queries since the provider started, including those no longer
+         * kept, as a long
+         */
+        public static final String KEY_STATS_SLOW_QUERY_COUNT = "slow_query_count";
+
+        /**
+         * The wall clock time at which a slow query ended, in milliseconds, as a long
+         */
+        public static final String KEY_STATS_TIME = "time";
+
+        /**
+         * The URI of a slow query, as a String
+         */
+        public static final String KEY_STATS_URI = "uri";
+
+        /**
+         * The selection of a slow query, as a String. The arguments aren't kept.
+         */
+        public static final String KEY_STATS_SELECTION = "selection";
+
+        /**
+         * The steps of the plan that SQLite chose for a slow query, one per line, as a String
+         */
+        public static final String KEY_STATS_PLAN = "plan";
+
+        /**
+         * An option passed to {@link android.content.ContentResolver#openTypedAssetFileDescriptor}
+         * on a note URI, to read only part of the note's text/plain stream. Its long value is the
+         * offset of the first byte to read. The stream is the UTF-8 encoding of the title, an empty
+         * line and the text, so an offset may fall inside a character.
+         */
+        public static final String OPT_RANGE_START = "range_start";
+
+        /**
+         * An option that limits the part of a note's stream read to this many bytes, as a long.
+         * Without it, or if it is negative, the stream is read to its end.
+         */
+        public static final String OPT_RANGE_LENGTH = "range_length";
+
         /**
          * The content Uri pattern for a notes listing for live folders
          */
@@ -139,6 +457,15 @@ public final class NotePad {
          */
         public static final String COLUMN_NAME_NOTE = "note";
 
+        /**
+         * Column name of a short preview of the note content: its first characters, with each
+         * run of whitespace collapsed to a single space. The provider computes it whenever the
+         * note content is written, so lists can show it without reading the content. Values
+         * written to it directly are ignored.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_PREVIEW = "preview";
+
         /**
          * Column name for the creation timestamp
          * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
@@ -151,11 +478,232 @@ public final class NotePad {
          */
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
 
+        /**
+         * Column name for the name of the note's category, or null if it has none. The name is
+         * read from {@link Categories}; writing a name sets {@link #COLUMN_NAME_CATEGORY_ID},
+         * adding the category if it doesn't exist yet. Selections filter on the ID instead.
+         * <P>Type: TEXT</P>
+         */
         public static final String COLUMN_NAME_CATEGORY = "category";
 
+        /**
+         * Column name for the _ID of the note's category in {@link Categories}, or null if it
+         * has none
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
+
+        /**
+         * Column name for the time the note was moved to the trash, or 0 if it isn't in the
+         * trash. It can only be written through {@link #CONTENT_TRASH_URI}.
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_DELETED_DATE = "deleted";
+
+        /**
+         * Column name for the version of the note. It is 1 when the note is inserted and goes up
+         * by 1 with every change to the note, whoever makes it. Values written to it directly
+         * are ignored. See {@link #QUERY_PARAMETER_EXPECTED_VERSION}.
+         * <P>Type: INTEGER (long)</P>
+         */
+        public static final String COLUMN_NAME_VERSION = "version";
+
         // 是否待办：0 = 普通笔记，1 = 待办
         public static final String COLUMN_NAME_IS_TODO = "is_todo";
         // 待办是否完成：0 = 未完成，1 = 已完成
         public static final String COLUMN_NAME_IS_DONE = "is_done";
     }
+
+    /**
+     * Revision history contract. Every save of a note's text is a revision, numbered from 1 for
+     * each note. The revisions of a note are listed at the note's URI followed by
+     * {@link #PATH_SEGMENT}, and a single revision, with its text, is read by appending its
+     * revision number to that. Revisions are read-only, and are deleted along with their note.
+     */
+    public static final class Revisions implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Revisions() {}
+
+        /**
+         * The path segment appended to a note's URI to list its revisions
+         */
+        public static final String PATH_SEGMENT = "revisions";
+
+        /**
+         * 0-relative position of the revision number segment in the path part of a revision URI
+         */
+        public static final int REVISION_PATH_POSITION = 3;
+
+        /**
+         * The MIME type of the list of a note's revisions.
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.revision";
+
+        /**
+         * The MIME type of a single revision.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.revision";
+
+        /**
+         * The default sort order of a note's revisions, newest first
+         */
+        public static final String DEFAULT_SORT_ORDER = "revision DESC";
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the _ID of the note that the revision belongs to
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the revision number, counted from 1 for each note
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_REVISION = "revision";
+
+        /**
+         * Column name for the time the revision was saved
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_CREATE_DATE = "created";
+
+        /**
+         * Column name for the note text as of the revision. Only a single revision's URI returns
+         * it, since the text has to be rebuilt from the stored changes.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NOTE = "note";
+    }
+
+    /**
+     * Note counts contract. The counts are kept up to date by the provider as notes are
+     * written, so reading them never counts the notes. The first row counts all of the notes and
+     * has a null {@link #COLUMN_NAME_CATEGORY_ID}; each following row counts the notes of one
+     * category. Notes in the trash aren't counted. Counts are read-only.
+     */
+    public static final class Counts {
+
+        // This class cannot be instantiated
+        private Counts() {}
+
+        /**
+         * The content:// style URL for the counts
+         */
+        public static final Uri CONTENT_URI =
+                Uri.parse("content://" + AUTHORITY + "/notes/counts");
+
+        /**
+         * The MIME type of {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note.count";
+
+        /**
+         * The default sort order, which puts the row for all of the notes first
+         */
+        public static final String DEFAULT_SORT_ORDER = "category_id ASC";
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the _ID of the category that the row counts, or null for the row that
+         * counts all of the notes
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
+
+        /**
+         * Column name for the number of notes
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count";
+
+        /**
+         * Column name for the number of to-do notes that aren't done. Only the row for all of the
+         * notes has it; it is null in the rows for categories.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_TODO_COUNT = "todo_count";
+
+        /**
+         * Column name for the number of to-do notes that are done. Only the row for all of the
+         * notes has it; it is null in the rows for categories.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_DONE_COUNT = "done_count";
+    }
+
+    /**
+     * Categories table contract. Each note refers to at most one category by its _ID. A
+     * category is added when a note is first given its name, and the provider keeps the number
+     * of notes in each one up to date. Categories are read-only.
+     */
+    public static final class Categories implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Categories() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "categories";
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/categories");
+
+        /**
+         * The content URI base for a single category. Callers must append a numeric category id
+         * to this Uri to retrieve a category
+         */
+        public static final Uri CONTENT_ID_URI_BASE =
+                Uri.parse("content://" + AUTHORITY + "/categories/");
+
+        /**
+         * 0-relative position of a category ID segment in the path part of a category ID URI
+         */
+        public static final int CATEGORY_ID_PATH_POSITION = 1;
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of categories.
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.category";
+
+        /**
+         * The MIME type of a {@link #CONTENT_URI} sub-directory of a single category.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.category";
+
+        /**
+         * The default sort order for this table, in the order the categories were added
+         */
+        public static final String DEFAULT_SORT_ORDER = "_id ASC";
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the name of the category, unique among the categories
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NAME = "name";
+
+        /**
+         * Column name for the number of notes in the category, leaving out notes in the trash
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count";
+    }
 }
\ No newline at end of file
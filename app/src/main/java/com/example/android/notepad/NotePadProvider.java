@@ -25,27 +25,48 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.ResultReceiver;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -63,7 +84,140 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 14;
+
+    /**
+     * The maximum number of characters in a note's preview
+     */
+    static final int PREVIEW_LENGTH = 120;
+
+    /**
+     * The table that holds the text of each note, keyed by the note's _ID. Keeping the text out
+     * of the notes table keeps its rows small, so that list queries and scans don't have to read
+     * the text's overflow pages. Every note has exactly one row here.
+     */
+    static final String BODIES_TABLE_NAME = "note_bodies";
+
+    /**
+     * Column name of the note body table that holds the _ID of the note the body belongs to
+     */
+    static final String BODIES_COLUMN_NAME_NOTE_ID = "note_id";
+
+    /**
+     * Joins each note to its body. Queries add it only when they read or filter on the text.
+     */
+    static final String BODIES_JOIN = " LEFT OUTER JOIN " + BODIES_TABLE_NAME + " ON "
+            + BODIES_TABLE_NAME + "." + BODIES_COLUMN_NAME_NOTE_ID + " = "
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID;
+
+    /**
+     * Reads the name of a note's category, by the primary key of the categories table. Queries
+     * return it as the category column, and the export writes it.
+     */
+    static final String CATEGORY_NAME_SQL = "(SELECT " + NotePad.Categories.TABLE_NAME + "."
+            + NotePad.Categories.COLUMN_NAME_NAME + " FROM " + NotePad.Categories.TABLE_NAME
+            + " WHERE " + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + " = "
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ")";
+
+    /**
+     * The table that holds the revision history of each note's text. Its public columns are
+     * defined by {@link NotePad.Revisions}, and the rest hold each revision's text, as described
+     * in {@link NoteRevisions}.
+     */
+    static final String REVISIONS_TABLE_NAME = "note_revisions";
+
+    /**
+     * Column name of the revision table that holds the number of the keyframe that a revision
+     * is built on. A keyframe holds its own number.
+     */
+    static final String REVISIONS_COLUMN_NAME_KEYFRAME = "keyframe";
+
+    /**
+     * Column name of the revision table that holds the number of characters a delta keeps from
+     * the start of the previous text
+     */
+    static final String REVISIONS_COLUMN_NAME_PREFIX = "prefix_length";
+
+    /**
+     * Column name of the revision table that holds the number of characters a delta keeps from
+     * the end of the previous text
+     */
+    static final String REVISIONS_COLUMN_NAME_SUFFIX = "suffix_length";
+
+    /**
+     * Column name of the revision table that holds a keyframe's text, or the text that a delta
+     * puts in place of the middle of the previous text. It is compressed like the note text.
+     */
+    static final String REVISIONS_COLUMN_NAME_DATA = "data";
+
+    /**
+     * The table that holds the totals of the note counts, in a single row. Its columns are the
+     * count columns of {@link NotePad.Counts}.
+     */
+    static final String TOTALS_TABLE_NAME = "note_totals";
+
+    /**
+     * Selects the notes that aren't in the trash. Every query and write through the notes URIs
+     * is limited to them.
+     */
+    private static final String LIVE_NOTES = NotePad.Notes.TABLE_NAME + "."
+            + NotePad.Notes.COLUMN_NAME_DELETED_DATE + " = 0";
+
+    /**
+     * Selects the notes in the trash
+     */
+    private static final String TRASHED_NOTES = NotePad.Notes.TABLE_NAME + "."
+            + NotePad.Notes.COLUMN_NAME_DELETED_DATE + " > 0";
+
+    /**
+     * The URI that covers every URI of the provider. Notifying it reaches the observers of the
+     * notes, the trash and the live folders alike.
+     */
+    private static final Uri ROOT_URI = Uri.parse("content://" + NotePad.AUTHORITY);
+
+    /**
+     * Limits a trigger on the body table to text that is stored uncompressed
+     */
+    private static final String UNCOMPRESSED_BODY = " WHEN typeof(new."
+            + NotePad.Notes.COLUMN_NAME_NOTE + ") != 'blob'";
+
+    /**
+     * Finds the note text column in a selection or sort order, which then need the body join
+     */
+    private static final Pattern NOTE_COLUMN_PATTERN = Pattern.compile(
+            "\\b" + NotePad.Notes.COLUMN_NAME_NOTE + "\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The FTS4 shadow table that indexes note titles and contents for full-text search. Its docid
+     * is the _ID of the note it indexes, and triggers on the notes table keep it in sync.
+     */
+    private static final String FTS_TABLE_NAME = "notes_fts";
+
+    /**
+     * The notes that match a search, with their rank: the number of matched terms. offsets()
+     * returns four space-separated integers per match, so counting its spaces counts the matches.
+     * It is a derived table that only has the docid and the rank, so that the index's own title
+     * and note columns never clash with the notes' columns in a caller's selection or order.
+     * The MATCH expression is its one argument.
+     */
+    private static final String SEARCH_MATCHES_TABLE = "(SELECT docid, (length(offsets("
+            + FTS_TABLE_NAME + ")) - length(replace(offsets(" + FTS_TABLE_NAME
+            + "), ' ', ''))) AS search_rank FROM " + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME
+            + " MATCH ?) AS search_matches";
+
+    /**
+     * Orders search results by their rank, most relevant first.
+     */
+    private static final String SEARCH_RANK_ORDER = "search_matches.search_rank DESC, "
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+            + " DESC";
+
+    /**
+     * Orders the pages of the notes directory. The _ID breaks ties between notes saved in the
+     * same millisecond, so that every note has a unique place to resume after.
+     */
+    private static final String PAGE_SORT_ORDER = NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+            + " DESC, " + NotePad.Notes._ID + " DESC";
 
     /**
      * A projection map used to select columns from the database
@@ -76,15 +230,35 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
     /**
-     * Standard projection for the interesting columns of a normal note.
+     * A projection map used to select columns when the notes table is joined to the search index
+     */
+    private static HashMap<String, String> sSearchProjectionMap;
+
+    /**
+     * A projection map used to select columns from the list of a note's revisions
+     */
+    private static HashMap<String, String> sRevisionsProjectionMap;
+
+    /**
+     * A projection map used to select columns from the categories
+     */
+    private static HashMap<String, String> sCategoriesProjectionMap;
+
+    /**
+     * A projection map used to select columns from the counts
+     */
+    private static HashMap<String, String> sCountsProjectionMap;
+
+    /**
+     * Standard projection for the columns of a note written to a stream. The text isn't in it,
+     * since writeDataToPipe() reads it from the database a buffer at a time.
      */
     private static final String[] READ_NOTE_PROJECTION = new String[] {
             NotePad.Notes._ID,               // Projection position 0, the note's id
-            NotePad.Notes.COLUMN_NAME_NOTE,  // Projection position 1, the note's content
-            NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 2, the note's title
+            NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 1, the note's title
     };
-    private static final int READ_NOTE_NOTE_INDEX = 1;
-    private static final int READ_NOTE_TITLE_INDEX = 2;
+    private static final int READ_NOTE_ID_INDEX = 0;
+    private static final int READ_NOTE_TITLE_INDEX = 1;
 
     /*
      * Constants used by the Uri matcher to choose an action based on the pattern
@@ -99,14 +273,279 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Live Folder URI pattern
     private static final int LIVE_FOLDER_NOTES = 3;
 
+    // The incoming URI matches the full-text search URI pattern
+    private static final int SEARCH = 4;
+
+    // The incoming URI matches the revisions of a note
+    private static final int NOTE_REVISIONS = 5;
+
+    // The incoming URI matches a single revision of a note
+    private static final int NOTE_REVISION_ID = 6;
+
+    // The incoming URI matches the trash
+    private static final int TRASH = 7;
+
+    // The incoming URI matches a single note in the trash
+    private static final int TRASH_ID = 8;
+
+    // The incoming URI matches the categories
+    private static final int CATEGORIES = 9;
+
+    // The incoming URI matches a single category
+    private static final int CATEGORY_ID = 10;
+
+    // The incoming URI matches the note counts
+    private static final int COUNTS = 11;
+
     /**
      * A UriMatcher instance
      */
     private static final UriMatcher sUriMatcher;
 
+    // The pattern of each URI that the matcher knows, by its code, for naming it in the metrics.
+    private static final SparseArray<String> sUriPatterns = new SparseArray<String>();
+
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // The length in characters above which note text is stored compressed, or -1 to never
+    // compress it.
+    private int mCompressionThreshold;
+
+    /**
+     * How long applyBatch() lets other threads take the database lock when it yields between
+     * operations, in milliseconds.
+     */
+    private static final long SLEEP_AFTER_YIELD_DELAY = 4000;
+
+    // The URIs changed by the batch that the calling thread is applying, or null if it isn't in
+    // applyBatch(). Their notifications are sent once, after the batch ends.
+    private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<Set<Uri>>();
+
+    // Merges the notifications sent during a burst of writes.
+    private NotificationCoalescer mNotifications;
+
+    // The rows of recently read notes.
+    private NoteCache mNoteCache;
+
+    // Counts the calls made to the provider, and keeps the slow queries.
+    private ProviderMetrics mMetrics;
+    /**
+     * The number of compiled statements kept for inserting, saving and deleting single notes.
+     * There is one statement for each set of columns that callers update by ID, and NoteEditor
+     * and NotesList only use a few of those.
+     */
+    private static final int STATEMENT_CACHE_SIZE = 16;
+
+    /**
+     * The number of query shapes whose SQL is kept. NotesList queries a few shapes for each of
+     * its filters, and the editor and the search a few more.
+     */
+    private static final int QUERY_PLAN_CACHE_SIZE = 32;
+
+    // The most note IDs listed in the IN clause of one statement. Writes to more notes than this
+    // are made a chunk of IDs at a time, in the same transaction.
+    private static final int IDS_PER_STATEMENT = 500;
+
+    // The largest number of notes that an import commits in one transaction.
+    private static final int IMPORT_BATCH_SIZE = 500;
+
+    // The most characters of note text that an import holds in memory for one transaction.
+    private static final int IMPORT_BATCH_CHARS = 1024 * 1024;
+
+    // The largest number of notes that the purge of the trash deletes in one transaction.
+    private static final int PURGE_BATCH_SIZE = 100;
+
+    // How long after the provider starts the trash is first purged, in milliseconds.
+    private static final long PURGE_START_DELAY = 60 * 1000;
+
+    // How often the trash is purged while the process lives, in milliseconds.
+    private static final long PURGE_INTERVAL = 6 * 60 * 60 * 1000;
+
+    // How long notes stay in the trash before they are purged, in milliseconds, or 0 or less to
+    // keep them until they are deleted from the trash.
+    private long mTrashRetention;
+
+    // The thread that purges the trash, or null if notes stay in the trash.
+    private HandlerThread mPurgeThread;
+    private Handler mPurgeHandler;
+
+    // Purges the expired notes from the trash, then runs again after PURGE_INTERVAL.
+    private final Runnable mPurge = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                purgeTrash(System.currentTimeMillis() - mTrashRetention);
+            } catch (SQLException e) {
+                Log.w(TAG, "Purge of the trash failed", e);
+            }
+            mPurgeHandler.postDelayed(this, PURGE_INTERVAL);
+        }
+    };
+
+    // The size of the buffer through which a note's text is written to a stream, in bytes.
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    // The compiled statements for inserting, saving and deleting notes.
+    private StatementCache mStatements = new StatementCache(STATEMENT_CACHE_SIZE);
+
+    // The SQL built for recent query shapes.
+    private QueryPlanCache mQueryPlans = new QueryPlanCache(QUERY_PLAN_CACHE_SIZE);
+
+    // Inserts the text of a new note into the body table.
+    private static final String INSERT_BODY_SQL = "INSERT INTO " + BODIES_TABLE_NAME + " ("
+            + BODIES_COLUMN_NAME_NOTE_ID + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+            + ") VALUES (?, ?)";
+
+    // Replaces the text of one note in the body table.
+    private static final String UPDATE_BODY_BY_ID_SQL = "UPDATE " + BODIES_TABLE_NAME + " SET "
+            + NotePad.Notes.COLUMN_NAME_NOTE + " = ? WHERE " + BODIES_COLUMN_NAME_NOTE_ID + " = ?";
+
+    // Adds 1 to the version of each note that an UPDATE of the notes table writes. The
+    // provider's own updates set the version this way, in the same statement, so that the
+    // version trigger, which is left for other writers, has nothing to do for them.
+    private static final String INCREMENT_VERSION = NotePad.Notes.COLUMN_NAME_VERSION + " = "
+            + NotePad.Notes.COLUMN_NAME_VERSION + " + 1";
+
+    // Moves one note to the trash, unless it is already there.
+    private static final String TRASH_BY_ID_SQL = "UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+            + NotePad.Notes.COLUMN_NAME_DELETED_DATE + " = ?, " + INCREMENT_VERSION + " WHERE "
+            + NotePad.Notes._ID + " = ? AND " + LIVE_NOTES;
+
+    // Toggles whether one note is a to-do. A note stops or starts being a to-do as not done.
+    private static final String TOGGLE_TODO_SQL = "UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+            + NotePad.Notes.COLUMN_NAME_IS_TODO + " = 1 - (" + NotePad.Notes.COLUMN_NAME_IS_TODO
+            + " IS 1), " + NotePad.Notes.COLUMN_NAME_IS_DONE + " = 0, " + INCREMENT_VERSION
+            + " WHERE " + NotePad.Notes._ID + " = ? AND " + LIVE_NOTES;
+
+    // Toggles whether one note is done, making it a to-do.
+    private static final String TOGGLE_DONE_SQL = "UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+            + NotePad.Notes.COLUMN_NAME_IS_TODO + " = 1, " + NotePad.Notes.COLUMN_NAME_IS_DONE
+            + " = 1 - (" + NotePad.Notes.COLUMN_NAME_IS_DONE + " IS 1), " + INCREMENT_VERSION
+            + " WHERE " + NotePad.Notes._ID + " = ? AND " + LIVE_NOTES;
+
+    // Sets the category of one note.
+    private static final String SET_CATEGORY_SQL = "UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+            + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?, " + INCREMENT_VERSION + " WHERE "
+            + NotePad.Notes._ID + " = ? AND " + LIVE_NOTES;
+
+    // Copies one note into a new note with the given creation and modification dates.
+    private static final String DUPLICATE_NOTE_SQL = "INSERT INTO " + NotePad.Notes.TABLE_NAME
+            + " (" + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_PREVIEW
+            + ", " + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+            + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", " + NotePad.Notes.COLUMN_NAME_IS_TODO
+            + ", " + NotePad.Notes.COLUMN_NAME_IS_DONE + ") SELECT "
+            + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_PREVIEW
+            + ", ?, ?, " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+            + NotePad.Notes.COLUMN_NAME_IS_TODO + ", " + NotePad.Notes.COLUMN_NAME_IS_DONE
+            + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ? AND "
+            + LIVE_NOTES;
+
+    // Copies the stored text of one note, compressed or not, into the body of another.
+    private static final String DUPLICATE_BODY_SQL = "INSERT INTO " + BODIES_TABLE_NAME + " ("
+            + BODIES_COLUMN_NAME_NOTE_ID + ", " + NotePad.Notes.COLUMN_NAME_NOTE + ") SELECT ?, "
+            + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + BODIES_TABLE_NAME + " WHERE "
+            + BODIES_COLUMN_NAME_NOTE_ID + " = ?";
+
+    // Copies the indexed text of one note to another. The body triggers don't index compressed
+    // text, but the search index holds it uncompressed.
+    private static final String DUPLICATE_SEARCH_SQL = "UPDATE " + FTS_TABLE_NAME + " SET "
+            + NotePad.Notes.COLUMN_NAME_NOTE + " = (SELECT " + NotePad.Notes.COLUMN_NAME_NOTE
+            + " FROM " + FTS_TABLE_NAME + " WHERE docid = ?) WHERE docid = ?";
+
+    // Reads the to-do state, the category and the version of one note.
+    private static final String NOTE_STATE_SQL = "SELECT " + NotePad.Notes.COLUMN_NAME_IS_TODO
+            + ", " + NotePad.Notes.COLUMN_NAME_IS_DONE + ", "
+            + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", " + CATEGORY_NAME_SQL + ", "
+            + NotePad.Notes.COLUMN_NAME_VERSION + " FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?";
+
+    // Adds a category, unless one with the same name exists.
+    private static final String INSERT_CATEGORY_SQL = "INSERT OR IGNORE INTO "
+            + NotePad.Categories.TABLE_NAME + " (" + NotePad.Categories.COLUMN_NAME_NAME
+            + ") VALUES (?)";
+
+    // Finds a category by its name.
+    private static final String FIND_CATEGORY_SQL = "SELECT " + NotePad.Categories._ID + " FROM "
+            + NotePad.Categories.TABLE_NAME + " WHERE " + NotePad.Categories.COLUMN_NAME_NAME
+            + " = ?";
+
+    // Sets the number of notes in each category from the notes table.
+    private static final String COUNT_CATEGORY_NOTES_SQL = "UPDATE "
+            + NotePad.Categories.TABLE_NAME + " SET " + NotePad.Categories.COLUMN_NAME_NOTE_COUNT
+            + " = (SELECT COUNT(*) FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = "
+            + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + " AND " + LIVE_NOTES
+            + ")";
+
+    // Reads the counts: the totals first, then the number of notes in each category.
+    private static final String COUNTS_SQL = "SELECT NULL AS "
+            + NotePad.Counts.COLUMN_NAME_CATEGORY_ID + ", "
+            + NotePad.Counts.COLUMN_NAME_NOTE_COUNT + ", "
+            + NotePad.Counts.COLUMN_NAME_TODO_COUNT + ", "
+            + NotePad.Counts.COLUMN_NAME_DONE_COUNT + " FROM " + TOTALS_TABLE_NAME
+            + " UNION ALL SELECT " + NotePad.Categories._ID + ", "
+            + NotePad.Categories.COLUMN_NAME_NOTE_COUNT + ", NULL, NULL FROM "
+            + NotePad.Categories.TABLE_NAME;
+
+    // Records the current text of one note as its first revision, a keyframe dated by the
+    // note's modification date.
+    private static final String INSERT_FIRST_REVISION_SQL = "INSERT INTO " + REVISIONS_TABLE_NAME
+            + " (" + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ", "
+            + NotePad.Revisions.COLUMN_NAME_REVISION + ", "
+            + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + ", " + REVISIONS_COLUMN_NAME_KEYFRAME
+            + ", " + REVISIONS_COLUMN_NAME_DATA + ") SELECT " + NotePad.Notes.TABLE_NAME + "."
+            + NotePad.Notes._ID + ", 1, " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", 1, "
+            + BODIES_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE + " FROM "
+            + NotePad.Notes.TABLE_NAME + BODIES_JOIN;
+
+    // Records the first revision of the note whose _ID is the argument.
+    private static final String INSERT_FIRST_REVISION_BY_ID_SQL = INSERT_FIRST_REVISION_SQL
+            + " WHERE " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = ?";
+
+    // Records a revision of one note.
+    private static final String INSERT_REVISION_SQL = "INSERT INTO " + REVISIONS_TABLE_NAME + " ("
+            + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ", "
+            + NotePad.Revisions.COLUMN_NAME_REVISION + ", "
+            + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + ", " + REVISIONS_COLUMN_NAME_KEYFRAME
+            + ", " + REVISIONS_COLUMN_NAME_PREFIX + ", " + REVISIONS_COLUMN_NAME_SUFFIX + ", "
+            + REVISIONS_COLUMN_NAME_DATA + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    // Reads the number and keyframe of the latest revision of one note.
+    private static final String LATEST_REVISION_SQL = "SELECT "
+            + NotePad.Revisions.COLUMN_NAME_REVISION + ", " + REVISIONS_COLUMN_NAME_KEYFRAME
+            + " FROM " + REVISIONS_TABLE_NAME + " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID
+            + " = ? ORDER BY " + NotePad.Revisions.COLUMN_NAME_REVISION + " DESC LIMIT 1";
+
+    // Counts 1 if one note's text is stored as the given value, and 0 otherwise.
+    private static final String BODY_STORED_AS_SQL = "SELECT COUNT(*) FROM " + BODIES_TABLE_NAME
+            + " WHERE " + BODIES_COLUMN_NAME_NOTE_ID + " = ? AND " + NotePad.Notes.COLUMN_NAME_NOTE
+            + " IS ?";
+
+    // Reads the text of one note.
+    private static final String READ_BODY_SQL = "SELECT " + NotePad.Notes.COLUMN_NAME_NOTE
+            + " FROM " + BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NAME_NOTE_ID + " = ?";
+
+    // Reads the storage type of one note's text, and the number of bytes stored for it.
+    private static final String BODY_INFO_SQL = "SELECT typeof(" + NotePad.Notes.COLUMN_NAME_NOTE
+            + "), length(CAST(" + NotePad.Notes.COLUMN_NAME_NOTE + " AS BLOB)) FROM "
+            + BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NAME_NOTE_ID + " = ?";
+
+    // Reads the compressed bytes stored for one note's text, if it is still stored compressed.
+    private static final String COMPRESSED_BODY_SQL = "SELECT " + NotePad.Notes.COLUMN_NAME_NOTE
+            + " FROM " + BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NAME_NOTE_ID + " = ? AND "
+            + "typeof(" + NotePad.Notes.COLUMN_NAME_NOTE + ") = 'blob'";
+
+    // Reads a range of the UTF-8 bytes of one note's text: the arguments are the note, the
+    // offset of the range counted from 1, its length, and the length of the whole text. The
+    // text is only read if it is still stored as text of that length.
+    private static final String BODY_RANGE_SQL = "SELECT substr(CAST("
+            + NotePad.Notes.COLUMN_NAME_NOTE + " AS BLOB), ?, ?) FROM " + BODIES_TABLE_NAME
+            + " WHERE " + BODIES_COLUMN_NAME_NOTE_ID + " = ? AND typeof("
+            + NotePad.Notes.COLUMN_NAME_NOTE + ") = 'text' AND length(CAST("
+            + NotePad.Notes.COLUMN_NAME_NOTE + " AS BLOB)) = ?";
+
 
     /**
      * A block that instantiates and sets static objects
@@ -120,15 +559,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
         // Add a pattern that routes URIs terminated with "notes" to a NOTES operation
-        sUriMatcher.addURI(NotePad.AUTHORITY, "notes", NOTES);
+        addUri("notes", NOTES);
 
         // Add a pattern that routes URIs terminated with "notes" plus an integer
         // to a note ID operation
-        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#", NOTE_ID);
+        addUri("notes/#", NOTE_ID);
 
         // Add a pattern that routes URIs terminated with live_folders/notes to a
         // live folder operation
-        sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
+        addUri("live_folders/notes", LIVE_FOLDER_NOTES);
+
+        // Add a pattern that routes URIs terminated with notes/search to a search operation
+        addUri("notes/search", SEARCH);
+
+        // Add patterns that route the revisions of a note, and one revision of it, to revision
+        // operations
+        addUri("notes/#/" + NotePad.Revisions.PATH_SEGMENT, NOTE_REVISIONS);
+        addUri("notes/#/" + NotePad.Revisions.PATH_SEGMENT + "/#", NOTE_REVISION_ID);
+
+        // Add patterns that route the trash, and a note in it, to trash operations
+        addUri("trash", TRASH);
+        addUri("trash/#", TRASH_ID);
+
+        // Add patterns that route the categories, and one category, to category operations
+        addUri("categories", CATEGORIES);
+        addUri("categories/#", CATEGORY_ID);
+
+        // Add a pattern that routes URIs terminated with notes/counts to the counts
+        addUri("notes/counts", COUNTS);
 
         /*
          * Creates and initializes a projection map that returns all columns
@@ -144,8 +602,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "title" to "title"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_TITLE);
 
-        // Maps "note" to "note"
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
+        // Maps "note" to "note_bodies.note AS note", read from the body table
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, BODIES_TABLE_NAME + "."
+                + NotePad.Notes.COLUMN_NAME_NOTE + " AS " + NotePad.Notes.COLUMN_NAME_NOTE);
+
+        // Maps "preview" to "preview"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                NotePad.Notes.COLUMN_NAME_PREVIEW);
 
         // Maps "created" to "created"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
@@ -170,13 +633,91 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sLiveFolderProjectionMap.put(LiveFolders.NAME, NotePad.Notes.COLUMN_NAME_TITLE + " AS " +
             LiveFolders.NAME);
 
+        // Maps "category" to the name of the note's category, read from the categories table
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY,
-                NotePad.Notes.COLUMN_NAME_CATEGORY);
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.COLUMN_NAME_CATEGORY);
+                CATEGORY_NAME_SQL + " AS " + NotePad.Notes.COLUMN_NAME_CATEGORY);
+
+        // Maps "category_id" to "category_id"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
 
         // 新增：待办相关列的映射
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_IS_TODO, NotePad.Notes.COLUMN_NAME_IS_TODO);
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_IS_DONE, NotePad.Notes.COLUMN_NAME_IS_DONE);
+
+        // Maps "deleted" to "deleted"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_DELETED_DATE,
+                NotePad.Notes.COLUMN_NAME_DELETED_DATE);
+
+        // Maps "version" to "version"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_VERSION,
+                NotePad.Notes.COLUMN_NAME_VERSION);
+
+        /*
+         * Creates and initializes a projection map for search results. They are joined to the
+         * matches of the search, so every column is qualified with the notes table name.
+         */
+        sSearchProjectionMap = new HashMap<String, String>();
+        for (String column : sNotesProjectionMap.keySet()) {
+            sSearchProjectionMap.put(column,
+                    NotePad.Notes.TABLE_NAME + "." + column + " AS " + column);
+        }
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                sNotesProjectionMap.get(NotePad.Notes.COLUMN_NAME_NOTE));
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY,
+                sNotesProjectionMap.get(NotePad.Notes.COLUMN_NAME_CATEGORY));
+
+        /*
+         * Creates and initializes a projection map for the list of a note's revisions. The list
+         * doesn't include the text, which has to be rebuilt one revision at a time.
+         */
+        sRevisionsProjectionMap = new HashMap<String, String>();
+        for (String column : new String[] {
+                NotePad.Revisions._ID,
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+                NotePad.Revisions.COLUMN_NAME_REVISION,
+                NotePad.Revisions.COLUMN_NAME_CREATE_DATE }) {
+            sRevisionsProjectionMap.put(column, column);
+        }
+
+        /*
+         * Creates and initializes a projection map for the categories
+         */
+        sCategoriesProjectionMap = new HashMap<String, String>();
+        for (String column : new String[] {
+                NotePad.Categories._ID,
+                NotePad.Categories.COLUMN_NAME_NAME,
+                NotePad.Categories.COLUMN_NAME_NOTE_COUNT }) {
+            sCategoriesProjectionMap.put(column, column);
+        }
+
+        /*
+         * Creates and initializes a projection map for the counts
+         */
+        sCountsProjectionMap = new HashMap<String, String>();
+        for (String column : new String[] {
+                NotePad.Counts.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Counts.COLUMN_NAME_NOTE_COUNT,
+                NotePad.Counts.COLUMN_NAME_TODO_COUNT,
+                NotePad.Counts.COLUMN_NAME_DONE_COUNT }) {
+            sCountsProjectionMap.put(column, column);
+        }
+    }
+
+    /**
+     * Adds a pattern to the URI matcher, and keeps it to name the URIs that match it.
+     */
+    private static void addUri(String path, int match) {
+        sUriMatcher.addURI(NotePad.AUTHORITY, path, match);
+        sUriPatterns.put(match, path);
+    }
+
+    /**
+     * Returns the pattern that a URI matches, as the metrics name it. Set to package visibility
+     * so that the export can name the stream it writes.
+     */
+    static String patternOf(Uri uri) {
+        return sUriPatterns.get(sUriMatcher.match(uri), "unknown");
     }
 
     /**
@@ -186,10 +727,80 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     */
    static class DatabaseHelper extends SQLiteOpenHelper {
 
+       // The size of the memory-mapped I/O window, in bytes. Negative keeps SQLite's default.
+       private final int mMmapSize;
+
+       // The number of WAL pages after which a commit checkpoints the log.
+       private final int mWalAutoCheckpoint;
+
+       // The categories that a new database starts with, in the order they are offered.
+       private final String[] mDefaultCategories;
+
        DatabaseHelper(Context context) {
 
            // calls the super constructor, requesting the default cursor factory.
            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+           Resources res = context.getResources();
+           mMmapSize = res.getInteger(R.integer.note_db_mmap_size);
+           mWalAutoCheckpoint = res.getInteger(R.integer.note_db_wal_autocheckpoint);
+           mDefaultCategories = res.getStringArray(R.array.note_categories);
+
+           // Uses write-ahead logging, so that NotesList and other apps can read the notes while
+           // NoteEditor saves one. The framework then keeps a pool of connections, and queries
+           // outside a transaction run on a reader connection instead of waiting for the writer.
+           if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+               setWriteAheadLoggingEnabled(true);
+           }
+       }
+
+       /**
+        * Configures the connection after the database has been created or upgraded. Sizes the
+        * statement cache of every connection, turns on write-ahead logging on versions that
+        * can't set it before opening, and applies the memory-mapped I/O size and checkpoint
+        * interval from the app's resources.
+        *
+        * The pragmas only reach the primary connection, since the framework opens the reader
+        * connections of the pool itself and gives no way to configure them. The primary
+        * connection runs every write and every transaction, so it is the one that checkpoints
+        * the log, and the reads made inside the provider's transactions are the ones that use
+        * memory-mapped I/O. Queries outside a transaction run on the reader connections, which
+        * keep SQLite's default, so the size doesn't speed up NotesList or other readers.
+        */
+       @Override
+       public void onOpen(SQLiteDatabase db) {
+           super.onOpen(db);
+
+           // Keeps a compiled statement on each connection for every query shape whose SQL the
+           // provider caches, and for every statement it caches itself.
+           db.setMaxSqlCacheSize(QUERY_PLAN_CACHE_SIZE + STATEMENT_CACHE_SIZE);
+
+           if (db.isReadOnly()) {
+               return;
+           }
+
+           if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+               db.enableWriteAheadLogging();
+           }
+
+           if (mMmapSize >= 0) {
+               runPragma(db, "mmap_size = " + mMmapSize);
+           }
+           runPragma(db, "wal_autocheckpoint = " + mWalAutoCheckpoint);
+       }
+
+       /**
+        * Runs a PRAGMA statement. These statements return a row, so they have to go through
+        * rawQuery() and be stepped instead of through execSQL(). Versions of SQLite that don't
+        * know the pragma ignore it.
+        */
+       private static void runPragma(SQLiteDatabase db, String pragma) {
+           Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+           try {
+               cursor.moveToFirst();
+           } finally {
+               cursor.close();
+           }
        }
 
        /**
@@ -199,29 +810,509 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         */
        @Override
        public void onCreate(SQLiteDatabase db) {
-           db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
+           createNotesTable(db, NotePad.Notes.TABLE_NAME);
+           createBodiesTable(db);
+           createSearchTable(db);
+           createTriggers(db);
+           createListIndexes(db);
+           createRevisionsTable(db);
+           createCategoriesTable(db);
+           createCategoryTriggers(db);
+           createTotalsTable(db);
+           createTotalsTriggers(db);
+           createVersionTrigger(db);
+       }
+
+       /**
+        * Creates the notes table under the given name. The table holds everything about a note
+        * except its text, which is in the body table.
+        */
+       private void createNotesTable(SQLiteDatabase db, String tableName) {
+           db.execSQL("CREATE TABLE " + tableName + " ("
                    + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
-                   + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                   + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT,"
                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
-                   + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT,"
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER,"
                    + NotePad.Notes.COLUMN_NAME_IS_TODO + " INTEGER DEFAULT 0,"
-                   + NotePad.Notes.COLUMN_NAME_IS_DONE + " INTEGER DEFAULT 0"
+                   + NotePad.Notes.COLUMN_NAME_IS_DONE + " INTEGER DEFAULT 0,"
+                   + NotePad.Notes.COLUMN_NAME_DELETED_DATE + " INTEGER NOT NULL DEFAULT 0,"
+                   + NotePad.Notes.COLUMN_NAME_VERSION + " INTEGER NOT NULL DEFAULT 1"
+                   + ");");
+       }
+
+       /**
+        * Creates the table that holds the text of each note. The note's _ID is the primary key,
+        * so a body is found by the same rowid lookup as its note.
+        */
+       private void createBodiesTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + BODIES_TABLE_NAME + " ("
+                   + BODIES_COLUMN_NAME_NOTE_ID + " INTEGER PRIMARY KEY,"
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT"
+                   + ");");
+       }
+
+       /**
+        * Creates the revision history table, and the trigger that deletes a note's revisions
+        * along with it. The unique key on the note and revision number is also the index that
+        * finds a note's revisions in order.
+        */
+       private void createRevisionsTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + REVISIONS_TABLE_NAME + " ("
+                   + NotePad.Revisions._ID + " INTEGER PRIMARY KEY,"
+                   + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                   + NotePad.Revisions.COLUMN_NAME_REVISION + " INTEGER NOT NULL,"
+                   + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                   + REVISIONS_COLUMN_NAME_KEYFRAME + " INTEGER NOT NULL,"
+                   + REVISIONS_COLUMN_NAME_PREFIX + " INTEGER NOT NULL DEFAULT 0,"
+                   + REVISIONS_COLUMN_NAME_SUFFIX + " INTEGER NOT NULL DEFAULT 0,"
+                   + REVISIONS_COLUMN_NAME_DATA + " TEXT,"
+                   + "UNIQUE (" + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ", "
+                   + NotePad.Revisions.COLUMN_NAME_REVISION + ")"
+                   + ");");
+           createRevisionsTrigger(db);
+       }
+
+       /**
+        * Creates the trigger that deletes a note's revisions along with it.
+        */
+       private void createRevisionsTrigger(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER " + REVISIONS_TABLE_NAME + "_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + REVISIONS_TABLE_NAME + " WHERE "
+                   + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID
+                   + "; END;");
+       }
+
+       /**
+        * Creates the categories table, with the default categories in it. A category's name is
+        * unique, and its unique index is how a name written to a note is found.
+        */
+       private void createCategoriesTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + NotePad.Categories.TABLE_NAME + " ("
+                   + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
+                   + NotePad.Categories.COLUMN_NAME_NAME + " TEXT NOT NULL UNIQUE,"
+                   + NotePad.Categories.COLUMN_NAME_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0"
+                   + ");");
+           for (String name : mDefaultCategories) {
+               db.execSQL(INSERT_CATEGORY_SQL, new Object[] { name });
+           }
+       }
+
+       /**
+        * Creates the triggers that keep the number of notes in each category up to date. Every
+        * insert, delete and update on the notes runs them, including writes made outside the
+        * provider. Notes in the trash aren't counted, so moving a note to the trash or out of
+        * it changes the count as well.
+        */
+       private void createCategoryTriggers(SQLiteDatabase db) {
+           String categories = NotePad.Categories.TABLE_NAME;
+           String count = NotePad.Categories.COLUMN_NAME_NOTE_COUNT;
+           String categoryId = NotePad.Notes.COLUMN_NAME_CATEGORY_ID;
+           String deleted = NotePad.Notes.COLUMN_NAME_DELETED_DATE;
+
+           db.execSQL("CREATE TRIGGER " + categories + "_note_insert AFTER INSERT ON "
+                   + NotePad.Notes.TABLE_NAME + " WHEN new." + categoryId + " IS NOT NULL AND new."
+                   + deleted + " = 0 BEGIN "
+                   + "UPDATE " + categories + " SET " + count + " = " + count + " + 1 WHERE "
+                   + NotePad.Categories._ID + " = new." + categoryId + "; END;");
+
+           db.execSQL("CREATE TRIGGER " + categories + "_note_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " WHEN old." + categoryId + " IS NOT NULL AND old."
+                   + deleted + " = 0 BEGIN "
+                   + "UPDATE " + categories + " SET " + count + " = " + count + " - 1 WHERE "
+                   + NotePad.Categories._ID + " = old." + categoryId + "; END;");
+
+           db.execSQL("CREATE TRIGGER " + categories + "_note_update AFTER UPDATE OF "
+                   + categoryId + ", " + deleted + " ON " + NotePad.Notes.TABLE_NAME
+                   + " WHEN old." + categoryId + " IS NOT new." + categoryId
+                   + " OR (old." + deleted + " = 0) != (new." + deleted + " = 0) BEGIN "
+                   + "UPDATE " + categories + " SET " + count + " = " + count + " - 1 WHERE "
+                   + NotePad.Categories._ID + " = old." + categoryId + " AND old." + deleted
+                   + " = 0; "
+                   + "UPDATE " + categories + " SET " + count + " = " + count + " + 1 WHERE "
+                   + NotePad.Categories._ID + " = new." + categoryId + " AND new." + deleted
+                   + " = 0; END;");
+       }
+
+       /**
+        * Creates the totals table, with its single row counting the notes already in the
+        * database.
+        */
+       private void createTotalsTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + TOTALS_TABLE_NAME + " ("
+                   + NotePad.Counts.COLUMN_NAME_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                   + NotePad.Counts.COLUMN_NAME_TODO_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                   + NotePad.Counts.COLUMN_NAME_DONE_COUNT + " INTEGER NOT NULL DEFAULT 0"
+                   + ");");
+           db.execSQL("INSERT INTO " + TOTALS_TABLE_NAME + " ("
+                   + NotePad.Counts.COLUMN_NAME_NOTE_COUNT + ", "
+                   + NotePad.Counts.COLUMN_NAME_TODO_COUNT + ", "
+                   + NotePad.Counts.COLUMN_NAME_DONE_COUNT + ") VALUES ("
+                   + "(SELECT COUNT(*) FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                   + isLive(NotePad.Notes.TABLE_NAME) + "), "
+                   + "(SELECT COUNT(*) FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                   + isOpenTodo(NotePad.Notes.TABLE_NAME) + "), "
+                   + "(SELECT COUNT(*) FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                   + isDoneTodo(NotePad.Notes.TABLE_NAME) + "));");
+       }
+
+       /**
+        * Creates the triggers that keep the totals up to date, in the same transaction as every
+        * insert, delete and update on the notes. Each trigger adds the new row's part of each
+        * total and takes away the old row's, so it needs no WHEN clause: a comparison is 1 when
+        * the row counts toward a total and 0 when it doesn't.
+        */
+       private void createTotalsTriggers(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER " + TOTALS_TABLE_NAME + "_insert AFTER INSERT ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + updateTotals("new", "+") + "; END;");
+
+           db.execSQL("CREATE TRIGGER " + TOTALS_TABLE_NAME + "_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + updateTotals("old", "-") + "; END;");
+
+           db.execSQL("CREATE TRIGGER " + TOTALS_TABLE_NAME + "_update AFTER UPDATE OF "
+                   + NotePad.Notes.COLUMN_NAME_IS_TODO + ", " + NotePad.Notes.COLUMN_NAME_IS_DONE
+                   + ", " + NotePad.Notes.COLUMN_NAME_DELETED_DATE + " ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + updateTotals("old", "-") + "; "
+                   + updateTotals("new", "+") + "; END;");
+       }
+
+       /**
+        * Creates the trigger that adds 1 to a note's version whenever something other than the
+        * provider updates the note. The provider's own updates add 1 to the version themselves,
+        * and an update that changes the version is left as it is, which also keeps the
+        * trigger's own update from running it again.
+        */
+       private void createVersionTrigger(SQLiteDatabase db) {
+           String version = NotePad.Notes.COLUMN_NAME_VERSION;
+           db.execSQL("CREATE TRIGGER " + NotePad.Notes.TABLE_NAME + "_" + version
+                   + " AFTER UPDATE ON " + NotePad.Notes.TABLE_NAME + " WHEN new." + version
+                   + " = old." + version + " BEGIN "
+                   + "UPDATE " + NotePad.Notes.TABLE_NAME + " SET " + version + " = old."
+                   + version + " + 1 WHERE " + NotePad.Notes._ID + " = new." + NotePad.Notes._ID
+                   + "; END;");
+       }
+
+       /**
+        * Returns the statement that adds a row of the notes table to the totals, or takes it
+        * away from them.
+        *
+        * @param row The name of the row in the trigger, "new" or "old".
+        * @param sign "+" to add the row, or "-" to take it away.
+        */
+       private static String updateTotals(String row, String sign) {
+           String notes = NotePad.Counts.COLUMN_NAME_NOTE_COUNT;
+           String todo = NotePad.Counts.COLUMN_NAME_TODO_COUNT;
+           String done = NotePad.Counts.COLUMN_NAME_DONE_COUNT;
+           return "UPDATE " + TOTALS_TABLE_NAME + " SET "
+                   + notes + " = " + notes + " " + sign + " (" + isLive(row) + "), "
+                   + todo + " = " + todo + " " + sign + " (" + isOpenTodo(row) + "), "
+                   + done + " = " + done + " " + sign + " (" + isDoneTodo(row) + ")";
+       }
+
+       // Whether a note isn't in the trash.
+       private static String isLive(String row) {
+           return row + "." + NotePad.Notes.COLUMN_NAME_DELETED_DATE + " = 0";
+       }
+
+       // Whether a note is a to-do that isn't done, and isn't in the trash.
+       private static String isOpenTodo(String row) {
+           return isLive(row) + " AND " + row + "." + NotePad.Notes.COLUMN_NAME_IS_TODO
+                   + " IS 1 AND " + row + "." + NotePad.Notes.COLUMN_NAME_IS_DONE + " IS NOT 1";
+       }
+
+       // Whether a note is a to-do that is done, and isn't in the trash.
+       private static String isDoneTodo(String row) {
+           return isLive(row) + " AND " + row + "." + NotePad.Notes.COLUMN_NAME_IS_TODO
+                   + " IS 1 AND " + row + "." + NotePad.Notes.COLUMN_NAME_IS_DONE + " IS 1";
+       }
+
+       /**
+        * Creates the indexes behind the list's access paths. Every list query sorts on the
+        * modification date, optionally after filtering on the category, the to-do state or both,
+        * so each filter combination gets an index that ends in the modification date. SQLite can
+        * then walk it in order instead of sorting the matching rows into a temporary B-tree.
+        *
+        * Categories are filtered on by their integer ID.
+        *
+        * Every index starts with the deleted date. The lists only show notes that aren't in the
+        * trash, which all have a deleted date of 0, so they still walk one range of each index in
+        * order. The trash is listed, and purged, through the same column.
+        */
+       private void createListIndexes(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX notes_modified_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_DELETED_DATE + ", "
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+           db.execSQL("CREATE INDEX notes_category_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_DELETED_DATE + ", "
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+           db.execSQL("CREATE INDEX notes_todo_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_DELETED_DATE + ", "
+                   + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+                   + NotePad.Notes.COLUMN_NAME_IS_DONE + ", "
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+           db.execSQL("CREATE INDEX notes_category_todo_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_DELETED_DATE + ", "
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                   + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+                   + NotePad.Notes.COLUMN_NAME_IS_DONE + ", "
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+       }
+
+       /**
+        * Creates the full-text search table. It is kept in sync by the triggers that
+        * createTriggers() adds.
+        */
+       private void createSearchTable(SQLiteDatabase db) {
+           db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                   + NotePad.Notes.COLUMN_NAME_NOTE
                    + ");");
        }
 
+       /**
+        * Creates the triggers that keep the full-text search table and the body table in step
+        * with every insert, update and delete on the notes, including writes made outside the
+        * provider. A note's title is indexed from the notes table and its text from the body
+        * table, so each table has its own triggers. Deleting a note also deletes its body.
+        *
+        * The body triggers skip compressed text, which SQLite can't read. The provider indexes
+        * the text of those notes itself when it writes them.
+        */
+       private void createTriggers(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_insert AFTER INSERT ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                   + ") VALUES (new." + NotePad.Notes._ID + ", new."
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", (SELECT "
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + BODIES_TABLE_NAME + " WHERE "
+                   + BODIES_COLUMN_NAME_NOTE_ID + " = new." + NotePad.Notes._ID + ")); END;");
+
+           db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_update AFTER UPDATE OF "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + " ON " + NotePad.Notes.TABLE_NAME
+                   + " BEGIN "
+                   + "UPDATE " + FTS_TABLE_NAME + " SET "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + " = new." + NotePad.Notes.COLUMN_NAME_TITLE
+                   + " WHERE docid = new." + NotePad.Notes._ID + "; END;");
+
+           db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + NotePad.Notes._ID
+                   + "; DELETE FROM " + BODIES_TABLE_NAME + " WHERE "
+                   + BODIES_COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID + "; END;");
+
+           db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_body_insert AFTER INSERT ON "
+                   + BODIES_TABLE_NAME + UNCOMPRESSED_BODY + " BEGIN "
+                   + "UPDATE " + FTS_TABLE_NAME + " SET " + NotePad.Notes.COLUMN_NAME_NOTE
+                   + " = new." + NotePad.Notes.COLUMN_NAME_NOTE
+                   + " WHERE docid = new." + BODIES_COLUMN_NAME_NOTE_ID + "; END;");
+
+           db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_body_update AFTER UPDATE OF "
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " ON " + BODIES_TABLE_NAME
+                   + UNCOMPRESSED_BODY + " BEGIN "
+                   + "UPDATE " + FTS_TABLE_NAME + " SET " + NotePad.Notes.COLUMN_NAME_NOTE
+                   + " = new." + NotePad.Notes.COLUMN_NAME_NOTE
+                   + " WHERE docid = new." + BODIES_COLUMN_NAME_NOTE_ID + "; END;");
+       }
+
        /**
         *
-        * Demonstrates that the provider must consider what happens when the
-        * underlying datastore is changed. In this sample, the database is upgraded the database
-        * by destroying the existing data.
-        * A real application should upgrade the database in place.
+        * Upgrades the database in place, one schema version at a time. Databases older than
+        * version 4 predate the category and to-do columns and are still rebuilt from scratch.
         */
        @Override
        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-           db.execSQL("DROP TABLE IF EXISTS " + NotePad.Notes.TABLE_NAME);
-           onCreate(db);
+           if (oldVersion < 4) {
+               db.execSQL("DROP TABLE IF EXISTS " + NotePad.Notes.TABLE_NAME);
+               db.execSQL("DROP TABLE IF EXISTS " + BODIES_TABLE_NAME);
+               db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME);
+               db.execSQL("DROP TABLE IF EXISTS " + REVISIONS_TABLE_NAME);
+               db.execSQL("DROP TABLE IF EXISTS " + NotePad.Categories.TABLE_NAME);
+               db.execSQL("DROP TABLE IF EXISTS " + TOTALS_TABLE_NAME);
+               onCreate(db);
+               return;
+           }
+
+           // Version 5 adds the full-text search index, filled from the existing notes. Its
+           // triggers are created by the version 7 step, which rebuilds the notes table.
+           if (oldVersion < 5) {
+               createSearchTable(db);
+               db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                       + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                       + ") SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                       + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                       + " FROM " + NotePad.Notes.TABLE_NAME + ";");
+           }
+
+           // Version 6 added the indexes behind the list's filter and sort combinations. The
+           // version 7 step creates them, in their current form, when it rebuilds the notes table.
+
+           // Version 12 moves the category names into their own table. The names are collected
+           // here, before the version 7 step, which replaces them with their IDs when it rebuilds
+           // the notes table.
+           if (oldVersion < 12) {
+               createCategoriesTable(db);
+               db.execSQL("INSERT OR IGNORE INTO " + NotePad.Categories.TABLE_NAME + " ("
+                       + NotePad.Categories.COLUMN_NAME_NAME + ") SELECT "
+                       + NotePad.Notes.COLUMN_NAME_CATEGORY + " FROM " + NotePad.Notes.TABLE_NAME
+                       + " WHERE " + NotePad.Notes.COLUMN_NAME_CATEGORY + " != '' GROUP BY "
+                       + NotePad.Notes.COLUMN_NAME_CATEGORY + " ORDER BY MIN("
+                       + NotePad.Notes._ID + ");");
+           }
+
+           // Version 7 moves the note text into the body table.
+           if (oldVersion < 7) {
+               splitNoteBodies(db);
+           }
+
+           // Version 8 adds the preview of each note's text. The version 7 step rebuilds the
+           // notes table with the column already in it.
+           if (oldVersion < 8) {
+               if (oldVersion == 7) {
+                   db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                           + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT;");
+               }
+               fillPreviews(db);
+           }
+
+           // Version 9 stops the body triggers from indexing compressed text.
+           if (oldVersion < 9) {
+               dropTriggers(db);
+               createTriggers(db);
+           }
+
+           // Version 10 adds the revision history, starting with each note's current text.
+           if (oldVersion < 10) {
+               createRevisionsTable(db);
+               db.execSQL(INSERT_FIRST_REVISION_SQL + ";");
+           }
+
+           // Version 11 adds the trash, and starts every list index with the deleted date. The
+           // version 7 step rebuilds the notes table with the column already in it, and the
+           // version 12 step creates the indexes when it rebuilds the table.
+           if (oldVersion < 11 && oldVersion >= 7) {
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_DELETED_DATE + " INTEGER NOT NULL DEFAULT 0;");
+           }
+
+           // Version 12 replaces each note's category name with the category's ID, and counts
+           // the notes in each category. The version 7 step has already rebuilt older tables.
+           if (oldVersion < 12) {
+               if (oldVersion >= 7) {
+                   rebuildNotesTable(db, NotePad.Notes._ID + ", "
+                           + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                           + NotePad.Notes.COLUMN_NAME_PREVIEW + ", "
+                           + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                           + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                           + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+                           + NotePad.Notes.COLUMN_NAME_IS_DONE + ", "
+                           + NotePad.Notes.COLUMN_NAME_DELETED_DATE);
+                   createRevisionsTrigger(db);
+               }
+               db.execSQL(COUNT_CATEGORY_NOTES_SQL + ";");
+           }
+
+           // Version 13 adds the totals behind the counts, starting from the existing notes.
+           if (oldVersion < 13) {
+               createTotalsTable(db);
+               createTotalsTriggers(db);
+           }
+
+           // Version 14 adds the version of each note, starting at 1. The version 7 and 12 steps
+           // rebuild older tables with the column already in them.
+           if (oldVersion < 14) {
+               if (oldVersion >= 12) {
+                   db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                           + NotePad.Notes.COLUMN_NAME_VERSION + " INTEGER NOT NULL DEFAULT 1;");
+               }
+               createVersionTrigger(db);
+           }
+       }
+
+       /**
+        * Drops the triggers that createTriggers() creates, so that they can be created again.
+        */
+       private void dropTriggers(SQLiteDatabase db) {
+           for (String suffix : new String[] {
+                   "_insert", "_update", "_delete", "_body_insert", "_body_update" }) {
+               db.execSQL("DROP TRIGGER IF EXISTS " + FTS_TABLE_NAME + suffix + ";");
+           }
+       }
+
+       /**
+        * Computes the preview of every note from its text.
+        */
+       private void fillPreviews(SQLiteDatabase db) {
+           Cursor cursor = db.query(BODIES_TABLE_NAME,
+                   new String[] { BODIES_COLUMN_NAME_NOTE_ID, NotePad.Notes.COLUMN_NAME_NOTE },
+                   null, null, null, null, null);
+           SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                   + " SET " + NotePad.Notes.COLUMN_NAME_PREVIEW + " = ? WHERE "
+                   + NotePad.Notes._ID + " = ?");
+           try {
+               while (cursor.moveToNext()) {
+                   DatabaseUtils.bindObjectToProgram(update, 1, buildPreview(cursor.getString(1)));
+                   update.bindLong(2, cursor.getLong(0));
+                   update.executeUpdateDelete();
+               }
+           } finally {
+               cursor.close();
+               update.close();
+           }
+       }
+
+       /**
+        * Moves the text of every note into the body table, then rebuilds the notes table without
+        * its note column. The search index already holds the text, so it is left as it is.
+        */
+       private void splitNoteBodies(SQLiteDatabase db) {
+           createBodiesTable(db);
+           db.execSQL("INSERT INTO " + BODIES_TABLE_NAME + " (" + BODIES_COLUMN_NAME_NOTE_ID
+                   + ", " + NotePad.Notes.COLUMN_NAME_NOTE + ") SELECT " + NotePad.Notes._ID
+                   + ", " + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME
+                   + ";");
+
+           rebuildNotesTable(db, NotePad.Notes._ID + ", "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                   + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                   + NotePad.Notes.COLUMN_NAME_IS_TODO + ", "
+                   + NotePad.Notes.COLUMN_NAME_IS_DONE);
+       }
+
+       /**
+        * Rebuilds the notes table in its current form, keeping the given columns of each note
+        * and replacing its category name with the category's ID. The categories table must
+        * already hold every name. SQLite can't drop a column, so the new table is created under
+        * a temporary name, filled, and renamed. Dropping the old table also drops its indexes
+        * and triggers, which are then created again on the new one.
+        *
+        * @param columns The columns to copy, separated by commas.
+        */
+       private void rebuildNotesTable(SQLiteDatabase db, String columns) {
+           String narrowTable = NotePad.Notes.TABLE_NAME + "_narrow";
+           createNotesTable(db, narrowTable);
+           db.execSQL("INSERT INTO " + narrowTable + " (" + columns + ", "
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ") SELECT " + columns + ", (SELECT "
+                   + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + " FROM "
+                   + NotePad.Categories.TABLE_NAME + " WHERE " + NotePad.Categories.TABLE_NAME
+                   + "." + NotePad.Categories.COLUMN_NAME_NAME + " = " + NotePad.Notes.TABLE_NAME
+                   + "." + NotePad.Notes.COLUMN_NAME_CATEGORY + ") FROM "
+                   + NotePad.Notes.TABLE_NAME + ";");
+           dropTriggers(db);
+           db.execSQL("DROP TABLE " + NotePad.Notes.TABLE_NAME + ";");
+           db.execSQL("ALTER TABLE " + narrowTable + " RENAME TO " + NotePad.Notes.TABLE_NAME
+                   + ";");
+
+           createTriggers(db);
+           createCategoryTriggers(db);
+           createListIndexes(db);
        }
    }
 
@@ -238,10 +1329,55 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        // something tries to access it, and it's only created if it doesn't already exist.
        mOpenHelper = new DatabaseHelper(getContext());
 
+       // Reads whether and above what length note text is compressed.
+       Resources res = getContext().getResources();
+       mCompressionThreshold = res.getBoolean(R.bool.note_body_compression)
+               ? res.getInteger(R.integer.note_body_compression_threshold) : -1;
+
+       // Keeps recently read notes in memory, up to the configured size.
+       mNoteCache = new NoteCache(res.getInteger(R.integer.note_cache_size));
+
+       // Measures the calls made to the provider, keeping the queries slower than the threshold.
+       mMetrics = new ProviderMetrics(res.getInteger(R.integer.note_slow_query_threshold),
+               res.getInteger(R.integer.note_slow_query_log_size));
+
+       // Sends change notifications through the content resolver, merging those that arrive
+       // within a short window of each other.
+       mNotifications = new NotificationCoalescer(new Handler(Looper.getMainLooper()),
+               res.getInteger(R.integer.note_change_notification_delay), ROOT_URI,
+               new NotificationCoalescer.Sink() {
+                   @Override
+                   public void notifyChange(Uri uri) {
+                       getContext().getContentResolver().notifyChange(uri, null);
+                   }
+               });
+
+       // Purges the notes that have been in the trash too long on a background thread, soon
+       // after the provider starts and then periodically.
+       mTrashRetention = res.getInteger(R.integer.note_trash_retention_days) * 24L * 60 * 60 * 1000;
+       if (mTrashRetention > 0) {
+           mPurgeThread = new HandlerThread("NotePadPurge", Process.THREAD_PRIORITY_BACKGROUND);
+           mPurgeThread.start();
+           mPurgeHandler = new Handler(mPurgeThread.getLooper());
+           mPurgeHandler.postDelayed(mPurge, PURGE_START_DELAY);
+       }
+
        // Assumes that any failures will be reported by a thrown exception.
        return true;
    }
 
+   /**
+    * Closes the compiled statements that the provider keeps.
+    */
+   @Override
+   public void shutdown() {
+       if (mPurgeThread != null) {
+           mPurgeThread.quit();
+       }
+       mNotifications.flush();
+       mStatements.clear();
+   }
+
    /**
     * This method is called when a client calls
     * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String)}.
@@ -255,35 +1391,328 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
            String sortOrder) {
 
-       // Constructs a new query builder and sets its table name
-       SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-       qb.setTables(NotePad.Notes.TABLE_NAME);
+       long start = System.nanoTime();
+       int match = sUriMatcher.match(uri);
+       Cursor c;
+
+       if (selection == null && match == NOTE_ID && NoteCache.covers(projection)) {
+           // Answers queries for the columns of a single note from the cache of recently read
+           // notes.
+           c = queryNoteThroughCache(uri, projection);
+       } else if (match == NOTE_REVISION_ID) {
+           // Rebuilds the text of a single revision from the stored changes.
+           if (selection != null) {
+               throw new IllegalArgumentException("Selection not supported on " + uri);
+           }
+           c = queryRevision(uri, projection);
+       } else {
+           c = queryDatabase(uri, projection, selection, selectionArgs, sortOrder);
+       }
 
-       /**
-        * Choose the projection and adjust the "where" clause based on URI pattern-matching.
-        */
-       switch (sUriMatcher.match(uri)) {
+       // rawQuery() only prepares the statement, which runs when the cursor's window is first
+       // filled. Counting the rows fills it here, so that the latency includes running the
+       // query. A caller in another process costs no extra read, since the binder counts the
+       // rows anyway before it sends the cursor.
+       int rows = c.getCount();
+       long micros = mMetrics.record("query", patternOf(uri), start, rows);
+       if (mMetrics.isSlow(micros)) {
+           String plan = match == NOTE_REVISION_ID
+                   ? null : explainQuery(uri, projection, selection, selectionArgs, sortOrder);
+           mMetrics.recordSlowQuery(micros, rows, uri.toString(), selection, plan);
+       }
+       return c;
+   }
+
+   /**
+    * Returns the plan that SQLite chooses for the statement that query() runs for the given
+    * arguments, one step per line.
+    */
+   private String explainQuery(Uri uri, String[] projection, String selection,
+           String[] selectionArgs, String sortOrder) {
+       QuerySpec spec = buildQuery(uri, projection, selection, selectionArgs, sortOrder);
+       Cursor c = mOpenHelper.getReadableDatabase().rawQuery(
+               "EXPLAIN QUERY PLAN " + spec.sql, spec.selectionArgs);
+       StringBuilder plan = new StringBuilder();
+       try {
+           int detailIndex = c.getColumnIndexOrThrow("detail");
+           while (c.moveToNext()) {
+               plan.append(c.getString(detailIndex)).append('\n');
+           }
+       } finally {
+           c.close();
+       }
+       return plan.toString();
+   }
+
+   /**
+    * Returns a single revision of a note, with its text.
+    */
+   private Cursor queryRevision(Uri uri, String[] projection) {
+       List<String> segments = uri.getPathSegments();
+       long noteId = Long.parseLong(segments.get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+       long revision = Long.parseLong(segments.get(NotePad.Revisions.REVISION_PATH_POSITION));
+
+       Object[] row = NoteRevisions.read(mOpenHelper.getReadableDatabase(), noteId, revision);
+       Cursor c = NoteRevisions.toCursor(row, projection);
+       c.setNotificationUri(getContext().getContentResolver(), uri);
+       return c;
+   }
+
+   /**
+    * Returns a single note from the cache of recently read notes. A note that isn't there is
+    * read from the database and cached if the query asks for its text. A query that doesn't,
+    * such as a list row's or a title's, reads only the columns it asks for and caches nothing,
+    * so that it never reads the body.
+    */
+   private Cursor queryNoteThroughCache(Uri uri, String[] projection) {
+       long noteId = Long.parseLong(
+               uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+
+       Object[] row = mNoteCache.get(noteId);
+       if (row == null && projection != null
+               && !Arrays.asList(projection).contains(NotePad.Notes.COLUMN_NAME_NOTE)) {
+           return queryDatabase(uri, projection, null, null, null);
+       }
+       if (row == null) {
+           // Takes the generation first, so that a note changed during the read isn't cached.
+           long generation = mNoteCache.generation();
+           ArrayList<Object[]> rows = new ArrayList<Object[]>(1);
+           Cursor c = queryDatabase(uri, NoteCache.COLUMNS, null, null, null);
+           try {
+               NotesListCursor.appendRows(c, rows);
+           } finally {
+               c.close();
+           }
+           if (!rows.isEmpty()) {
+               row = rows.get(0);
+               mNoteCache.put(noteId, row, generation);
+           }
+       }
+
+       Cursor c = NoteCache.toCursor(row, projection);
+       c.setNotificationUri(getContext().getContentResolver(), uri);
+       return c;
+   }
+
+   /**
+    * Answers a query from the database.
+    */
+   private Cursor queryDatabase(Uri uri, String[] projection, String selection,
+           String[] selectionArgs, String sortOrder) {
+
+       // Builds the SQL statement for the incoming URI pattern and arguments
+       QuerySpec spec = buildQuery(uri, projection, selection, selectionArgs, sortOrder);
+
+       // Opens the database object in "read" mode, since no writes need to be done.
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+       /*
+        * Performs the query. If no problems occur trying to read the database, then a Cursor
+        * object is returned; otherwise, the cursor variable contains null. If no records were
+        * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
+        */
+       Cursor c = db.rawQuery(spec.sql, spec.selectionArgs);
+
+       // Tells the Cursor what URI to watch, so it knows when its source data changes. The
+       // number of notes in a category changes with writes to the notes, which are notified on
+       // their own URIs, so a cursor over the categories or the counts watches every URI of the
+       // provider.
+       int match = sUriMatcher.match(uri);
+       c.setNotificationUri(getContext().getContentResolver(),
+               match == CATEGORIES || match == CATEGORY_ID || match == COUNTS ? ROOT_URI : uri);
+
+       // Returns the text of compressed notes in place of their compressed bytes.
+       int noteColumn = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+       if (noteColumn >= 0) {
+           c = new NoteCompression.DecompressingCursor(c, noteColumn);
+       }
+       return c;
+   }
+
+   /**
+    * The SQL statement and the arguments to bind to it that answer one call to query(). Set to
+    * package visibility so that tests can examine the query plan.
+    */
+   static final class QuerySpec {
+       final String sql;
+       final String[] selectionArgs;
+
+       QuerySpec(String sql, String[] selectionArgs) {
+           this.sql = sql;
+           this.selectionArgs = selectionArgs;
+       }
+   }
+
+   /**
+    * Builds the statement that query() runs for the given arguments. Set to package visibility
+    * so that tests can run EXPLAIN QUERY PLAN on exactly what the provider executes.
+    *
+    * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+    */
+   QuerySpec buildQuery(Uri uri, String[] projection, String selection, String[] selectionArgs,
+           String sortOrder) {
+
+       int uriMatch = sUriMatcher.match(uri);
+
+       // The tables, projection map and WHERE clause chosen for the URI. Values read from the
+       // URI are bound as arguments, so that the SQL is the same for every URI of a pattern.
+       String tables = NotePad.Notes.TABLE_NAME;
+       HashMap<String, String> projectionMap;
+       String where;
+
+       // The sort order used when the caller doesn't supply one
+       String defaultOrderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+
+       // The maximum number of rows to return, or null to return all of them
+       String limit = null;
+
+       // Whether the query reads or filters on the note text, which is in the body table
+       boolean readsBody = readsBody(projection, selection, sortOrder);
+
+       /**
+        * Choose the projection and adjust the "where" clause based on URI pattern-matching.
+        */
+       switch (uriMatch) {
            // If the incoming URI is for notes, chooses the Notes projection
            case NOTES:
-               qb.setProjectionMap(sNotesProjectionMap);
+               projectionMap = sNotesProjectionMap;
+               if (readsBody) {
+                   tables = NotePad.Notes.TABLE_NAME + BODIES_JOIN;
+               }
+               where = LIVE_NOTES;
+
+               String pageSize = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+               if (pageSize != null) {
+                   limit = Integer.toString(parsePageSize(pageSize));
+
+                   // Pages must come in the order that the "after" position refers to.
+                   sortOrder = PAGE_SORT_ORDER;
+
+                   String afterModified =
+                           uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_MODIFIED);
+                   String afterId = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID);
+                   if (afterModified != null || afterId != null) {
+                       if (afterModified == null || afterId == null) {
+                           throw new IllegalArgumentException(
+                                   "Both after_modified and after_id are required: " + uri);
+                       }
+                       afterModified = Long.toString(Long.parseLong(afterModified));
+                       afterId = Long.toString(Long.parseLong(afterId));
+
+                       // Seeks past the previous page instead of skipping over it with OFFSET.
+                       // The first term is a range on the index that the list is sorted by.
+                       where = LIVE_NOTES + " AND "
+                               + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= ? AND ("
+                               + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ? OR "
+                               + NotePad.Notes._ID + " < ?)";
+                       selectionArgs = prependArgs(selectionArgs,
+                               afterModified, afterModified, afterId);
+                   }
+               }
                break;
 
            /* If the incoming URI is for a single note identified by its ID, chooses the
-            * note ID projection, and appends "_ID = <noteID>" to the where clause, so that
-            * it selects that single note
+            * note ID projection, and selects the note by "_ID = ?", binding the ID from the
+            * incoming URI
             */
            case NOTE_ID:
-               qb.setProjectionMap(sNotesProjectionMap);
-               qb.appendWhere(
-                   NotePad.Notes._ID +    // the name of the ID column
-                   "=" +
-                   // the position of the note ID itself in the incoming URI
-                   uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+               projectionMap = sNotesProjectionMap;
+               if (readsBody) {
+                   tables = NotePad.Notes.TABLE_NAME + BODIES_JOIN;
+               }
+               where = LIVE_NOTES + " AND " + NotePad.Notes._ID + " = ?";
+               selectionArgs = prependArgs(selectionArgs,
+                       idFromUri(uri, NotePad.Notes.NOTE_ID_PATH_POSITION));
+               break;
+
+           // Lists the notes in the trash, or one of them, most recently deleted first.
+           case TRASH:
+           case TRASH_ID:
+               projectionMap = sNotesProjectionMap;
+               if (readsBody) {
+                   tables = NotePad.Notes.TABLE_NAME + BODIES_JOIN;
+               }
+               where = TRASHED_NOTES;
+               if (uriMatch == TRASH_ID) {
+                   where = TRASHED_NOTES + " AND " + NotePad.Notes.TABLE_NAME + "."
+                           + NotePad.Notes._ID + " = ?";
+                   selectionArgs = prependArgs(selectionArgs,
+                           idFromUri(uri, NotePad.Notes.TRASH_ID_PATH_POSITION));
+               }
+               defaultOrderBy = NotePad.Notes.TRASH_SORT_ORDER;
                break;
 
            case LIVE_FOLDER_NOTES:
                // If the incoming URI is from a live folder, chooses the live folder projection.
-               qb.setProjectionMap(sLiveFolderProjectionMap);
+               projectionMap = sLiveFolderProjectionMap;
+               where = LIVE_NOTES;
+               break;
+
+           // Lists the categories, or one of them, with the number of notes in each.
+           case CATEGORIES:
+           case CATEGORY_ID:
+               tables = NotePad.Categories.TABLE_NAME;
+               projectionMap = sCategoriesProjectionMap;
+               where = null;
+               if (uriMatch == CATEGORY_ID) {
+                   where = NotePad.Categories._ID + " = ?";
+                   selectionArgs = prependArgs(selectionArgs,
+                           idFromUri(uri, NotePad.Categories.CATEGORY_ID_PATH_POSITION));
+               }
+               defaultOrderBy = NotePad.Categories.DEFAULT_SORT_ORDER;
+               break;
+
+           // Reads the counts, which the triggers keep up to date, so no note is counted here.
+           case COUNTS:
+               tables = "(" + COUNTS_SQL + ")";
+               projectionMap = sCountsProjectionMap;
+               where = null;
+               defaultOrderBy = NotePad.Counts.DEFAULT_SORT_ORDER;
+               break;
+
+           // Lists the revisions of one note, newest first unless the caller asks otherwise.
+           case NOTE_REVISIONS:
+               tables = REVISIONS_TABLE_NAME;
+               projectionMap = sRevisionsProjectionMap;
+               where = NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?";
+               selectionArgs = prependArgs(selectionArgs,
+                       idFromUri(uri, NotePad.Notes.NOTE_ID_PATH_POSITION));
+               defaultOrderBy = NotePad.Revisions.DEFAULT_SORT_ORDER;
+               break;
+
+           case SEARCH:
+               String terms = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH);
+               String match = buildMatchExpression(terms);
+               if (match != null) {
+                   // Joins the notes to the notes that match the terms, and ranks them unless the
+                   // caller asked for another order. The match is the first argument, since the
+                   // derived table comes before the where clause.
+                   tables = NotePad.Notes.TABLE_NAME + " JOIN " + SEARCH_MATCHES_TABLE + " ON "
+                           + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID
+                           + " = search_matches.docid" + (readsBody ? BODIES_JOIN : "");
+                   projectionMap = sSearchProjectionMap;
+                   where = LIVE_NOTES;
+                   selectionArgs = prependArgs(selectionArgs, match);
+                   defaultOrderBy = SEARCH_RANK_ORDER;
+               } else {
+                   projectionMap = sNotesProjectionMap;
+                   if (!TextUtils.isEmpty(terms)) {
+                       // The FTS tokenizer can't split text without spaces (such as Chinese)
+                       // into words, so such terms fall back to a substring scan.
+                       tables = NotePad.Notes.TABLE_NAME + BODIES_JOIN;
+                       where = LIVE_NOTES + " AND (" + NotePad.Notes.COLUMN_NAME_TITLE
+                               + " LIKE ? OR "
+                               + BODIES_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE
+                               + " LIKE ?)";
+                       String like = "%" + terms.trim() + "%";
+                       selectionArgs = prependArgs(selectionArgs, like, like);
+                   } else {
+                       if (readsBody) {
+                           tables = NotePad.Notes.TABLE_NAME + BODIES_JOIN;
+                       }
+                       where = LIVE_NOTES;
+                   }
+               }
                break;
 
            default:
@@ -295,33 +1724,127 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        String orderBy;
        // If no sort order is specified, uses the default
        if (TextUtils.isEmpty(sortOrder)) {
-           orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+           orderBy = defaultOrderBy;
        } else {
            // otherwise, uses the incoming sort order
            orderBy = sortOrder;
        }
 
-       // Opens the database object in "read" mode, since no writes need to be done.
-       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+       // Reuses the SQL built for an earlier query of the same shape.
+       QueryPlanCache.Key key = new QueryPlanCache.Key(
+               uriMatch, tables, where, projection, selection, orderBy, limit);
+       String sql = mQueryPlans.get(key);
+       if (sql == null) {
+           // Constructs a new query builder for the chosen tables, projection and clause
+           SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+           qb.setTables(tables);
+           qb.setProjectionMap(projectionMap);
+           if (where != null) {
+               qb.appendWhere(where);
+           }
+
+           sql = qb.buildQuery(
+               projection,    // The columns to return from the query
+               selection,     // The columns for the where clause
+               null,          // don't group the rows
+               null,          // don't filter by row groups
+               orderBy,       // The sort order
+               limit          // The page size, if any
+           );
+           mQueryPlans.put(key, sql);
+       }
+       return new QuerySpec(sql, selectionArgs);
+   }
 
-       /*
-        * Performs the query. If no problems occur trying to read the database, then a Cursor
-        * object is returned; otherwise, the cursor variable contains null. If no records were
-        * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
-        */
-       Cursor c = qb.query(
-           db,            // The database to query
-           projection,    // The columns to return from the query
-           selection,     // The columns for the where clause
-           selectionArgs, // The values for the where clause
-           null,          // don't group the rows
-           null,          // don't filter by row groups
-           orderBy        // The sort order
-       );
-
-       // Tells the Cursor what URI to watch, so it knows when its source data changes
-       c.setNotificationUri(getContext().getContentResolver(), uri);
-       return c;
+   /**
+    * Returns the ID at the given position of a URI's path, checked to be a number, to be bound
+    * as an argument.
+    */
+   private static String idFromUri(Uri uri, int position) {
+       return Long.toString(Long.parseLong(uri.getPathSegments().get(position)));
+   }
+
+   /**
+    * Returns true if a query on the notes needs the note text, and so has to join the body
+    * table. A null projection returns every column, including the text.
+    */
+   private static boolean readsBody(String[] projection, String selection, String sortOrder) {
+       if (projection == null) {
+           return true;
+       }
+       for (String column : projection) {
+           if (NotePad.Notes.COLUMN_NAME_NOTE.equals(column)) {
+               return true;
+           }
+       }
+       return mentionsBody(selection) || mentionsBody(sortOrder);
+   }
+
+   /**
+    * Returns true if a selection or sort order refers to the note text column.
+    */
+   private static boolean mentionsBody(String clause) {
+       return clause != null && NOTE_COLUMN_PATTERN.matcher(clause).find();
+   }
+
+   /**
+    * Converts the user's search terms into an FTS MATCH expression in which every term is a
+    * prefix query, so that results update while a word is still being typed. Quotes are
+    * stripped so that the terms can't inject FTS query syntax.
+    *
+    * @param terms The raw search terms, separated by whitespace.
+    * @return The MATCH expression, or null if there are no terms or if some of them contain
+    * characters that the FTS tokenizer can't split into words.
+    */
+   static String buildMatchExpression(String terms) {
+       if (terms == null) {
+           return null;
+       }
+
+       StringBuilder match = new StringBuilder();
+       for (String term : terms.replace('"', ' ').trim().split("\\s+")) {
+           if (term.length() == 0) {
+               continue;
+           }
+           for (int i = 0; i < term.length(); i++) {
+               if (term.charAt(i) > 0x7f) {
+                   return null;
+               }
+           }
+           if (match.length() > 0) {
+               match.append(' ');
+           }
+           match.append('"').append(term).append("*\"");
+       }
+       return match.length() > 0 ? match.toString() : null;
+   }
+
+   /**
+    * Parses the page size requested by a paged query, capped at
+    * {@link NotePad.Notes#MAX_PAGE_SIZE}.
+    *
+    * @throws IllegalArgumentException if the page size isn't a positive number.
+    */
+   private static int parsePageSize(String pageSize) {
+       int size = Integer.parseInt(pageSize);
+       if (size <= 0) {
+           throw new IllegalArgumentException("Invalid page size " + pageSize);
+       }
+       return Math.min(size, NotePad.Notes.MAX_PAGE_SIZE);
+   }
+
+   /**
+    * Returns selection arguments with the given values placed in front of the caller's own, for
+    * clauses that the provider adds ahead of the caller's selection.
+    */
+   private static String[] prependArgs(String[] selectionArgs, String... values) {
+       int length = selectionArgs == null ? 0 : selectionArgs.length;
+       String[] args = new String[values.length + length];
+       System.arraycopy(values, 0, args, 0, values.length);
+       if (selectionArgs != null) {
+           System.arraycopy(selectionArgs, 0, args, values.length, length);
+       }
+       return args;
    }
 
    /**
@@ -340,15 +1863,36 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         */
        switch (sUriMatcher.match(uri)) {
 
-           // If the pattern is for notes or live folders, returns the general content type.
+           // If the pattern is for notes, live folders or search, returns the general content type.
            case NOTES:
            case LIVE_FOLDER_NOTES:
+           case SEARCH:
+           case TRASH:
                return NotePad.Notes.CONTENT_TYPE;
 
            // If the pattern is for note IDs, returns the note ID content type.
            case NOTE_ID:
+           case TRASH_ID:
                return NotePad.Notes.CONTENT_ITEM_TYPE;
 
+           // If the pattern is for categories, returns the category content types.
+           case CATEGORIES:
+               return NotePad.Categories.CONTENT_TYPE;
+
+           case CATEGORY_ID:
+               return NotePad.Categories.CONTENT_ITEM_TYPE;
+
+           // If the pattern is for the counts, returns the counts content type.
+           case COUNTS:
+               return NotePad.Counts.CONTENT_TYPE;
+
+           // If the pattern is for a note's revisions or one of them, returns a revision type.
+           case NOTE_REVISIONS:
+               return NotePad.Revisions.CONTENT_TYPE;
+
+           case NOTE_REVISION_ID:
+               return NotePad.Revisions.CONTENT_ITEM_TYPE;
+
            // If the URI pattern doesn't match any permitted patterns, throws an exception.
            default:
                throw new IllegalArgumentException("Unknown URI " + uri);
@@ -363,14 +1907,23 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
             new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
+    /**
+     * The stream types available for the whole notes directory, which is exported by
+     * {@link NoteExporter}.
+     */
+    static ClipDescription NOTES_STREAM_TYPES = new ClipDescription(null,
+            new String[] { NotePad.Notes.EXPORT_MIME_TYPE });
+
     /**
      * Returns the types of available data streams.  URIs to specific notes are supported.
-     * The application can convert such a note to a plain text stream.
+     * The application can convert such a note to a plain text stream. The notes URI can be
+     * exported as a whole, as JSON Lines.
      *
      * @param uri the URI to analyze
      * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
-     * type for MIME types that match the filter. Currently, only text/plain MIME types match.
-     * @return a data stream MIME type. Currently, only text/plan is returned.
+     * type for MIME types that match the filter.
+     * @return a data stream MIME type: text/plain for a note, or
+     * {@link NotePad.Notes#EXPORT_MIME_TYPE} for the notes URI.
      * @throws IllegalArgumentException if the URI pattern doesn't match any supported patterns.
      */
     @Override
@@ -380,10 +1933,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
+            // If the pattern is for notes, returns the export type if it matches the filter.
             case NOTES:
+                return NOTES_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // If the pattern is for live folders, search, revisions, the trash, categories or
+            // counts, return null. Data streams are not supported for this type of URI.
             case LIVE_FOLDER_NOTES:
+            case SEARCH:
+            case NOTE_REVISIONS:
+            case NOTE_REVISION_ID:
+            case TRASH:
+            case TRASH_ID:
+            case CATEGORIES:
+            case CATEGORY_ID:
+            case COUNTS:
                 return null;
 
             // If the pattern is for note IDs and the MIME filter is text/plain, then return
@@ -415,19 +1979,37 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
             throws FileNotFoundException {
+        long start = System.nanoTime();
+        AssetFileDescriptor file = doOpenTypedAssetFile(uri, mimeTypeFilter, opts);
+        mMetrics.record("open", patternOf(uri), start, 0);
+        return file;
+    }
+
+    // Opens the stream for openTypedAssetFile(), which measures the call. The bytes written to
+    // the stream are counted when the pipe's thread is done with it.
+    private AssetFileDescriptor doOpenTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
 
         // Checks to see if the MIME type filter matches a supported MIME type.
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        // Exports the whole notes directory. The exporter reads the notes on the pipe's thread,
+        // a batch at a time.
+        if (mimeTypes != null && sUriMatcher.match(uri) == NOTES) {
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, mOpenHelper.getWritableDatabase(),
+                            new NoteExporter(mMetrics)), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         // If the MIME type is supported
         if (mimeTypes != null) {
 
-            // Retrieves the note for this URI. Uses the query method defined for this provider,
-            // rather than using the database query method.
-            Cursor c = query(
+            // Retrieves the note's ID and title. Reads the database rather than the cache of
+            // recently read notes, which would read the note's whole text.
+            Cursor c = queryDatabase(
                     uri,                    // The URI of a note
-                    READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID, title,
-                                            // and contents
+                    READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID and title
                     null,                   // No WHERE clause, get all matching records
                     null,                   // Since there is no WHERE clause, no selection criteria
                     null                    // Use the default sort order (modification date,
@@ -461,30 +2043,119 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
      * to perform the actual work of converting the data in one of cursors to a
      * stream of data for the client to read.
+     *
+     * The stream is the note's title, an empty line, the note's text and a line break, in UTF-8.
+     * If opts holds {@link NotePad.Notes#OPT_RANGE_START} or
+     * {@link NotePad.Notes#OPT_RANGE_LENGTH}, only that range of its bytes is written.
      */
     @Override
     public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
             Bundle opts, Cursor c) {
         // We currently only support conversion-to-text from a single note entry,
         // so no need for cursor data type checking here.
-        FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
-        PrintWriter pw = null;
+        long start = 0;
+        long length = -1;
+        if (opts != null) {
+            start = opts.getLong(NotePad.Notes.OPT_RANGE_START, 0);
+            length = opts.getLong(NotePad.Notes.OPT_RANGE_LENGTH, -1);
+        }
+
+        long startNanos = System.nanoTime();
+        ProviderMetrics.CountingOutputStream counter = new ProviderMetrics.CountingOutputStream(
+                new FileOutputStream(output.getFileDescriptor()));
+        RangeOutputStream out = new RangeOutputStream(counter, start, length);
         try {
-            pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
-            pw.println(c.getString(READ_NOTE_TITLE_INDEX));
-            pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
-            Log.w(TAG, "Ooops", e);
+            out.write((c.getString(READ_NOTE_TITLE_INDEX) + "\n\n").getBytes("UTF-8"));
+            writeNoteBody(c.getLong(READ_NOTE_ID_INDEX), out);
+            out.write('\n');
+        } catch (IOException e) {
+            // The reader closed its end of the pipe, or the stored text is corrupt.
+            Log.w(TAG, "Stream of " + uri + " ended early", e);
         } finally {
             c.close();
-            if (pw != null) {
-                pw.flush();
-            }
             try {
-                fout.close();
+                out.close();
             } catch (IOException e) {
             }
+            mMetrics.recordStream(patternOf(uri), startNanos, counter.count());
+        }
+    }
+
+    /**
+     * Writes the text of a note to a stream, from the bytes stored for it. Text stored as TEXT is
+     * copied as its UTF-8 bytes, and compressed text is inflated as it is copied, so the text is
+     * never decoded into a String. Only one buffer of it is on the heap at a time. Of
+     * uncompressed text, only the bytes in the stream's range are read from the database.
+     */
+    private void writeNoteBody(long noteId, RangeOutputStream out) throws IOException {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        ParcelFileDescriptor stored = null;
+        boolean compressed = false;
+        long skip = 0;
+
+        // Reads the type and the length of the text, and then the bytes. No transaction is held,
+        // so that this read never takes the write lock. Instead, the bytes are only read if the
+        // text still has the type and the length that were read first, and the type and length
+        // are read again if it doesn't. SQLite copies the bytes into shared memory rather than
+        // onto the heap, and the pipe is only written once they have been read.
+        while (stored == null) {
+            long storedLength = 0;
+            Cursor info = db.rawQuery(BODY_INFO_SQL, new String[] { Long.toString(noteId) });
+            try {
+                if (info.moveToFirst() && !info.isNull(1)) {
+                    compressed = "blob".equals(info.getString(0));
+                    storedLength = info.getLong(1);
+                }
+            } finally {
+                info.close();
+            }
+            if (storedLength == 0) {
+                return;
+            }
+
+            String sql = compressed ? COMPRESSED_BODY_SQL : BODY_RANGE_SQL;
+            SQLiteStatement statement = mStatements.acquire(db, sql);
+            try {
+                if (compressed) {
+                    statement.bindLong(1, noteId);
+                } else {
+                    // Skips no further than the end of the text, since the rest of the stream's
+                    // bytes come after it.
+                    skip = Math.min(out.bytesToSkip(), storedLength);
+                    long wanted = out.bytesWanted();
+                    statement.bindLong(1, skip + 1);
+                    statement.bindLong(2, wanted >= 0 ? wanted : storedLength);
+                    statement.bindLong(3, noteId);
+                    statement.bindLong(4, storedLength);
+                }
+                stored = statement.simpleQueryForBlobFileDescriptor();
+                if (stored == null && !compressed) {
+                    // The range is empty.
+                    out.skipped(skip);
+                    return;
+                }
+            } catch (SQLiteDoneException e) {
+                // The text changed between the two reads.
+            } finally {
+                mStatements.release(db, sql, statement);
+            }
+        }
+
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(stored);
+        try {
+            if (compressed) {
+                in = new InflaterInputStream(in);
+            } else {
+                out.skipped(skip);
+            }
+
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int count;
+            while (!out.isFull() && (count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
         }
     }
 //END_INCLUDE(stream)
@@ -500,60 +2171,28 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
+        long start = System.nanoTime();
+        Uri noteUri = doInsert(uri, initialValues);
+        mMetrics.record("insert", patternOf(uri), start, noteUri != null ? 1 : 0);
+        return noteUri;
+    }
+
+    // Inserts the note for insert(), which measures the call.
+    private Uri doInsert(Uri uri, ContentValues initialValues) {
 
         // Validates the incoming URI. Only the full provider URI is allowed for inserts.
         if (sUriMatcher.match(uri) != NOTES) {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        // A map to hold the new record's values.
-        ContentValues values;
-
-        // If the incoming values map is not null, uses it for the new values.
-        if (initialValues != null) {
-            values = new ContentValues(initialValues);
-
-        } else {
-            // Otherwise, create a new value map
-            values = new ContentValues();
-        }
-
-        // Gets the current system time in milliseconds
-        Long now = Long.valueOf(System.currentTimeMillis());
-
-        // If the values map doesn't contain the creation date, sets the value to the current time.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
-        }
-
-        // If the values map doesn't contain the modification date, sets the value to the current
-        // time.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
-        }
-
-        // If the values map doesn't contain a title, sets the value to the default title.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) == false) {
-            Resources r = Resources.getSystem();
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
-        }
-
-        // If the values map doesn't contain note text, sets the value to an empty string.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
-        }
+        // Copies the incoming values and fills in defaults for any missing columns.
+        ContentValues values = withInsertDefaults(initialValues);
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
         // Performs the insert and returns the ID of the new note.
-        long rowId = db.insert(
-            NotePad.Notes.TABLE_NAME,        // The table to insert into.
-            NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                                             // if values is empty.
-            values                           // A map of column names, and the values to insert
-                                             // into the columns.
-        );
+        long rowId = insertNote(db, values);
 
         // If the insert succeeded, the row ID exists.
         if (rowId > 0) {
@@ -561,7 +2200,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
             // Notifies observers registered against this provider that the data changed.
-            getContext().getContentResolver().notifyChange(noteUri, null);
+            notifyChange(noteUri);
             return noteUri;
         }
 
@@ -570,86 +2209,801 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     }
 
     /**
-     * This is called when a client calls
-     * {@link android.content.ContentResolver#delete(Uri, String, String[])}.
-     * Deletes records from the database. If the incoming URI matches the note ID URI pattern,
-     * this method deletes the one record specified by the ID in the URI. Otherwise, it deletes a
-     * a set of records. The record or records must also match the input selection criteria
-     * specified by where and whereArgs.
+     * Inserts a note into the notes table and its text into the body table, in one transaction.
      *
-     * If rows were deleted, then listeners are notified of the change.
-     * @return If a "where" clause is used, the number of rows affected is returned, otherwise
-     * 0 is returned. To delete all rows and get a row count, use "1" as the where clause.
-     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     * @return The row ID of the new note, or -1 if either insertion failed.
      */
-    @Override
-    public int delete(Uri uri, String where, String[] whereArgs) {
-
-        // Opens the database object in "write" mode.
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        String finalWhere;
+    private long insertNote(SQLiteDatabase db, ContentValues values) {
+        ContentValues noteValues = new ContentValues(values);
+        noteValues.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+        noteValues.remove(NotePad.Notes.COLUMN_NAME_VERSION);
 
-        int count;
+        db.beginTransaction();
+        try {
+            putCategoryId(db, noteValues);
+
+            // The defaults always set the title, so the values are never empty.
+            String[] columns = sortedColumns(noteValues);
+            long rowId = executeInsert(db, buildInsertSql(NotePad.Notes.TABLE_NAME, columns),
+                    bindValues(noteValues, columns));
+            if (rowId <= 0) {
+                return -1;
+            }
 
-        // Does the delete based on the incoming URI pattern.
-        switch (sUriMatcher.match(uri)) {
+            String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            Object stored = NoteCompression.toStoredValue(note, mCompressionThreshold);
+            if (executeInsert(db, INSERT_BODY_SQL, rowId, stored) <= 0) {
+                return -1;
+            }
+            if (stored instanceof byte[]) {
+                indexCompressedNote(db, Long.toString(rowId), note);
+            }
+            if (executeInsert(db, INSERT_FIRST_REVISION_BY_ID_SQL, rowId) <= 0) {
+                return -1;
+            }
 
-            // If the incoming pattern matches the general pattern for notes, does a delete
-            // based on the incoming "where" columns and arguments.
-            case NOTES:
-                count = db.delete(
-                    NotePad.Notes.TABLE_NAME,  // The database table name
-                    where,                     // The incoming where clause column names
-                    whereArgs                  // The incoming where clause values
-                );
-                break;
+            db.setTransactionSuccessful();
+            return rowId;
+        } finally {
+            db.endTransaction();
+        }
+    }
 
-                // If the incoming URI matches a single note ID, does the delete based on the
-                // incoming data, but modifies the where clause to restrict it to the
-                // particular note ID.
-            case NOTE_ID:
-                /*
-                 * Starts a final WHERE clause by restricting it to the
-                 * desired note ID.
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                        " = " +                                          // test for equality
-                        uri.getPathSegments().                           // the incoming note ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
+    /**
+     * Saves the values of one note, selected by ID alone. This is the update that NoteEditor
+     * makes each time it saves, so it runs compiled statements from the cache with the ID bound
+     * as an argument, instead of building a new WHERE clause for every save.
+     *
+     * @param values The values passed to update().
+     * @param noteValues The values for the notes table, including the preview.
+     * @param expectedVersion The version that the note must have to be updated, or null to
+     * update it whatever its version.
+     * @return The number of notes updated, 0 or 1.
+     */
+    private int updateNoteById(SQLiteDatabase db, long noteId, ContentValues values,
+            ContentValues noteValues, Long expectedVersion) {
+        String[] columns = sortedColumns(noteValues);
+        String sql = buildUpdateByIdSql(NotePad.Notes.TABLE_NAME, columns,
+                expectedVersion != null);
+        Object[] args = expectedVersion != null
+                ? bindValues(noteValues, columns, noteId, expectedVersion)
+                : bindValues(noteValues, columns, noteId);
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return executeUpdateDelete(db, sql, args);
+        }
 
-                // If there were additional selection criteria, append them to the final
-                // WHERE clause
-                if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
+        db.beginTransaction();
+        try {
+            // Updates the notes table first, since it is what says whether the note is in the
+            // trash. The text of a note in the trash isn't changed.
+            int count = executeUpdateDelete(db, sql, args);
+            if (count > 0) {
+                String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+                Object stored = NoteCompression.toStoredValue(note, mCompressionThreshold);
+                recordRevision(db, noteId, note, stored, saveTime(noteValues));
+                executeUpdateDelete(db, UPDATE_BODY_BY_ID_SQL, stored, noteId);
+                if (stored instanceof byte[]) {
+                    indexCompressedNote(db, Long.toString(noteId), note);
                 }
-
-                // Performs the delete.
-                count = db.delete(
-                    NotePad.Notes.TABLE_NAME,  // The database table name.
-                    finalWhere,                // The final WHERE clause
-                    whereArgs                  // The incoming where clause values.
-                );
-                break;
-
-            // If the incoming pattern is invalid, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
         }
-
-        /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
-         */
-        getContext().getContentResolver().notifyChange(uri, null);
-
-        // Returns the number of rows deleted.
-        return count;
     }
 
     /**
-     * This is called when a client calls
+     * Records a save of a note's text as the note's next revision. It is called in the
+     * transaction that saves the text, before the body table is written, since the revision is
+     * stored as a delta against the text that it replaces. Nothing is recorded if the text
+     * hasn't changed, or if the note doesn't exist.
+     *
+     * Whether the text changed is first asked of the database, by comparing the stored value
+     * with the one that is about to be written, so that a save of the same text reads nothing.
+     * The text that it replaces is only read and inflated when a delta is stored. The stored
+     * values of the same text only differ if the compression threshold changed since the last
+     * save, and then a keyframe may repeat the text of the revision before it.
+     *
+     * @param note The new text, or null.
+     * @param stored The new text as it is stored, from {@link NoteCompression#toStoredValue}.
+     * @param saveTime The time of the save.
+     */
+    private void recordRevision(SQLiteDatabase db, long noteId, String note, Object stored,
+            long saveTime) {
+        if (queryForLong(db, BODY_STORED_AS_SQL, noteId, stored) > 0) {
+            return;
+        }
+
+        long revision;
+        long keyframe;
+        Cursor c = db.rawQuery(LATEST_REVISION_SQL, new String[] { Long.toString(noteId) });
+        try {
+            if (c.moveToFirst()) {
+                revision = c.getLong(0);
+                keyframe = c.getLong(1);
+            } else {
+                // The note has no history yet, so its current text becomes the first revision.
+                if (executeInsert(db, INSERT_FIRST_REVISION_BY_ID_SQL, noteId) <= 0) {
+                    return;
+                }
+                revision = 1;
+                keyframe = 1;
+            }
+        } finally {
+            c.close();
+        }
+
+        // Stores a keyframe when the chain is as long as it may get, without reading the text it
+        // replaces. Otherwise stores a delta, unless it would be more than half of the new text,
+        // so that it saves little.
+        revision++;
+        NoteRevisions.Delta delta = null;
+        if (note != null && revision - keyframe < NoteRevisions.KEYFRAME_INTERVAL) {
+            // The stored values differ, but the texts can still be the same if the compression
+            // threshold changed since the note was last saved.
+            String previous = readNote(db, noteId);
+            if (note.equals(previous)) {
+                return;
+            }
+            delta = previous != null ? NoteRevisions.diff(previous, note) : null;
+        }
+        if (delta == null || delta.data.length() * 2 > note.length()) {
+            delta = new NoteRevisions.Delta(0, 0, note);
+            keyframe = revision;
+        }
+
+        executeInsert(db, INSERT_REVISION_SQL, noteId, revision, saveTime, keyframe,
+                delta.prefix, delta.suffix,
+                NoteCompression.toStoredValue(delta.data, mCompressionThreshold));
+    }
+
+    /**
+     * Returns the text of a note, or null if it has none or doesn't exist.
+     */
+    private static String readNote(SQLiteDatabase db, long noteId) {
+        Cursor c = new NoteCompression.DecompressingCursor(
+                db.rawQuery(READ_BODY_SQL, new String[] { Long.toString(noteId) }), 0);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the time of a save: the modification date it sets, or else the current time.
+     */
+    private static long saveTime(ContentValues noteValues) {
+        Long modified = noteValues.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        return modified != null ? modified : System.currentTimeMillis();
+    }
+
+    /**
+     * Runs an INSERT statement from the statement cache.
+     *
+     * @return The row ID of the new row.
+     */
+    private long executeInsert(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = mStatements.acquire(db, sql);
+        try {
+            bindArgs(statement, args);
+            return statement.executeInsert();
+        } finally {
+            mStatements.release(db, sql, statement);
+        }
+    }
+
+    /**
+     * Runs a query that returns one number, from the statement cache.
+     */
+    private long queryForLong(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = mStatements.acquire(db, sql);
+        try {
+            bindArgs(statement, args);
+            return statement.simpleQueryForLong();
+        } finally {
+            mStatements.release(db, sql, statement);
+        }
+    }
+
+    /**
+     * Runs an UPDATE or DELETE statement from the statement cache.
+     *
+     * @return The number of rows changed.
+     */
+    private int executeUpdateDelete(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = mStatements.acquire(db, sql);
+        try {
+            bindArgs(statement, args);
+            return statement.executeUpdateDelete();
+        } finally {
+            mStatements.release(db, sql, statement);
+        }
+    }
+
+    // Binds arguments to a statement, in order.
+    private static void bindArgs(SQLiteStatement statement, Object[] args) {
+        for (int i = 0; i < args.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, args[i]);
+        }
+    }
+
+    /**
+     * Returns the columns set in a map of values, sorted so that the same set of columns always
+     * builds the same SQL, and so reuses the same cached statement.
+     */
+    private static String[] sortedColumns(ContentValues values) {
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        return columns;
+    }
+
+    /**
+     * Returns the values of the given columns, in order, followed by any extra arguments.
+     */
+    private static Object[] bindValues(ContentValues values, String[] columns, Object... extra) {
+        Object[] args = new Object[columns.length + extra.length];
+        for (int i = 0; i < columns.length; i++) {
+            args[i] = values.get(columns[i]);
+        }
+        System.arraycopy(extra, 0, args, columns.length, extra.length);
+        return args;
+    }
+
+    // Builds an INSERT of the given columns into a table, with an argument for each.
+    private static String buildInsertSql(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        sql.append(TextUtils.join(", ", columns)).append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(")").toString();
+    }
+
+    // Builds an UPDATE of the given columns of one note that isn't in the trash, with an
+    // argument for each and then an argument for the note's ID. A conditional update has a last
+    // argument for the version that the note must have.
+    private static String buildUpdateByIdSql(String table, String[] columns,
+            boolean conditional) {
+        StringBuilder sql = buildUpdateNotesSql(table, columns);
+        sql.append(" WHERE ").append(NotePad.Notes._ID).append(" = ? AND ").append(LIVE_NOTES);
+        if (conditional) {
+            sql.append(" AND ").append(NotePad.Notes.COLUMN_NAME_VERSION).append(" = ?");
+        }
+        return sql.toString();
+    }
+
+    // Builds the start of an UPDATE of the given columns of the notes table, with an argument for
+    // each, which also adds 1 to the version of each note it writes.
+    private static StringBuilder buildUpdateNotesSql(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        for (String column : columns) {
+            sql.append(column).append(" = ?, ");
+        }
+        return sql.append(INCREMENT_VERSION);
+    }
+
+    /**
+     * Updates the given columns of the notes with the given IDs. The statement lists the IDs
+     * themselves, so it is compiled for this one update instead of being taken from the cache.
+     *
+     * @param noteIds The IDs of the notes, separated by commas, as joinIds() returns them.
+     * @return The number of notes updated.
+     */
+    private static int updateNotesByIds(SQLiteDatabase db, ContentValues noteValues,
+            String noteIds) {
+        String[] columns = sortedColumns(noteValues);
+        SQLiteStatement statement = db.compileStatement(
+                buildUpdateNotesSql(NotePad.Notes.TABLE_NAME, columns).append(" WHERE ")
+                        .append(NotePad.Notes._ID).append(" IN (").append(noteIds).append(")")
+                        .toString());
+        try {
+            bindArgs(statement, bindValues(noteValues, columns));
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Replaces the category name in a note's values with the category's ID, adding the category
+     * if there isn't one with that name yet. A null or empty name takes the note out of its
+     * category.
+     */
+    private void putCategoryId(SQLiteDatabase db, ContentValues values) {
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
+            return;
+        }
+        String name = values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        values.remove(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        if (TextUtils.isEmpty(name)) {
+            values.putNull(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+            return;
+        }
+
+        long categoryId = executeInsert(db, INSERT_CATEGORY_SQL, name);
+        if (categoryId <= 0) {
+            SQLiteStatement find = mStatements.acquire(db, FIND_CATEGORY_SQL);
+            try {
+                find.bindString(1, name);
+                categoryId = find.simpleQueryForLong();
+            } finally {
+                mStatements.release(db, FIND_CATEGORY_SQL, find);
+            }
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId);
+    }
+
+    /**
+     * Puts a note's text, as it is stored, into the values for the body table.
+     *
+     * @param stored The text as it is stored, from {@link NoteCompression#toStoredValue}.
+     */
+    private static void putStoredNote(ContentValues bodyValues, Object stored) {
+        if (stored instanceof byte[]) {
+            bodyValues.put(NotePad.Notes.COLUMN_NAME_NOTE, (byte[]) stored);
+        } else {
+            bodyValues.put(NotePad.Notes.COLUMN_NAME_NOTE, (String) stored);
+        }
+    }
+
+    /**
+     * Puts the text of compressed notes into the search index. The body table's triggers can't
+     * read compressed text, so they leave it to the provider.
+     *
+     * @param noteIds The IDs of the notes, separated by commas.
+     */
+    private static void indexCompressedNote(SQLiteDatabase db, String noteIds, String note) {
+        db.execSQL("UPDATE " + FTS_TABLE_NAME + " SET " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " = ? WHERE docid IN (" + noteIds + ")", new Object[] { note });
+    }
+
+    /**
+     * Changes the compression threshold, so that a test can store the same notes with and
+     * without compression.
+     *
+     * @param threshold The length in characters above which note text is compressed, or -1 to
+     * never compress it.
+     */
+    void setCompressionThresholdForTest(int threshold) {
+        mCompressionThreshold = threshold;
+    }
+
+    /**
+     * Returns the preview of a note's text: at most {@link #PREVIEW_LENGTH} characters from its
+     * start, with each run of whitespace, line breaks included, collapsed into a single space.
+     * Only as much of the text as the preview needs is read.
+     */
+    static String buildPreview(String note) {
+        if (note == null) {
+            return null;
+        }
+
+        StringBuilder preview = new StringBuilder(Math.min(note.length(), PREVIEW_LENGTH));
+        boolean pendingSpace = false;
+        for (int i = 0; i < note.length() && preview.length() < PREVIEW_LENGTH; i++) {
+            char c = note.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = preview.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                preview.append(' ');
+                pendingSpace = false;
+                if (preview.length() == PREVIEW_LENGTH) {
+                    break;
+                }
+            }
+            preview.append(c);
+        }
+
+        // Doesn't end the preview with half of a surrogate pair.
+        int length = preview.length();
+        if (length > 0 && Character.isHighSurrogate(preview.charAt(length - 1))) {
+            preview.setLength(length - 1);
+        }
+        return preview.toString().trim();
+    }
+
+    /**
+     * Returns a copy of the values for a new note, with the default creation date, modification
+     * date, title and note text filled in for any of them that the caller left out.
+     */
+    private static ContentValues withInsertDefaults(ContentValues initialValues) {
+
+        // A map to hold the new record's values.
+        ContentValues values;
+
+        // If the incoming values map is not null, uses it for the new values.
+        if (initialValues != null) {
+            values = new ContentValues(initialValues);
+
+        } else {
+            // Otherwise, create a new value map
+            values = new ContentValues();
+        }
+
+        // Gets the current system time in milliseconds
+        Long now = Long.valueOf(System.currentTimeMillis());
+
+        // If the values map doesn't contain the creation date, sets the value to the current time.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+        }
+
+        // If the values map doesn't contain the modification date, sets the value to the current
+        // time.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        }
+
+        // If the values map doesn't contain a title, sets the value to the default title.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) == false) {
+            Resources r = Resources.getSystem();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
+        }
+
+        // If the values map doesn't contain note text, sets the value to an empty string.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+        }
+
+        // Always computes the preview from the note text, replacing any value from the caller.
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                buildPreview(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+
+        // New notes are never inserted into the trash.
+        values.remove(NotePad.Notes.COLUMN_NAME_DELETED_DATE);
+
+        return values;
+    }
+
+    /**
+     * The columns bound by the compiled statement that {@link #bulkInsert} reuses for every row,
+     * in binding order. The note text is bound to a second statement that inserts the body. Rows
+     * that set any other column are inserted with {@link SQLiteDatabase#insert} instead.
+     */
+    private static final String[] BULK_INSERT_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+            NotePad.Notes.COLUMN_NAME_IS_TODO,
+            NotePad.Notes.COLUMN_NAME_IS_DONE
+    };
+
+    // The columns that a row may set to be inserted by the bulk insert statements: those in
+    // BULK_INSERT_COLUMNS, and the note text.
+    private static final Set<String> BULK_INSERT_COLUMN_SET = new HashSet<String>();
+
+    // Inserts a note into the notes table, binding the columns in BULK_INSERT_COLUMNS in order.
+    private static final String BULK_INSERT_SQL;
+
+    static {
+        BULK_INSERT_COLUMN_SET.addAll(Arrays.asList(BULK_INSERT_COLUMNS));
+        BULK_INSERT_COLUMN_SET.add(NotePad.Notes.COLUMN_NAME_NOTE);
+
+        StringBuilder sql = new StringBuilder("INSERT INTO " + NotePad.Notes.TABLE_NAME + " (");
+        sql.append(TextUtils.join(", ", BULK_INSERT_COLUMNS)).append(") VALUES (");
+        for (int i = 0; i < BULK_INSERT_COLUMNS.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        BULK_INSERT_SQL = sql.append(")").toString();
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts all of the rows in a single transaction with the same compiled statements, instead
+     * of committing each row separately. Default values are filled in as they are by insert().
+     * Listeners are notified once, after the whole batch has been committed.
+     * @return The number of rows inserted.
+     * @throws SQLException if any insertion fails. No rows are inserted in that case.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] valuesArray) {
+        long start = System.nanoTime();
+        int count = doBulkInsert(uri, valuesArray);
+        mMetrics.record("bulkInsert", patternOf(uri), start, count);
+        return count;
+    }
+
+    // Inserts the notes for bulkInsert(), which measures the call.
+    private int doBulkInsert(Uri uri, ContentValues[] valuesArray) {
+
+        // Validates the incoming URI. Only the full provider URI is allowed for inserts.
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        // Opens the database object in "write" mode.
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        // Takes both statements from the cache, so that repeated imports don't compile them
+        // again.
+        int count = 0;
+        SQLiteStatement insert = mStatements.acquire(db, BULK_INSERT_SQL);
+        SQLiteStatement insertBody = mStatements.acquire(db, INSERT_BODY_SQL);
+        db.beginTransaction();
+        try {
+            for (ContentValues initialValues : valuesArray) {
+                ContentValues values = withInsertDefaults(initialValues);
+                putCategoryId(db, values);
+
+                long rowId;
+                if (bindBulkInsert(insert, values)) {
+                    rowId = insert.executeInsert();
+                    if (rowId > 0) {
+                        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+                        Object stored = NoteCompression.toStoredValue(note, mCompressionThreshold);
+                        insertBody.bindLong(1, rowId);
+                        DatabaseUtils.bindObjectToProgram(insertBody, 2, stored);
+                        if (insertBody.executeInsert() <= 0) {
+                            rowId = -1;
+                        } else {
+                            if (stored instanceof byte[]) {
+                                indexCompressedNote(db, Long.toString(rowId), note);
+                            }
+                            if (executeInsert(db, INSERT_FIRST_REVISION_BY_ID_SQL, rowId) <= 0) {
+                                rowId = -1;
+                            }
+                        }
+                    }
+                } else {
+                    rowId = insertNote(db, values);
+                }
+
+                // Fails the whole batch, so that the caller never sees a partial import.
+                if (rowId <= 0) {
+                    throw new SQLException("Failed to insert row into " + uri);
+                }
+                count++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mStatements.release(db, BULK_INSERT_SQL, insert);
+            mStatements.release(db, INSERT_BODY_SQL, insertBody);
+        }
+
+        // Notifies observers registered against this provider that the data changed.
+        if (count > 0) {
+            notifyChange(uri);
+        }
+        return count;
+    }
+
+    /**
+     * Binds a row's values to the bulk insert statement. Columns that the row leaves out get the
+     * same defaults as the table definition.
+     *
+     * @return false if the row sets a column that neither bulk insert statement binds.
+     */
+    private static boolean bindBulkInsert(SQLiteStatement insert, ContentValues values) {
+        for (String column : values.keySet()) {
+            if (!BULK_INSERT_COLUMN_SET.contains(column)) {
+                return false;
+            }
+        }
+
+        insert.clearBindings();
+        for (int i = 0; i < BULK_INSERT_COLUMNS.length; i++) {
+            Object value = values.get(BULK_INSERT_COLUMNS[i]);
+            if (value == null && (NotePad.Notes.COLUMN_NAME_IS_TODO.equals(BULK_INSERT_COLUMNS[i])
+                    || NotePad.Notes.COLUMN_NAME_IS_DONE.equals(BULK_INSERT_COLUMNS[i]))) {
+                value = 0;
+            }
+            DatabaseUtils.bindObjectToProgram(insert, i + 1, value);
+        }
+        return true;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#delete(Uri, String, String[])}.
+     * Deletes records from the database. If the incoming URI matches the note ID URI pattern,
+     * this method deletes the one record specified by the ID in the URI. Otherwise, it deletes a
+     * a set of records. The record or records must also match the input selection criteria
+     * specified by where and whereArgs.
+     *
+     * Deleting through the notes URIs moves the notes to the trash, which only sets their
+     * deleted date. Deleting through the trash URIs removes notes from the trash for good.
+     *
+     * If rows were deleted, then listeners are notified of the change.
+     * @return If a "where" clause is used, the number of rows affected is returned, otherwise
+     * 0 is returned. To delete all rows and get a row count, use "1" as the where clause.
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     */
+    @Override
+    public int delete(Uri uri, String where, String[] whereArgs) {
+        long start = System.nanoTime();
+        int count = doDelete(uri, where, whereArgs);
+        mMetrics.record("delete", patternOf(uri), start, count);
+        return count;
+    }
+
+    // Deletes the notes for delete(), which measures the call.
+    private int doDelete(Uri uri, String where, String[] whereArgs) {
+
+        // Opens the database object in "write" mode.
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String finalWhere;
+
+        int count;
+
+        // Does the delete based on the incoming URI pattern.
+        switch (sUriMatcher.match(uri)) {
+
+            // If the incoming pattern matches the general pattern for notes, moves the notes
+            // that match the incoming "where" columns and arguments to the trash.
+            case NOTES:
+                return trashNotes(db,
+                        DatabaseUtils.concatenateWhere(LIVE_NOTES, whereOnNotes(where)),
+                        whereArgs);
+
+                // If the incoming URI matches a single note ID, does the delete based on the
+                // incoming data, but modifies the where clause to restrict it to the
+                // particular note ID.
+            case NOTE_ID:
+                long noteId = Long.parseLong(
+                        uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+
+                // Moves a note selected by ID alone to the trash with a cached statement.
+                if (where == null) {
+                    count = executeUpdateDelete(db, TRASH_BY_ID_SQL,
+                            System.currentTimeMillis(), noteId);
+                    mNoteCache.invalidate(noteId);
+                    if (count > 0) {
+                        notifyChange(NotePad.Notes.CONTENT_TRASH_URI);
+                    }
+                    break;
+                }
+
+                /*
+                 * Starts a final WHERE clause by restricting it to the
+                 * desired note ID.
+                 */
+                finalWhere =
+                        NotePad.Notes._ID +                              // The ID column name
+                        " = " +                                          // test for equality
+                        noteId                                           // the incoming note ID
+                ;
+
+                // Appends the additional selection criteria to the final WHERE clause
+                finalWhere = DatabaseUtils.concatenateWhere(finalWhere,
+                        DatabaseUtils.concatenateWhere(LIVE_NOTES, whereOnNotes(where)));
+                return trashNotes(db, finalWhere, whereArgs);
+
+            // If the incoming URI is for the trash, or a note in it, deletes the notes for good.
+            // A trigger deletes their bodies and revisions along with them.
+            case TRASH:
+            case TRASH_ID:
+                finalWhere = TRASHED_NOTES;
+                if (sUriMatcher.match(uri) == TRASH_ID) {
+                    finalWhere = DatabaseUtils.concatenateWhere(finalWhere, NotePad.Notes._ID
+                            + " = " + Long.parseLong(uri.getPathSegments().get(
+                                    NotePad.Notes.TRASH_ID_PATH_POSITION)));
+                }
+                return deleteNotes(db,
+                        DatabaseUtils.concatenateWhere(finalWhere, whereOnNotes(where)),
+                        whereArgs, null);
+
+            // If the incoming pattern is invalid, throws an exception.
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        /*Gets a handle to the content resolver object for the current context, and notifies it
+         * that the incoming URI changed. The object passes this along to the resolver framework,
+         * and observers that have registered themselves for the provider are notified. Nothing
+         * is notified if no rows changed.
+         */
+        if (count > 0) {
+            notifyChange(uri);
+        }
+
+        // Returns the number of rows deleted.
+        return count;
+    }
+
+    /**
+     * Moves the notes that match a where clause to the trash, and notifies observers of each
+     * note and of the trash. Nothing but the notes' deleted date is written, so this costs about
+     * the same however long the notes are.
+     *
+     * @return The number of notes moved to the trash.
+     */
+    private int trashNotes(SQLiteDatabase db, String where, String[] whereArgs) {
+        long[] trashedIds;
+        int count;
+
+        db.beginTransaction();
+        try {
+            // Finds the notes first, so that observers can be told which ones went away.
+            trashedIds = findNoteIds(db, where, whereArgs);
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_DELETED_DATE, System.currentTimeMillis());
+            count = 0;
+            for (int from = 0; from < trashedIds.length; from += IDS_PER_STATEMENT) {
+                count += updateNotesByIds(db, values, joinIds(trashedIds, from,
+                        Math.min(from + IDS_PER_STATEMENT, trashedIds.length)));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        mNoteCache.invalidate(trashedIds);
+        notifyNotesChanged(trashedIds);
+        if (count > 0) {
+            notifyChange(NotePad.Notes.CONTENT_TRASH_URI);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the notes that match a where clause for good, and notifies observers of the
+     * trash. Only notes in the trash are deleted, so nothing else has to be notified.
+     *
+     * @param limit The most notes to delete, or null to delete all of them.
+     * @return The number of notes deleted.
+     */
+    private int deleteNotes(SQLiteDatabase db, String where, String[] whereArgs, String limit) {
+        long[] deletedIds;
+        int count;
+
+        db.beginTransaction();
+        try {
+            // Finds the notes first, so that the delete is by ID whatever the where clause is.
+            deletedIds = findNoteIds(db, where, whereArgs, limit);
+            count = 0;
+            for (int from = 0; from < deletedIds.length; from += IDS_PER_STATEMENT) {
+                count += db.delete(NotePad.Notes.TABLE_NAME, NotePad.Notes._ID + " IN ("
+                        + joinIds(deletedIds, from,
+                                Math.min(from + IDS_PER_STATEMENT, deletedIds.length)) + ")",
+                        null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        mNoteCache.invalidate(deletedIds);
+        if (count > 0) {
+            notifyChange(NotePad.Notes.CONTENT_TRASH_URI);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the notes that were moved to the trash before a given time for good. The notes
+     * are deleted in batches of {@link #PURGE_BATCH_SIZE}, each in its own transaction, so
+     * that a large purge never holds the database lock for long. Set to package visibility so
+     * that tests can purge without waiting for the background thread.
+     *
+     * @param deletedBefore The time, in milliseconds, before which the notes were deleted.
+     * @return The number of notes deleted.
+     */
+    int purgeTrash(long deletedBefore) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String where = TRASHED_NOTES + " AND " + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes.COLUMN_NAME_DELETED_DATE + " < ?";
+        String[] whereArgs = new String[] { Long.toString(deletedBefore) };
+        String limit = Integer.toString(PURGE_BATCH_SIZE);
+
+        int total = 0;
+        int count;
+        do {
+            count = deleteNotes(db, where, whereArgs, limit);
+            total += count;
+        } while (count == PURGE_BATCH_SIZE);
+        return total;
+    }
+
+    /**
+     * This is called when a client calls
      * {@link android.content.ContentResolver#update(Uri,ContentValues,String,String[])}
      * Updates records in the database. The column names specified by the keys in the values map
      * are updated with new data specified by the values in the map. If the incoming URI matches the
@@ -670,33 +3024,44 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        long start = System.nanoTime();
+        int count = doUpdate(uri, values, where, whereArgs);
+        mMetrics.record("update", patternOf(uri), start, count);
+        return count;
+    }
+
+    // Updates the notes for update(), which measures the call.
+    private int doUpdate(Uri uri, ContentValues values, String where, String[] whereArgs) {
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         String finalWhere;
 
-        // Does the update based on the incoming URI pattern
+        // The ID of the note to update, if the URI names a single note and there are no other
+        // selection criteria.
+        String noteId = null;
+
+        // Whether the URI is for the trash, whose notes are the only ones that can be restored.
+        boolean inTrash = false;
+
+        // The version that the note must still have for a conditional update, or null.
+        Long expectedVersion = null;
+
+        // Builds the WHERE clause based on the incoming URI pattern
         switch (sUriMatcher.match(uri)) {
 
-            // If the incoming URI matches the general notes pattern, does the update based on
-            // the incoming data.
+            // If the incoming URI matches the general notes pattern, updates the notes that match
+            // the incoming where clause.
             case NOTES:
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    where,                    // The where clause column names.
-                    whereArgs                 // The where clause column values to select on.
-                );
+                finalWhere = DatabaseUtils.concatenateWhere(LIVE_NOTES, whereOnNotes(where));
                 break;
 
             // If the incoming URI matches a single note ID, does the update based on the incoming
             // data, but modifies the where clause to restrict it to the particular note ID.
             case NOTE_ID:
                 // From the incoming URI, get the note ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+                noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
 
                 /*
                  * Starts creating the final WHERE clause by restricting it to the incoming
@@ -705,42 +3070,583 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 finalWhere =
                         NotePad.Notes._ID +                              // The ID column name
                         " = " +                                          // test for equality
-                        uri.getPathSegments().                           // the incoming note ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
+                        noteId                                           // the incoming note ID
                 ;
 
+                // If the update is conditional, restricts it to the version the caller read.
+                String version = uri.getQueryParameter(
+                        NotePad.Notes.QUERY_PARAMETER_EXPECTED_VERSION);
+                if (version != null) {
+                    try {
+                        expectedVersion = Long.parseLong(version);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad expected version " + version);
+                    }
+                    finalWhere = DatabaseUtils.concatenateWhere(finalWhere,
+                            NotePad.Notes.COLUMN_NAME_VERSION + " = " + expectedVersion);
+                }
+
                 // If there were additional selection criteria, append them to the final WHERE
                 // clause
-                if (where !=null) {
-                    finalWhere = finalWhere + " AND " + where;
+                if (where != null) {
+                    finalWhere = DatabaseUtils.concatenateWhere(finalWhere,
+                            DatabaseUtils.concatenateWhere(LIVE_NOTES, whereOnNotes(where)));
+                    noteId = null;
                 }
+                break;
 
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    finalWhere,               // The final WHERE clause to use
-                                              // placeholders for whereArgs
-                    whereArgs                 // The where clause column values to select on, or
-                                              // null if the values are in the where argument.
-                );
+            // If the incoming URI is for the trash, or a note in it, updates the notes in the
+            // trash. Setting their deleted date to 0 restores them.
+            case TRASH:
+            case TRASH_ID:
+                finalWhere = TRASHED_NOTES;
+                if (sUriMatcher.match(uri) == TRASH_ID) {
+                    finalWhere = DatabaseUtils.concatenateWhere(finalWhere, NotePad.Notes._ID
+                            + " = " + Long.parseLong(uri.getPathSegments().get(
+                                    NotePad.Notes.TRASH_ID_PATH_POSITION)));
+                }
+                finalWhere = DatabaseUtils.concatenateWhere(finalWhere, whereOnNotes(where));
+                inTrash = true;
                 break;
+
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        // The note text is in the body table, so it is updated separately from the other columns.
+        // Its preview is updated along with it, and can't be set on its own.
+        ContentValues noteValues = new ContentValues(values);
+        noteValues.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+        noteValues.remove(NotePad.Notes.COLUMN_NAME_PREVIEW);
+
+        // The version is counted up by the update itself.
+        noteValues.remove(NotePad.Notes.COLUMN_NAME_VERSION);
+
+        // Notes are moved to the trash by deleting them, and out of it through the trash URIs.
+        if (!inTrash) {
+            noteValues.remove(NotePad.Notes.COLUMN_NAME_DELETED_DATE);
+        }
+        putCategoryId(db, noteValues);
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            noteValues.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                    buildPreview(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+        }
+
+        if (noteValues.size() == 0) {
+
+            // Nothing is left to write if the caller only set the preview.
+            count = 0;
+        } else if (noteId != null) {
+
+            // Saves a single note, as NoteEditor does.
+            count = updateNoteById(db, Long.parseLong(noteId), values, noteValues,
+                    expectedVersion);
+            mNoteCache.invalidate(Long.parseLong(noteId));
+        } else {
+            // The IDs of the notes that the where clause selects.
+            long[] changedIds;
+
+            db.beginTransaction();
+            try {
+                // Finds the notes to update before changing either table, so that updating one
+                // table can't change which rows the where clause selects in the other. The IDs
+                // are also what observers are notified of.
+                changedIds = findNoteIds(db, finalWhere, whereArgs);
+
+                String note = null;
+                ContentValues bodyValues = null;
+                boolean compressed = false;
+                if (changedIds.length > 0 && values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                    note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+                    Object stored = NoteCompression.toStoredValue(note, mCompressionThreshold);
+                    long saveTime = saveTime(noteValues);
+                    for (long changedId : changedIds) {
+                        recordRevision(db, changedId, note, stored, saveTime);
+                    }
+                    bodyValues = new ContentValues();
+                    putStoredNote(bodyValues, stored);
+                    compressed = stored instanceof byte[];
+                }
+
+                // Writes the notes a chunk of IDs at a time, so that no statement lists more
+                // than IDS_PER_STATEMENT of them however many notes the where clause selects.
+                count = 0;
+                for (int from = 0; from < changedIds.length; from += IDS_PER_STATEMENT) {
+                    String noteIds = joinIds(changedIds, from,
+                            Math.min(from + IDS_PER_STATEMENT, changedIds.length));
+                    if (bodyValues != null) {
+                        db.update(BODIES_TABLE_NAME, bodyValues,
+                                BODIES_COLUMN_NAME_NOTE_ID + " IN (" + noteIds + ")", null);
+                        if (compressed) {
+                            indexCompressedNote(db, noteIds, note);
+                        }
+                    }
+                    count += updateNotesByIds(db, noteValues, noteIds);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            // Notifies observers of each note that changed, so that a list can refresh just
+            // those rows.
+            mNoteCache.invalidate(changedIds);
+            notifyNotesChanged(changedIds);
+            if (inTrash && count > 0) {
+                notifyChange(NotePad.Notes.CONTENT_TRASH_URI);
+            }
+            return count;
+        }
+
         /*Gets a handle to the content resolver object for the current context, and notifies it
          * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+         * and observers that have registered themselves for the provider are notified. Nothing
+         * is notified if no rows changed.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyChange(uri);
+        }
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * Rewrites a where clause on the notes table so that it can refer to the note text, which is
+     * in the body table. Clauses that don't refer to the text are returned unchanged.
+     */
+    private static String whereOnNotes(String where) {
+        if (!mentionsBody(where)) {
+            return where;
+        }
+        return NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME + BODIES_JOIN
+                + " WHERE " + where + ")";
+    }
+
+    /**
+     * Returns the IDs of the notes that match a where clause.
+     */
+    private static long[] findNoteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        return findNoteIds(db, where, whereArgs, null);
+    }
+
+    /**
+     * Returns the IDs of at most limit notes that match a where clause, or of all of them if
+     * limit is null.
+     */
+    private static long[] findNoteIds(SQLiteDatabase db, String where, String[] whereArgs,
+            String limit) {
+        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                where, whereArgs, null, null, null, limit);
+        try {
+            long[] noteIds = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                noteIds[i] = cursor.getLong(0);
+            }
+            return noteIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the note IDs from index from up to but not including index to, separated by
+     * commas, for use in an IN clause.
+     */
+    private static String joinIds(long[] noteIds, int from, int to) {
+        StringBuilder joined = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                joined.append(',');
+            }
+            joined.append(noteIds[i]);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Notifies observers that the notes with the given IDs changed, each on its own note URI.
+     * A change to more notes than the notification coalescer delivers one by one is notified
+     * on the notes URI instead.
+     */
+    private void notifyNotesChanged(long[] noteIds) {
+        if (noteIds.length > NotificationCoalescer.MAX_PENDING_URIS) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+            return;
+        }
+        for (long noteId : noteIds) {
+            notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId));
+        }
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+     * Applies all of the operations in a single transaction, so that the batch either succeeds
+     * or has no effect, and so that it pays the cost of one commit instead of one per operation.
+     *
+     * Operations built with {@link ContentProviderOperation.Builder#withYieldAllowed(boolean)}
+     * mark points where a long batch may briefly give up the database lock if another thread is
+     * waiting for it. The work done before a yield point is committed at that point.
+     *
+     * Each URI changed by the batch is notified once, after the batch ends.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        // Opens the database object in "write" mode.
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        // Collects the notifications sent by insert(), update() and delete() until the end.
+        Set<Uri> changedUris = new HashSet<Uri>();
+        mBatchNotifications.set(changedUris);
+
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+
+                // Lets waiting readers in between operations, where the batch allows it.
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY);
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.remove();
+
+            // Reads made during the batch may have cached changes that were then rolled back.
+            mNoteCache.invalidateAll();
+
+            // Also notifies after a failure, since the work before a yield point was committed.
+            for (Uri uri : changedUris) {
+                mNotifications.notifyChange(uri);
+            }
+        }
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}.
+     * {@link NotePad.Notes#METHOD_GET_CACHE_STATS} returns the counters of the cache of recently
+     * read notes and of the cache of query SQL, so that their sizes can be tuned.
+     * {@link NotePad.Notes#METHOD_GET_STATS} returns the provider's metrics.
+     * {@link NotePad.Notes#METHOD_TOGGLE_TODO}, {@link NotePad.Notes#METHOD_TOGGLE_DONE},
+     * {@link NotePad.Notes#METHOD_SET_CATEGORY} and {@link NotePad.Notes#METHOD_DUPLICATE} change
+     * one note in a single round trip and return its new state, instead of a query followed by
+     * an update.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.Notes.METHOD_GET_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putLong(NotePad.Notes.KEY_CACHE_HITS, mNoteCache.hits());
+            stats.putLong(NotePad.Notes.KEY_CACHE_MISSES, mNoteCache.misses());
+            stats.putLong(NotePad.Notes.KEY_CACHE_EVICTIONS, mNoteCache.evictions());
+            stats.putLong(NotePad.Notes.KEY_CACHE_BYTES, mNoteCache.bytes());
+            stats.putLong(NotePad.Notes.KEY_PLAN_CACHE_HITS, mQueryPlans.hits());
+            stats.putLong(NotePad.Notes.KEY_PLAN_CACHE_MISSES, mQueryPlans.misses());
+            return stats;
+        }
+        if (NotePad.Notes.METHOD_GET_STATS.equals(method)) {
+            return mMetrics.toBundle();
+        }
+        if (NotePad.Notes.METHOD_IMPORT_NOTES.equals(method)) {
+            return importNotes(extras);
+        }
+        if (NotePad.Notes.METHOD_TOGGLE_TODO.equals(method)) {
+            return updateNoteState(noteIdFromArg(arg), TOGGLE_TODO_SQL);
+        }
+        if (NotePad.Notes.METHOD_TOGGLE_DONE.equals(method)) {
+            return updateNoteState(noteIdFromArg(arg), TOGGLE_DONE_SQL);
+        }
+        if (NotePad.Notes.METHOD_SET_CATEGORY.equals(method)) {
+            return setNoteCategory(noteIdFromArg(arg), extras != null
+                    ? extras.getString(NotePad.Notes.COLUMN_NAME_CATEGORY) : null);
+        }
+        if (NotePad.Notes.METHOD_DUPLICATE.equals(method)) {
+            return duplicateNote(noteIdFromArg(arg));
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Returns the ID of the note whose URI is the argument of a call() method.
+     *
+     * @throws IllegalArgumentException if the argument isn't the URI of a note.
+     */
+    private static long noteIdFromArg(String arg) {
+        Uri noteUri = arg != null ? Uri.parse(arg) : null;
+        if (noteUri == null || sUriMatcher.match(noteUri) != NOTE_ID) {
+            throw new IllegalArgumentException("Not a note URI: " + arg);
+        }
+        return ContentUris.parseId(noteUri);
+    }
+
+    /**
+     * Changes one note with a single UPDATE statement that computes the new values from the
+     * old ones, such as toggling whether it is done, and reads back the note's new state in the
+     * same transaction. A client can't race another writer between reading the state and
+     * writing it, as it could by querying and then updating.
+     *
+     * @param sql The UPDATE statement, whose only argument is the note's ID.
+     * @return The note's new state, or null if it doesn't exist or is in the trash.
+     */
+    private Bundle updateNoteState(long noteId, String sql) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Bundle state;
+        db.beginTransaction();
+        try {
+            if (executeUpdateDelete(db, sql, noteId) == 0) {
+                return null;
+            }
+            state = readNoteState(db, noteId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        mNoteCache.invalidate(noteId);
+        notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId));
+        return state;
+    }
+
+    /**
+     * Sets the category of one note by its name, adding the category if it is new.
+     *
+     * @param category The category's name, or null or empty to take the note out of every
+     * category.
+     * @return The note's new state, or null if it doesn't exist or is in the trash.
+     */
+    private Bundle setNoteCategory(long noteId, String category) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Bundle state;
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, category);
+            putCategoryId(db, values);
+            if (executeUpdateDelete(db, SET_CATEGORY_SQL,
+                    values.get(NotePad.Notes.COLUMN_NAME_CATEGORY_ID), noteId) == 0) {
+                // Keeps a category added for a note that doesn't exist from being committed.
+                return null;
+            }
+            state = readNoteState(db, noteId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        mNoteCache.invalidate(noteId);
+        notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId));
+        return state;
+    }
+
+    /**
+     * Copies one note, with its text, category and to-do state, into a new note that is created
+     * and modified now. The new note's history starts with its text, as an inserted note's does.
+     *
+     * @return The new note's URI and state, or null if the note doesn't exist or is in the trash.
+     */
+    private Bundle duplicateNote(long noteId) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+        long copyId;
+        Bundle state;
+        db.beginTransaction();
+        try {
+            copyId = executeInsert(db, DUPLICATE_NOTE_SQL, now, now, noteId);
+            if (copyId <= 0) {
+                return null;
+            }
+            executeInsert(db, DUPLICATE_BODY_SQL, copyId, noteId);
+            executeUpdateDelete(db, DUPLICATE_SEARCH_SQL, noteId, copyId);
+            executeInsert(db, INSERT_FIRST_REVISION_BY_ID_SQL, copyId);
+            state = readNoteState(db, copyId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Uri copyUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, copyId);
+        state.putParcelable(NotePad.Notes.KEY_NOTE_URI, copyUri);
+        notifyChange(copyUri);
+        return state;
+    }
+
+    /**
+     * Returns the ID, to-do state, category and version of one note, in the keys described by
+     * {@link NotePad.Notes#METHOD_DUPLICATE}.
+     */
+    private static Bundle readNoteState(SQLiteDatabase db, long noteId) {
+        Bundle state = new Bundle();
+        state.putLong(NotePad.Notes._ID, noteId);
+        Cursor c = db.rawQuery(NOTE_STATE_SQL, new String[] { Long.toString(noteId) });
+        try {
+            if (c.moveToFirst()) {
+                state.putInt(NotePad.Notes.COLUMN_NAME_IS_TODO, c.getInt(0));
+                state.putInt(NotePad.Notes.COLUMN_NAME_IS_DONE, c.getInt(1));
+                state.putLong(NotePad.Notes.COLUMN_NAME_VERSION, c.getLong(4));
+                if (!c.isNull(2)) {
+                    state.putLong(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, c.getLong(2));
+                    state.putString(NotePad.Notes.COLUMN_NAME_CATEGORY, c.getString(3));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return state;
+    }
+
+    /**
+     * Writes the provider's metrics and cache counters, for "adb shell dumpsys activity provider".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(writer);
+        writer.println("Note cache: " + mNoteCache.hits() + " hits, " + mNoteCache.misses()
+                + " misses, " + mNoteCache.evictions() + " evictions, " + mNoteCache.bytes()
+                + " bytes");
+        writer.println("Query plan cache: " + mQueryPlans.hits() + " hits, "
+                + mQueryPlans.misses() + " misses");
+    }
+
+    /**
+     * Imports the notes in the JSON Lines stream passed in
+     * {@link NotePad.Notes#KEY_IMPORT_FILE}, in the format that the export writes.
+     *
+     * The notes are inserted in batches of at most {@link #IMPORT_BATCH_SIZE} notes or
+     * {@link #IMPORT_BATCH_CHARS} characters of text, each committed in its own transaction.
+     * A batch is read from the stream before its transaction starts, so a slow writer on the
+     * other end of the stream doesn't keep other writers waiting. After each batch, the counts
+     * so far are sent to the {@link ResultReceiver} passed in
+     * {@link NotePad.Notes#KEY_IMPORT_PROGRESS}, if there is one. Malformed lines are skipped and
+     * counted. If reading the stream fails, the batches committed so far are kept.
+     *
+     * @return The number of notes imported and the number of lines skipped.
+     */
+    private Bundle importNotes(Bundle extras) {
+        ParcelFileDescriptor file = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(NotePad.Notes.KEY_IMPORT_FILE) : null;
+        if (file == null) {
+            throw new IllegalArgumentException("No file to import");
+        }
+        ResultReceiver progress = extras.getParcelable(NotePad.Notes.KEY_IMPORT_PROGRESS);
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ArrayList<ContentValues> batch = new ArrayList<ContentValues>(IMPORT_BATCH_SIZE);
+        int imported = 0;
+        NoteImporter importer = null;
+        try {
+            importer = new NoteImporter(new InputStreamReader(
+                    new ParcelFileDescriptor.AutoCloseInputStream(file), "UTF-8"));
+            ContentValues values = importer.next();
+            while (values != null) {
+                // Reads the next batch.
+                int chars = 0;
+                batch.clear();
+                while (values != null && batch.size() < IMPORT_BATCH_SIZE
+                        && chars < IMPORT_BATCH_CHARS) {
+                    String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+                    chars += note != null ? note.length() : 0;
+                    batch.add(values);
+                    values = importer.next();
+                }
+
+                // Commits it.
+                db.beginTransaction();
+                try {
+                    for (ContentValues noteValues : batch) {
+                        if (insertNote(db, withInsertDefaults(noteValues)) <= 0) {
+                            throw new SQLException("Failed to import a note");
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                imported += batch.size();
+
+                notifyChange(NotePad.Notes.CONTENT_URI);
+                if (progress != null) {
+                    progress.send(0, importResult(imported, importer.skipped()));
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Import ended early after " + imported + " notes", e);
+        } finally {
+            try {
+                file.close();
+            } catch (IOException e) {
+            }
+        }
+        return importResult(imported, importer != null ? importer.skipped() : 0);
+    }
+
+    // Returns the counts reported by an import.
+    private static Bundle importResult(int imported, int skipped) {
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Notes.KEY_IMPORTED_COUNT, imported);
+        result.putInt(NotePad.Notes.KEY_SKIPPED_COUNT, skipped);
+        return result;
+    }
+
+    /**
+     * Notifies observers registered against this provider that the data at the URI changed.
+     * While the calling thread is in applyBatch(), the notification is held until the batch ends.
+     * Notifications are merged with the others sent within a short window, so that a burst of
+     * writes makes observers requery once instead of once per write.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> changedUris = mBatchNotifications.get();
+        if (changedUris != null) {
+            changedUris.add(uri);
+        } else {
+            mNotifications.notifyChange(uri);
+        }
+    }
+
+    /**
+     * Replaces the provider's metrics, so that a test can start from empty metrics and choose
+     * the slow query threshold.
+     */
+    void setMetricsForTest(ProviderMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Replaces the cache of compiled statements, so that a benchmark can time saves with the
+     * cache and without it. The statements in the old cache are closed.
+     */
+    void setStatementCacheForTest(StatementCache statements) {
+        mStatements.clear();
+        mStatements = statements;
+    }
+
+    /**
+     * Replaces the cache of query SQL, so that a benchmark can time queries with the cache and
+     * without it.
+     */
+    void setQueryPlanCacheForTest(QueryPlanCache queryPlans) {
+        mQueryPlans = queryPlans;
+    }
+
+    /**
+     * Replaces the coalescer that the provider sends its change notifications through, so that
+     * a test can count the notifications and choose when they are delivered. MockContentResolver
+     * drops the notifications it is sent.
+     */
+    void setNotificationCoalescerForTest(NotificationCoalescer notifications) {
+        mNotifications = notifications;
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Arrays;
+
+/**
+ * Computes and rebuilds the revisions that NotePadProvider keeps of each note's text.
+ *
+ * Most revisions are stored as a delta against the revision before: the number of characters
+ * kept from the start of the previous text, the number kept from its end, and the text that
+ * replaces everything in between. A typical edit touches one place in the note, so the delta is
+ * about as long as the edit rather than the note. Every {@link #KEYFRAME_INTERVAL} revisions, and
+ * whenever a delta wouldn't save much, the whole text is stored instead as a keyframe. Each
+ * revision records the keyframe it is built on, so rebuilding one reads at most
+ * KEYFRAME_INTERVAL rows, however long the history is.
+ */
+final class NoteRevisions {
+
+    /**
+     * The most revisions in a chain that starts with a keyframe, the keyframe included
+     */
+    static final int KEYFRAME_INTERVAL = 16;
+
+    /**
+     * The columns returned for a single revision, in the order of the values in its row
+     */
+    static final String[] COLUMNS = new String[] {
+            NotePad.Revisions._ID,
+            NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+            NotePad.Revisions.COLUMN_NAME_REVISION,
+            NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+            NotePad.Revisions.COLUMN_NAME_NOTE
+    };
+
+    // Reads a revision's row ID, save time and keyframe.
+    private static final String READ_REVISION_SQL = "SELECT " + NotePad.Revisions._ID + ", "
+            + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + ", "
+            + NotePadProvider.REVISIONS_COLUMN_NAME_KEYFRAME + " FROM "
+            + NotePadProvider.REVISIONS_TABLE_NAME + " WHERE "
+            + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+            + NotePad.Revisions.COLUMN_NAME_REVISION + " = ?";
+
+    // Reads the chain of revisions from a keyframe up to a revision, in order.
+    private static final String READ_CHAIN_SQL = "SELECT "
+            + NotePadProvider.REVISIONS_COLUMN_NAME_PREFIX + ", "
+            + NotePadProvider.REVISIONS_COLUMN_NAME_SUFFIX + ", "
+            + NotePadProvider.REVISIONS_COLUMN_NAME_DATA + " FROM "
+            + NotePadProvider.REVISIONS_TABLE_NAME + " WHERE "
+            + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+            + NotePad.Revisions.COLUMN_NAME_REVISION + " BETWEEN ? AND ? ORDER BY "
+            + NotePad.Revisions.COLUMN_NAME_REVISION;
+
+    // The position of the stored text in READ_CHAIN_SQL.
+    private static final int CHAIN_DATA_INDEX = 2;
+
+    private NoteRevisions() {
+    }
+
+    /**
+     * A revision's text, as a change to the text of the revision before it.
+     */
+    static final class Delta {
+
+        // The number of characters kept from the start of the previous text.
+        final int prefix;
+
+        // The number of characters kept from the end of the previous text.
+        final int suffix;
+
+        // The text that replaces the rest of the previous text.
+        final String data;
+
+        Delta(int prefix, int suffix, String data) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Returns the change from one text to the next, or null if they are the same. The kept
+     * start and end never split a surrogate pair, so the replacement text is always valid
+     * UTF-16 and can be stored as TEXT.
+     */
+    static Delta diff(String previous, String next) {
+        if (previous.equals(next)) {
+            return null;
+        }
+
+        int shorter = Math.min(previous.length(), next.length());
+        int prefix = 0;
+        while (prefix < shorter && previous.charAt(prefix) == next.charAt(prefix)) {
+            prefix++;
+        }
+        if (prefix > 0 && Character.isHighSurrogate(next.charAt(prefix - 1))) {
+            prefix--;
+        }
+
+        int suffix = 0;
+        while (suffix < shorter - prefix && previous.charAt(previous.length() - 1 - suffix)
+                == next.charAt(next.length() - 1 - suffix)) {
+            suffix++;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(next.charAt(next.length() - suffix))) {
+            suffix--;
+        }
+
+        return new Delta(prefix, suffix, next.substring(prefix, next.length() - suffix));
+    }
+
+    /**
+     * Applies a delta to the text of the revision before it.
+     */
+    static String apply(String previous, int prefix, int suffix, String data) {
+        return new StringBuilder(prefix + data.length() + suffix)
+                .append(previous, 0, prefix)
+                .append(data)
+                .append(previous, previous.length() - suffix, previous.length())
+                .toString();
+    }
+
+    /**
+     * Returns the row of one revision of a note, with its text rebuilt from its keyframe, or
+     * null if the note has no such revision.
+     */
+    static Object[] read(SQLiteDatabase db, long noteId, long revision) {
+        String[] args = new String[] { Long.toString(noteId), Long.toString(revision) };
+        Object[] row;
+        long keyframe;
+        Cursor c = db.rawQuery(READ_REVISION_SQL, args);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            row = new Object[] {
+                    c.getLong(0), noteId, revision, c.isNull(1) ? null : c.getLong(1), null };
+            keyframe = c.getLong(2);
+        } finally {
+            c.close();
+        }
+
+        c = new NoteCompression.DecompressingCursor(db.rawQuery(READ_CHAIN_SQL, new String[] {
+                Long.toString(noteId), Long.toString(keyframe), Long.toString(revision) }),
+                CHAIN_DATA_INDEX);
+        try {
+            // The chain is incomplete if the note was deleted while it was being read.
+            if (c.getCount() != revision - keyframe + 1) {
+                return null;
+            }
+
+            String text = null;
+            while (c.moveToNext()) {
+                String data = c.getString(CHAIN_DATA_INDEX);
+                text = c.getPosition() == 0
+                        ? data : apply(text, c.getInt(0), c.getInt(1), data);
+            }
+            row[row.length - 1] = text;
+            return row;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns a cursor over a revision's row, with the columns of a projection, or all of the
+     * columns if the projection is null.
+     *
+     * @param row The row, or null for an empty cursor.
+     * @throws IllegalArgumentException if the projection has a column that isn't in
+     * {@link #COLUMNS}.
+     */
+    static MatrixCursor toCursor(Object[] row, String[] projection) {
+        String[] columns = projection != null ? projection : COLUMNS;
+        int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = Arrays.asList(COLUMNS).indexOf(columns[i]);
+            if (indexes[i] < 0) {
+                throw new IllegalArgumentException("Invalid column " + columns[i]);
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        if (row != null) {
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = row[indexes[i]];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+}
@@ -25,9 +25,12 @@ import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -35,6 +38,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
@@ -42,7 +46,6 @@ import android.widget.TextView;
 import android.text.format.DateFormat;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
-import android.content.ContentValues;
 import android.widget.SearchView;
 import java.util.ArrayList;
 import android.graphics.Paint;
@@ -66,25 +69,38 @@ public class NotesList extends ListActivity {
     private static final String TAG = "NotesList";
 
     // 需要从数据库查询的列
-    private static final String[] PROJECTION = new String[] {
+    static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID,                       // 0
             NotePad.Notes.COLUMN_NAME_TITLE,         // 1
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2
             NotePad.Notes.COLUMN_NAME_CATEGORY,      // 3 —— 分类
             NotePad.Notes.COLUMN_NAME_IS_TODO,       // 4 —— 是否待办
-            NotePad.Notes.COLUMN_NAME_IS_DONE        // 5 —— 是否已完成
+            NotePad.Notes.COLUMN_NAME_IS_DONE,       // 5 —— 是否已完成
+            NotePad.Notes.COLUMN_NAME_PREVIEW        // 6 —— 正文预览（provider 写入时生成，不用读正文）
     };
 
     private SimpleCursorAdapter mAdapter;      // 统一保存适配器
-    private String mCurrentCategoryFilter;     // 当前正在使用的分类过滤（null 表示全部）
+    private ContentObserver mObserver;         // 监听笔记变化，刷新列表
+    private Long mCurrentCategoryFilter;       // 当前正在使用的分类过滤（分类的 _id，null 表示全部）
     private String mCurrentQuery = null;       // 当前的搜索关键字，null 表示不搜索
 
     // 待办筛选：0=全部，1=只看待办(未完成)，2=只看已完成
-    private static final int TODO_FILTER_ALL = 0;
-    private static final int TODO_FILTER_ONLY_TODO = 1;
-    private static final int TODO_FILTER_ONLY_DONE = 2;
+    static final int TODO_FILTER_ALL = 0;
+    static final int TODO_FILTER_ONLY_TODO = 1;
+    static final int TODO_FILTER_ONLY_DONE = 2;
     private int mCurrentTodoFilter = TODO_FILTER_ALL;
 
+    // 每页加载的笔记条数
+    private static final int PAGE_SIZE = 50;
+
+    // 已经加载到列表里的行，按页追加；适配器通过 NotesListCursor 直接读取
+    private final ArrayList<Object[]> mRows = new ArrayList<>();
+    private String mSelection;                 // 当前列表使用的查询条件
+    private String[] mSelectionArgs;           // 查询条件的参数
+    private boolean mHasMorePages;             // 是否还有下一页
+
+    /** _id 列的下标 */
+    private static final int COLUMN_INDEX_ID = 0;
     /** 标题列的下标 */
     private static final int COLUMN_INDEX_TITLE = 1;
     /** 修改时间列的下标 */
@@ -95,6 +111,8 @@ public class NotesList extends ListActivity {
     private static final int COLUMN_INDEX_IS_TODO = 4;
     /** 是否完成列的下标 */
     private static final int COLUMN_INDEX_IS_DONE = 5;
+    /** 正文预览列的下标 */
+    private static final int COLUMN_INDEX_PREVIEW = 6;
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -131,18 +149,6 @@ public class NotesList extends ListActivity {
         int padding = (int) (getResources().getDisplayMetrics().density * 8); // 8dp
         listView.setPadding(0, padding, 0, padding);
         listView.setClipToPadding(false);
-        /* Performs a managed query. The Activity handles closing and requerying the cursor
-         * when needed.
-         *
-         * Please see the introductory note about performing provider operations on the UI thread.
-         */
-        Cursor cursor = managedQuery(
-            getIntent().getData(),            // Use the default content URI for the provider.
-            PROJECTION,                       // Return the note ID and title for each note.
-            null,                             // No where clause, return all records.
-            null,                             // No where clause, therefore no where column values.
-            NotePad.Notes.DEFAULT_SORT_ORDER  // Use the default sort order.
-        );
 
         /*
          * The following two arrays create a "map" between columns in the cursor and view IDs
@@ -153,24 +159,28 @@ public class NotesList extends ListActivity {
          */
 
         // The names of the cursor columns to display in the view, initialized to the title column
-        // Cursor 中要拿来展示的两列：标题 + 修改时间
+        // Cursor 中要拿来展示的三列：标题 + 修改时间 + 正文预览
         String[] dataColumns = {
                 NotePad.Notes.COLUMN_NAME_TITLE,
-                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_PREVIEW
         };
 
-// 显示这两列的控件 id：标题 -> text1，时间 -> text2
+// 显示这三列的控件 id：标题 -> text1，时间 -> text2，预览 -> preview
         int[] viewIDs = {
                 android.R.id.text1,
-                android.R.id.text2
+                android.R.id.text2,
+                R.id.preview
         };
 
+        // 数据由 loadNotes() 分页加载后交给适配器，这里先不给 cursor，也不让适配器自己重新查询
         mAdapter = new SimpleCursorAdapter(
                 this,
                 R.layout.noteslist_item,
-                cursor,
+                null,
                 dataColumns,
-                viewIDs
+                viewIDs,
+                0
         );
         mAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
             @Override
@@ -218,6 +228,16 @@ public class NotesList extends ListActivity {
                     return true;
                 }
 
+                // 处理正文预览，空笔记不占位置
+                if (columnIndex == COLUMN_INDEX_PREVIEW) {
+                    String preview = cursor.getString(COLUMN_INDEX_PREVIEW);
+                    TextView tv = (TextView) view;
+                    tv.setText(preview);
+                    tv.setVisibility(preview == null || preview.length() == 0
+                            ? View.GONE : View.VISIBLE);
+                    return true;
+                }
+
                 // 其它列走默认逻辑
                 return false;
             }
@@ -225,6 +245,52 @@ public class NotesList extends ListActivity {
 
         // Sets the ListView's adapter to be the cursor adapter that was just created.
         setListAdapter(mAdapter);
+
+        // 快滚到已加载部分的末尾时，接着加载下一页
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (mHasMorePages
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        // 列表里的行是复制出来的，数据变化时需要自己刷新。provider 对每条变化的笔记单独通知，
+        // 这时只重新查询这一行；通知的是整个笔记 URI（变化的笔记太多），或者系统版本太老拿不到 URI 时，
+        // 才从头重新加载（保留已经加载的行数）
+        mObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                loadNotes(mRows.size());
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                long noteId = parseNoteId(uri);
+                if (noteId >= 0 && mCurrentQuery == null) {
+                    patchRow(noteId);
+                } else {
+                    loadNotes(mRows.size());
+                }
+            }
+        };
+        getContentResolver().registerContentObserver(NotePad.Notes.CONTENT_URI, true, mObserver);
+
+        // 加载第一页
+        applyFilters(null, null);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        getContentResolver().unregisterContentObserver(mObserver);
     }
 
     /**
@@ -502,70 +568,211 @@ public class NotesList extends ListActivity {
      * category == null 表示全部，query == null 或 "" 表示不按关键字过滤，
      * mCurrentTodoFilter 决定是否只看待办/已完成。
      */
-    private void applyFilters(String category, String query) {
+    private void applyFilters(Long category, String query) {
         mCurrentCategoryFilter = category;
         mCurrentQuery = (query != null && query.trim().length() > 0) ? query.trim() : null;
 
-        String selection = null;
-        String[] selectionArgs = null;
-
-        ArrayList<String> parts = new ArrayList<>();
         ArrayList<String> args = new ArrayList<>();
+        mSelection = buildSelection(mCurrentCategoryFilter, mCurrentTodoFilter, args);
+        mSelectionArgs = mSelection != null ? args.toArray(new String[0]) : null;
 
-        // 分类
-        if (mCurrentCategoryFilter != null) {
-            parts.add(NotePad.Notes.COLUMN_NAME_CATEGORY + "=?");
-            args.add(mCurrentCategoryFilter);
-        }
+        // 筛选条件变了，从第一页重新加载
+        loadNotes(0);
+    }
+
+    /**
+     * 按当前条件从头重新加载列表，一直加载到至少 minRows 行（或者没有更多数据）为止，
+     * 这样数据变化后刷新时，已经滚动到的位置不会丢。
+     *
+     * 搜索结果按相关度排序，没法按修改时间分页，所以一次全部加载。
+     */
+    private void loadNotes(int minRows) {
+        mRows.clear();
 
-        // 搜索关键字（标题 + 正文）
         if (mCurrentQuery != null) {
-            parts.add("(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR "
-                    + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?)");
-            String like = "%" + mCurrentQuery + "%";
-            args.add(like);
-            args.add(like);
+            // 搜索关键字（标题 + 正文）交给 provider 的全文索引，结果按相关度排序
+            Uri uri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, mCurrentQuery)
+                    .build();
+            Cursor cursor = getContentResolver().query(uri, PROJECTION, mSelection,
+                    mSelectionArgs, null);
+            if (cursor != null) {
+                try {
+                    NotesListCursor.appendRows(cursor, mRows);
+                } finally {
+                    cursor.close();
+                }
+            }
+            mHasMorePages = false;
+        } else {
+            mHasMorePages = true;
+            do {
+                loadPage();
+            } while (mHasMorePages && mRows.size() < minRows);
+        }
+
+        mAdapter.changeCursor(new NotesListCursor(PROJECTION, mRows));
+    }
+
+    /**
+     * 加载下一页并追加到列表末尾
+     */
+    private void loadNextPage() {
+        loadPage();
+        mAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * 从最后一行之后取一页笔记追加到 mRows。用最后一行的（修改时间, _id）定位，而不是 OFFSET，
+     * 所以越往后翻也不会越慢。取到的行数不满一页，说明已经到底。
+     */
+    private void loadPage() {
+        Uri.Builder builder = getIntent().getData().buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                        Integer.toString(PAGE_SIZE));
+        if (!mRows.isEmpty()) {
+            Object[] last = mRows.get(mRows.size() - 1);
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_MODIFIED,
+                    String.valueOf(last[COLUMN_INDEX_MODIFICATION_DATE]));
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID,
+                    String.valueOf(last[COLUMN_INDEX_ID]));
+        }
+
+        Cursor cursor = getContentResolver().query(builder.build(), PROJECTION, mSelection,
+                mSelectionArgs, null);
+        if (cursor == null) {
+            mHasMorePages = false;
+            return;
+        }
+        try {
+            mHasMorePages = NotesListCursor.appendRows(cursor, mRows) == PAGE_SIZE;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 只重新查询变化的这一条笔记，在 mRows 里替换、移动或去掉它，不重新加载整个列表。
+     * 笔记被删除或者不再符合当前筛选条件时从列表中去掉；修改时间变了就移动到新的排序位置。
+     * 搜索结果按相关度排序，位置算不出来，所以搜索时不走这里。
+     */
+    private void patchRow(long noteId) {
+        int index = indexOfRow(noteId);
+        if (index >= 0) {
+            mRows.remove(index);
+        }
+
+        ArrayList<Object[]> changed = new ArrayList<>(1);
+        Cursor cursor = getContentResolver().query(
+                ContentUris.withAppendedId(getIntent().getData(), noteId), PROJECTION,
+                mSelection, mSelectionArgs, null);
+        if (cursor != null) {
+            try {
+                NotesListCursor.appendRows(cursor, changed);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            Object[] row = changed.get(0);
+            int position = insertPosition(row);
+
+            // 排在已加载的最后一行之后、而且还有没加载的页时先不放进来，翻到那一页时会自然加载到
+            if (position < mRows.size() || !mHasMorePages) {
+                mRows.add(position, row);
+            }
+        }
+        mAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * 返回 mRows 中 _id 为 noteId 的行的位置，没有时返回 -1
+     */
+    private int indexOfRow(long noteId) {
+        for (int i = 0; i < mRows.size(); i++) {
+            if (longAt(mRows.get(i), COLUMN_INDEX_ID) == noteId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 按列表的排序（修改时间倒序，相同时 _id 倒序）二分查找 row 应该插入的位置
+     */
+    private int insertPosition(Object[] row) {
+        long modified = longAt(row, COLUMN_INDEX_MODIFICATION_DATE);
+        long id = longAt(row, COLUMN_INDEX_ID);
+        int low = 0;
+        int high = mRows.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Object[] other = mRows.get(mid);
+            long otherModified = longAt(other, COLUMN_INDEX_MODIFICATION_DATE);
+            if (otherModified > modified
+                    || (otherModified == modified && longAt(other, COLUMN_INDEX_ID) > id)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long longAt(Object[] row, int column) {
+        Object value = row[column];
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * 从单条笔记的 URI（.../notes/5）里取出笔记 id，不是单条笔记的 URI 时返回 -1
+     */
+    private static long parseNoteId(Uri uri) {
+        if (uri == null
+                || uri.getPathSegments().size() != NotePad.Notes.NOTE_ID_PATH_POSITION + 1) {
+            return -1;
+        }
+        String id = uri.getLastPathSegment();
+        return TextUtils.isDigitsOnly(id) ? Long.parseLong(id) : -1;
+    }
+
+    /**
+     * 根据分类和待办筛选拼出查询条件，参数依次追加到 args。没有任何筛选时返回 null。
+     * 分类按 _id 过滤，是带索引的整数比较。
+     * 包级可见，方便测试对每一种组合检查查询计划。
+     */
+    static String buildSelection(Long category, int todoFilter, ArrayList<String> args) {
+        ArrayList<String> parts = new ArrayList<>();
+
+        // 分类
+        if (category != null) {
+            parts.add(NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "=?");
+            args.add(Long.toString(category));
         }
 
         // 待办状态
-        if (mCurrentTodoFilter == TODO_FILTER_ONLY_TODO) {
+        if (todoFilter == TODO_FILTER_ONLY_TODO) {
             parts.add(NotePad.Notes.COLUMN_NAME_IS_TODO + "=?");
             parts.add(NotePad.Notes.COLUMN_NAME_IS_DONE + "=?");
             args.add("1");
             args.add("0");
-        } else if (mCurrentTodoFilter == TODO_FILTER_ONLY_DONE) {
+        } else if (todoFilter == TODO_FILTER_ONLY_DONE) {
             parts.add(NotePad.Notes.COLUMN_NAME_IS_TODO + "=?");
             parts.add(NotePad.Notes.COLUMN_NAME_IS_DONE + "=?");
             args.add("1");
             args.add("1");
         }
 
-        if (!parts.isEmpty()) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < parts.size(); i++) {
-                if (i > 0) sb.append(" AND ");
-                sb.append(parts.get(i));
-            }
-            selection = sb.toString();
-            selectionArgs = args.toArray(new String[0]);
+        if (parts.isEmpty()) {
+            return null;
         }
-
-        Cursor cursor = managedQuery(
-                getIntent().getData(),
-                PROJECTION,
-                selection,
-                selectionArgs,
-                NotePad.Notes.DEFAULT_SORT_ORDER
-        );
-
-        if (mAdapter != null) {
-            mAdapter.changeCursor(cursor);
-        } else {
-            mAdapter = new SimpleCursorAdapter(this, R.layout.noteslist_item, cursor,
-                    new String[]{NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE},
-                    new int[]{android.R.id.text1, android.R.id.text2});
-            setListAdapter(mAdapter);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) sb.append(" AND ");
+            sb.append(parts.get(i));
         }
+        return sb.toString();
     }
 
     /**
@@ -585,29 +792,48 @@ public class NotesList extends ListActivity {
     /**
      * 只改变分类筛选，然后统一走 applyFilters，保证和搜索/待办逻辑一致
      */
-    void applyCategoryFilter(String category) {
+    void applyCategoryFilter(Long category) {
         mCurrentCategoryFilter = category;
         applyFilters(mCurrentCategoryFilter, mCurrentQuery);
     }
 
     /**
-     * 弹出“按分类查看”的对话框
+     * 弹出“按分类查看”的对话框。分类和每个分类下的笔记数都从 provider 的分类表读取，
+     * 笔记数由数据库触发器维护，不用现数。
      */
     private void showFilterDialog() {
+        final ArrayList<Long> ids = new ArrayList<>();
+        ArrayList<String> items = new ArrayList<>();
+
+        // 第一项是“全部”
+        ids.add(null);
+        items.add(getString(R.string.category_all));
+
+        Cursor cursor = getContentResolver().query(NotePad.Categories.CONTENT_URI,
+                new String[] {
+                        NotePad.Categories._ID,
+                        NotePad.Categories.COLUMN_NAME_NAME,
+                        NotePad.Categories.COLUMN_NAME_NOTE_COUNT
+                }, null, null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                    items.add(getString(R.string.category_with_count,
+                            cursor.getString(1), cursor.getInt(2)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
         new AlertDialog.Builder(this)
                 .setTitle(R.string.menu_filter_category)
-                .setItems(R.array.note_categories_filter, new DialogInterface.OnClickListener() {
+                .setItems(items.toArray(new String[0]), new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        String[] cats = getResources().getStringArray(R.array.note_categories_filter);
-                        if (which == 0) {
-                            // 选择“全部”
-                            applyCategoryFilter(null);
-                        } else {
-                            // 按选择的分类过滤
-                            String category = cats[which];
-                            applyCategoryFilter(category);
-                        }
+                        // 选择“全部”时 id 为 null
+                        applyCategoryFilter(ids.get(which));
                     }
                 })
                 .show();
@@ -626,22 +852,11 @@ public class NotesList extends ListActivity {
                         String[] categories = getResources().getStringArray(R.array.note_categories);
                         String category = categories[which];
 
-                        // 要更新的字段
-                        ContentValues values = new ContentValues();
-                        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, category);
-
-                        // 写回数据库
-                        getContentResolver().update(noteUri, values, null, null);
-
-                        // 重新查询，刷新列表
-                        Cursor cursor = managedQuery(
-                                getIntent().getData(),
-                                PROJECTION,
-                                null,
-                                null,
-                                NotePad.Notes.DEFAULT_SORT_ORDER);
-
-                        ((SimpleCursorAdapter) getListAdapter()).changeCursor(cursor);
+                        // 交给 provider 一次写入，列表由 mObserver 收到变化后刷新
+                        Bundle extras = new Bundle();
+                        extras.putString(NotePad.Notes.COLUMN_NAME_CATEGORY, category);
+                        getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                                NotePad.Notes.METHOD_SET_CATEGORY, noteUri.toString(), extras);
                     }
                 })
                 .show();
@@ -691,35 +906,16 @@ public class NotesList extends ListActivity {
             return true;
 
         } else if (id == R.id.context_toggle_todo) {    // 设为/取消待办
-            Cursor c = (Cursor) getListAdapter().getItem(info.position);
-            if (c != null) {
-                int isTodo = c.getInt(COLUMN_INDEX_IS_TODO);
-                ContentValues values = new ContentValues();
-                if (isTodo == 1) {
-                    // 取消待办，同时清空完成状态
-                    values.put(NotePad.Notes.COLUMN_NAME_IS_TODO, 0);
-                    values.put(NotePad.Notes.COLUMN_NAME_IS_DONE, 0);
-                } else {
-                    // 设为待办，默认未完成
-                    values.put(NotePad.Notes.COLUMN_NAME_IS_TODO, 1);
-                    values.put(NotePad.Notes.COLUMN_NAME_IS_DONE, 0);
-                }
-                getContentResolver().update(noteUri, values, null, null);
-                applyFilters(mCurrentCategoryFilter, mCurrentQuery);
-            }
+            // 由 provider 在一条语句里取反，不必先读列表里可能过期的状态；
+            // 取消待办时同时清空完成状态。列表由 mObserver 收到变化后刷新
+            getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                    NotePad.Notes.METHOD_TOGGLE_TODO, noteUri.toString(), null);
             return true;
 
         } else if (id == R.id.context_toggle_done) {    // 标记完成/未完成
-            Cursor c = (Cursor) getListAdapter().getItem(info.position);
-            if (c != null) {
-                int isDone = c.getInt(COLUMN_INDEX_IS_DONE);
-                ContentValues values = new ContentValues();
-                // 只要点了这个按钮，一定是待办
-                values.put(NotePad.Notes.COLUMN_NAME_IS_TODO, 1);
-                values.put(NotePad.Notes.COLUMN_NAME_IS_DONE, isDone == 1 ? 0 : 1);
-                getContentResolver().update(noteUri, values, null, null);
-                applyFilters(mCurrentCategoryFilter, mCurrentQuery);
-            }
+            // 只要点了这个按钮，一定是待办。列表由 mObserver 收到变化后刷新
+            getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                    NotePad.Notes.METHOD_TOGGLE_DONE, noteUri.toString(), null);
             return true;
 
         } else if (id == R.id.context_delete) {         // 删除
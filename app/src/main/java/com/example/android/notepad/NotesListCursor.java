@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+
+/**
+ * A cursor over rows that NotesList has copied out of the provider. NotesList loads the notes
+ * one page at a time and appends each page to the same list of rows, so the cursor reads the
+ * list it was given instead of keeping its own copy. Rows added to the list after the cursor was
+ * created are visible through it once the adapter is told that the data changed.
+ */
+class NotesListCursor extends AbstractCursor {
+
+    // The names of the columns, in the order of the values in each row.
+    private final String[] mColumnNames;
+
+    // The rows, each an array of column values. Values are Long, Double, String, byte[] or null.
+    private final ArrayList<Object[]> mRows;
+
+    NotesListCursor(String[] columnNames, ArrayList<Object[]> rows) {
+        mColumnNames = columnNames;
+        mRows = rows;
+    }
+
+    /**
+     * Copies every row of a provider cursor to the end of a list of rows, keeping the type of
+     * each value.
+     *
+     * @return The number of rows copied.
+     */
+    static int appendRows(Cursor cursor, ArrayList<Object[]> rows) {
+        int columnCount = cursor.getColumnCount();
+        int count = 0;
+        while (cursor.moveToNext()) {
+            Object[] row = new Object[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = cursor.getBlob(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[i] = cursor.getString(i);
+                        break;
+                    default:
+                        row[i] = null;
+                        break;
+                }
+            }
+            rows.add(row);
+            count++;
+        }
+        return count;
+    }
+
+    // Returns the value of a column in the current row.
+    private Object get(int column) {
+        if (column < 0 || column >= mColumnNames.length) {
+            throw new IllegalArgumentException("Invalid column " + column);
+        }
+        checkPosition();
+        return mRows.get(getPosition())[column];
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = get(column);
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = get(column);
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.parseLong(value.toString());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = get(column);
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return (byte[]) get(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = get(column);
+        if (value == null) {
+            return Cursor.FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return Cursor.FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return Cursor.FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return Cursor.FIELD_TYPE_BLOB;
+        }
+        return Cursor.FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return get(column) == null;
+    }
+}
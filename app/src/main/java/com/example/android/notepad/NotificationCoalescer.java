@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.net.Uri;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Merges the change notifications that NotePadProvider sends during a burst of writes.
+ *
+ * The first notification after a quiet period starts a window of a fixed length. Notifications
+ * for the same URI within the window are merged, and each distinct URI is delivered once when the
+ * window ends. The window isn't extended by later notifications, so observers hear about a change
+ * no later than one window after it was made.
+ *
+ * If more than {@link #MAX_PENDING_URIS} distinct URIs are waiting, they are replaced by a single
+ * notification for a URI that covers all of them. A change notified on a URI also reaches the
+ * observers registered on its descendants, so no observer misses a change.
+ */
+final class NotificationCoalescer {
+
+    /**
+     * Receives the notifications once they have been merged.
+     */
+    interface Sink {
+        void notifyChange(Uri uri);
+    }
+
+    // The number of distinct URIs that are delivered one by one at the end of a window.
+    static final int MAX_PENDING_URIS = 32;
+
+    private final Handler mHandler;
+    private final long mDelayMillis;
+    private final Uri mCollapsedUri;
+    private final Sink mSink;
+
+    // The URIs waiting for the end of the window, in the order they were first notified.
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<Uri>();
+
+    // True if the waiting URIs have been replaced by mCollapsedUri.
+    private boolean mCollapsed;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param handler The handler that ends each window.
+     * @param delayMillis The length of the window. If it is 0 or less, every notification is
+     * delivered right away.
+     * @param collapsedUri A URI that covers every URI notified through this coalescer.
+     * @param sink Receives the merged notifications.
+     */
+    NotificationCoalescer(Handler handler, long delayMillis, Uri collapsedUri, Sink sink) {
+        mHandler = handler;
+        mDelayMillis = delayMillis;
+        mCollapsedUri = collapsedUri;
+        mSink = sink;
+    }
+
+    /**
+     * Notifies observers of a change at the URI, at the end of the current window.
+     */
+    void notifyChange(Uri uri) {
+        if (mDelayMillis <= 0) {
+            mSink.notifyChange(uri);
+            return;
+        }
+
+        synchronized (this) {
+            boolean windowOpen = mCollapsed || !mPending.isEmpty();
+            if (!mCollapsed) {
+                mPending.add(uri);
+                if (mPending.size() > MAX_PENDING_URIS) {
+                    mPending.clear();
+                    mCollapsed = true;
+                }
+            }
+            if (windowOpen) {
+                return;
+            }
+        }
+        mHandler.postDelayed(mFlush, mDelayMillis);
+    }
+
+    /**
+     * Delivers the notifications that are waiting, without waiting for the window to end.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mFlush);
+
+        ArrayList<Uri> uris;
+        synchronized (this) {
+            if (mCollapsed) {
+                uris = new ArrayList<Uri>(1);
+                uris.add(mCollapsedUri);
+            } else {
+                uris = new ArrayList<Uri>(mPending);
+            }
+            mPending.clear();
+            mCollapsed = false;
+        }
+
+        for (Uri uri : uris) {
+            mSink.notifyChange(uri);
+        }
+    }
+}
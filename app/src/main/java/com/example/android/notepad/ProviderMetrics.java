@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.os.Bundle;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts the calls that NotePadProvider answers, so that its behavior under load from other
+ * apps can be seen. Each operation on each URI pattern, such as a query of "notes/#", has a
+ * histogram of its latency and counts of the rows and bytes it returned or changed. Queries
+ * slower than a threshold are also kept, with their selection, row count and query plan, in a
+ * ring buffer of the most recent ones.
+ *
+ * The metrics are reported through {@link #toBundle()} and {@link #dump(PrintWriter)}. Calls
+ * that throw aren't counted.
+ */
+final class ProviderMetrics {
+
+    /**
+     * The upper bound of the first latency bucket, in microseconds. Each bucket after it is
+     * twice as wide, and the last one has no upper bound.
+     */
+    static final long FIRST_BUCKET_MICROS = 100;
+
+    /**
+     * The number of latency buckets. The last bounded one ends at 1.6 seconds.
+     */
+    static final int BUCKET_COUNT = 16;
+
+    /**
+     * The counts of one operation on one URI pattern.
+     */
+    private static final class OperationStats {
+        long count;
+        long totalMicros;
+        long maxMicros;
+        long rows;
+        long bytes;
+        final long[] histogram = new long[BUCKET_COUNT];
+    }
+
+    /**
+     * A query that took longer than the threshold.
+     */
+    private static final class SlowQuery {
+        final long time;
+        final long micros;
+        final long rows;
+        final String uri;
+        final String selection;
+        final String plan;
+
+        SlowQuery(long time, long micros, long rows, String uri, String selection, String plan) {
+            this.time = time;
+            this.micros = micros;
+            this.rows = rows;
+            this.uri = uri;
+            this.selection = selection;
+            this.plan = plan;
+        }
+    }
+
+    // The counts of each operation, keyed by the operation and the URI pattern, in name order.
+    private final TreeMap<String, OperationStats> mOperations =
+            new TreeMap<String, OperationStats>();
+
+    // The latency above which a query is kept as slow, in microseconds.
+    private final long mSlowQueryMicros;
+
+    // The most recent slow queries. mNextSlowQuery is where the next one goes.
+    private final SlowQuery[] mSlowQueries;
+    private int mNextSlowQuery;
+    private long mSlowQueryCount;
+
+    /**
+     * @param slowQueryMillis The latency above which a query is kept as slow, in milliseconds.
+     * If it is negative, no query is kept.
+     * @param slowQueryLogSize The number of slow queries kept.
+     */
+    ProviderMetrics(long slowQueryMillis, int slowQueryLogSize) {
+        mSlowQueryMicros = slowQueryMillis >= 0 ? slowQueryMillis * 1000 : Long.MAX_VALUE;
+        mSlowQueries = new SlowQuery[Math.max(slowQueryLogSize, 0)];
+    }
+
+    /**
+     * Counts a call that started at the given {@link System#nanoTime()}.
+     *
+     * @param operation The name of the operation, such as "query".
+     * @param pattern The URI pattern that the call was made on.
+     * @param rows The number of rows that the call returned or changed.
+     * @return The latency of the call, in microseconds.
+     */
+    long record(String operation, String pattern, long startNanos, long rows) {
+        return record(operation, pattern, startNanos, rows, 0);
+    }
+
+    /**
+     * Counts the bytes of a stream, written from the given {@link System#nanoTime()} until now.
+     */
+    void recordStream(String pattern, long startNanos, long bytes) {
+        record("stream", pattern, startNanos, 0, bytes);
+    }
+
+    private long record(String operation, String pattern, long startNanos, long rows,
+            long bytes) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        int bucket = 0;
+        for (long bound = FIRST_BUCKET_MICROS; micros > bound && bucket < BUCKET_COUNT - 1;
+                bound *= 2) {
+            bucket++;
+        }
+
+        String key = operation + " " + pattern;
+        synchronized (this) {
+            OperationStats stats = mOperations.get(key);
+            if (stats == null) {
+                stats = new OperationStats();
+                mOperations.put(key, stats);
+            }
+            stats.count++;
+            stats.totalMicros += micros;
+            stats.maxMicros = Math.max(stats.maxMicros, micros);
+            stats.rows += rows;
+            stats.bytes += bytes;
+            stats.histogram[bucket]++;
+        }
+        return micros;
+    }
+
+    /**
+     * Returns true if a query that took the given number of microseconds is kept as slow. The
+     * caller then explains the query and passes it to {@link #recordSlowQuery}.
+     */
+    boolean isSlow(long micros) {
+        return micros >= mSlowQueryMicros && mSlowQueries.length > 0;
+    }
+
+    /**
+     * Keeps a slow query, replacing the oldest one kept if the ring buffer is full.
+     *
+     * @param rows The number of rows that the query returned.
+     * @param plan The query's plan, from EXPLAIN QUERY PLAN, or null if it isn't known.
+     */
+    synchronized void recordSlowQuery(long micros, long rows, String uri, String selection,
+            String plan) {
+        mSlowQueries[mNextSlowQuery] =
+                new SlowQuery(System.currentTimeMillis(), micros, rows, uri, selection, plan);
+        mNextSlowQuery = (mNextSlowQuery + 1) % mSlowQueries.length;
+        mSlowQueryCount++;
+    }
+
+    /**
+     * Returns the metrics in the keys described by {@link NotePad.Notes#METHOD_GET_STATS}.
+     */
+    synchronized Bundle toBundle() {
+        Bundle operations = new Bundle();
+        for (Map.Entry<String, OperationStats> entry : mOperations.entrySet()) {
+            OperationStats stats = entry.getValue();
+            Bundle bundle = new Bundle();
+            bundle.putLong(NotePad.Notes.KEY_STATS_COUNT, stats.count);
+            bundle.putLong(NotePad.Notes.KEY_STATS_TOTAL_MICROS, stats.totalMicros);
+            bundle.putLong(NotePad.Notes.KEY_STATS_MAX_MICROS, stats.maxMicros);
+            bundle.putLong(NotePad.Notes.KEY_STATS_ROWS, stats.rows);
+            bundle.putLong(NotePad.Notes.KEY_STATS_BYTES, stats.bytes);
+            bundle.putLongArray(NotePad.Notes.KEY_STATS_HISTOGRAM, stats.histogram.clone());
+            operations.putBundle(entry.getKey(), bundle);
+        }
+
+        ArrayList<Bundle> slowQueries = new ArrayList<Bundle>();
+        for (SlowQuery query : slowQueriesOldestFirst()) {
+            Bundle bundle = new Bundle();
+            bundle.putLong(NotePad.Notes.KEY_STATS_TIME, query.time);
+            bundle.putLong(NotePad.Notes.KEY_STATS_TOTAL_MICROS, query.micros);
+            bundle.putLong(NotePad.Notes.KEY_STATS_ROWS, query.rows);
+            bundle.putString(NotePad.Notes.KEY_STATS_URI, query.uri);
+            bundle.putString(NotePad.Notes.KEY_STATS_SELECTION, query.selection);
+            bundle.putString(NotePad.Notes.KEY_STATS_PLAN, query.plan);
+            slowQueries.add(bundle);
+        }
+
+        Bundle result = new Bundle();
+        result.putBundle(NotePad.Notes.KEY_STATS_OPERATIONS, operations);
+        result.putLongArray(NotePad.Notes.KEY_STATS_BUCKET_BOUNDS, bucketBounds());
+        result.putParcelableArrayList(NotePad.Notes.KEY_STATS_SLOW_QUERIES, slowQueries);
+        result.putLong(NotePad.Notes.KEY_STATS_SLOW_QUERY_COUNT, mSlowQueryCount);
+        return result;
+    }
+
+    /**
+     * Writes the metrics as text, one operation per line, followed by the slow queries.
+     */
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Operations (count, mean/max latency, rows, bytes, latency histogram):");
+        long[] bounds = bucketBounds();
+        for (Map.Entry<String, OperationStats> entry : mOperations.entrySet()) {
+            OperationStats stats = entry.getValue();
+            writer.print("  " + entry.getKey() + ": " + stats.count + " calls, "
+                    + stats.totalMicros / stats.count + "/" + stats.maxMicros + "us, "
+                    + stats.rows + " rows, " + stats.bytes + " bytes,");
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                if (stats.histogram[i] > 0) {
+                    writer.print((i < bounds.length ? " <=" + bounds[i] : " >" + bounds[i - 1])
+                            + "us:" + stats.histogram[i]);
+                }
+            }
+            writer.println();
+        }
+
+        writer.println("Slow queries (" + mSlowQueryCount + " in all, threshold "
+                + (mSlowQueryMicros == Long.MAX_VALUE ? "off" : mSlowQueryMicros + "us") + "):");
+        for (SlowQuery query : slowQueriesOldestFirst()) {
+            writer.println("  " + query.time + " " + query.micros + "us " + query.rows + " rows "
+                    + query.uri
+                    + " selection=" + query.selection);
+            if (query.plan != null) {
+                for (String step : query.plan.split("\n")) {
+                    writer.println("    " + step);
+                }
+            }
+        }
+    }
+
+    // Returns the slow queries kept, oldest first. The caller holds the lock.
+    private ArrayList<SlowQuery> slowQueriesOldestFirst() {
+        ArrayList<SlowQuery> queries = new ArrayList<SlowQuery>(mSlowQueries.length);
+        for (int i = 0; i < mSlowQueries.length; i++) {
+            SlowQuery query = mSlowQueries[(mNextSlowQuery + i) % mSlowQueries.length];
+            if (query != null) {
+                queries.add(query);
+            }
+        }
+        return queries;
+    }
+
+    // Returns the upper bound of each latency bucket but the last, in microseconds.
+    private static long[] bucketBounds() {
+        long[] bounds = new long[BUCKET_COUNT - 1];
+        long bound = FIRST_BUCKET_MICROS;
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = bound;
+            bound *= 2;
+        }
+        return bounds;
+    }
+
+    /**
+     * An output stream that counts the bytes written through it, so that a stream's size can
+     * be recorded when it is done.
+     */
+    static final class CountingOutputStream extends FilterOutputStream {
+
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long count() {
+            return mCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+}
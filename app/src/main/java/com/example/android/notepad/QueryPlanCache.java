@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.text.TextUtils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the SQL that NotePadProvider built for recent query shapes, so that a query of the same
+ * shape doesn't run SQLiteQueryBuilder again. NotesList queries the search URI on every
+ * keystroke, and each of those queries differs from the last only in its arguments.
+ *
+ * A shape is everything that goes into the SQL text: the tables, the projection map and the
+ * WHERE clause chosen for the URI, and the caller's projection, selection, sort order and page
+ * size. Values taken from the URI, such as a note's ID or the search terms, are bound as
+ * arguments instead of being written into the SQL, so they don't change the shape. Since the
+ * SQL of a shape is always the same text, the database connection also finds the statement it
+ * compiled for it in its own statement cache.
+ *
+ * The least recently used shape is dropped when the cache is full.
+ */
+final class QueryPlanCache {
+
+    /**
+     * The shape of a query. Two queries with equal shapes are built into the same SQL.
+     */
+    static final class Key {
+        private final int mMatch;
+        private final String mTables;
+        private final String mWhere;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String mOrderBy;
+        private final String mLimit;
+
+        /**
+         * @param match The code that the provider's UriMatcher returned for the URI. It stands
+         * for the projection map, which depends on nothing else.
+         */
+        Key(int match, String tables, String where, String[] projection, String selection,
+                String orderBy, String limit) {
+            mMatch = match;
+            mTables = tables;
+            mWhere = where;
+            // Copied, since the caller may change its array after the query.
+            mProjection = projection != null ? projection.clone() : null;
+            mSelection = selection;
+            mOrderBy = orderBy;
+            mLimit = limit;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mMatch == other.mMatch
+                    && TextUtils.equals(mTables, other.mTables)
+                    && TextUtils.equals(mWhere, other.mWhere)
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && TextUtils.equals(mSelection, other.mSelection)
+                    && TextUtils.equals(mOrderBy, other.mOrderBy)
+                    && TextUtils.equals(mLimit, other.mLimit);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] {
+                    mMatch, mTables, mWhere, Arrays.hashCode(mProjection), mSelection, mOrderBy,
+                    mLimit });
+        }
+    }
+
+    // The SQL of each shape, in order of last use.
+    private final LinkedHashMap<Key, String> mPlans;
+
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @param maxSize The number of shapes to keep. If it is 0 or less, nothing is cached.
+     */
+    QueryPlanCache(final int maxSize) {
+        mPlans = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the SQL built for a shape, or null if it isn't cached. Counts a hit or a miss.
+     */
+    synchronized String get(Key key) {
+        String sql = mPlans.get(key);
+        if (sql != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return sql;
+    }
+
+    /**
+     * Caches the SQL built for a shape.
+     */
+    synchronized void put(Key key, String sql) {
+        mPlans.put(key, sql);
+    }
+
+    synchronized long hits() {
+        return mHits;
+    }
+
+    synchronized long misses() {
+        return mMisses;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that passes on only a range of the bytes written to it. Bytes before the
+ * start of the range are dropped, and so are bytes after its end. A writer that can skip input
+ * cheaply asks {@link #bytesToSkip()} how much it can skip and {@link #bytesWanted()} how much
+ * it needs after that, and reports what it skipped with {@link #skipped(long)}. A writer checks
+ * {@link #isFull()} to stop early.
+ */
+final class RangeOutputStream extends FilterOutputStream {
+
+    // The number of bytes still to drop before the range starts.
+    private long mSkip;
+
+    // The number of bytes still to pass on, or a negative number for no limit.
+    private long mRemaining;
+
+    /**
+     * @param start The offset of the first byte to pass on.
+     * @param length The number of bytes to pass on, or a negative number for all of them.
+     */
+    RangeOutputStream(OutputStream out, long start, long length) {
+        super(out);
+        mSkip = Math.max(start, 0);
+        mRemaining = length;
+    }
+
+    /**
+     * Returns the number of bytes that would be dropped if they were written now.
+     */
+    long bytesToSkip() {
+        return mSkip;
+    }
+
+    /**
+     * Returns the number of bytes still to pass on once the skip is over, or a negative number
+     * for no limit.
+     */
+    long bytesWanted() {
+        return mRemaining;
+    }
+
+    /**
+     * Records that the writer skipped bytes instead of writing them.
+     */
+    void skipped(long count) {
+        mSkip -= Math.min(count, mSkip);
+    }
+
+    /**
+     * Returns true if the end of the range has been written.
+     */
+    boolean isFull() {
+        return mRemaining == 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int skip = (int) Math.min(mSkip, len);
+        mSkip -= skip;
+        off += skip;
+        len -= skip;
+        if (mRemaining >= 0) {
+            len = (int) Math.min(mRemaining, len);
+            mRemaining -= len;
+        }
+        if (len > 0) {
+            out.write(b, off, len);
+        }
+    }
+}
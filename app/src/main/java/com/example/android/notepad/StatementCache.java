@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps compiled statements for the SQL that NotePadProvider runs most often, so that saving a
+ * note doesn't compile the same statement again on every call. The least recently used
+ * statement is closed when the cache is full.
+ *
+ * A statement is taken out of the cache while a thread uses it and put back afterwards, so two
+ * threads never bind arguments to the same statement. No lock is held while a statement runs,
+ * since running it may wait for another thread's transaction to end. If a second thread needs
+ * the same SQL while the first is using it, it compiles a statement of its own, and whichever of
+ * the two is put back last is closed.
+ */
+final class StatementCache {
+
+    // The database the cached statements were compiled against.
+    private SQLiteDatabase mDatabase;
+
+    // The statements that aren't in use, keyed by their SQL, in order of last use.
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+
+    /**
+     * @param maxSize The number of statements to keep.
+     */
+    StatementCache(final int maxSize) {
+        mStatements = new LinkedHashMap<String, SQLiteStatement>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() > maxSize) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns a statement for the given SQL, compiling it if the cache doesn't hold one. The
+     * caller must pass it to {@link #release} when done with it.
+     */
+    SQLiteStatement acquire(SQLiteDatabase db, String sql) {
+        synchronized (this) {
+            if (db != mDatabase) {
+                clear();
+                mDatabase = db;
+            }
+            SQLiteStatement statement = mStatements.remove(sql);
+            if (statement != null) {
+                return statement;
+            }
+        }
+        return db.compileStatement(sql);
+    }
+
+    /**
+     * Puts a statement returned by {@link #acquire} back into the cache, or closes it if the
+     * cache already holds one for the same SQL or the database has changed since.
+     */
+    void release(SQLiteDatabase db, String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+        synchronized (this) {
+            if (db == mDatabase && !mStatements.containsKey(sql)) {
+                mStatements.put(sql, statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    /**
+     * Closes every statement in the cache.
+     */
+    synchronized void clear() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+}
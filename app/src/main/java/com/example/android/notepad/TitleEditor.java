@@ -23,6 +23,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.EditText;
+import android.widget.Toast;
 
 /**
  * This Activity allows the user to edit a note's title. It displays a floating window
@@ -44,11 +45,15 @@ public class TitleEditor extends Activity {
     private static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_VERSION, // 2
     };
 
     // The position of the title column in a Cursor returned by the provider.
     private static final int COLUMN_INDEX_TITLE = 1;
 
+    // The position of the version column in a Cursor returned by the provider.
+    private static final int COLUMN_INDEX_VERSION = 2;
+
     // A Cursor object that will contain the results of querying the provider for a note.
     private Cursor mCursor;
 
@@ -58,6 +63,11 @@ public class TitleEditor extends Activity {
     // A URI object for the note whose title is being edited.
     private Uri mUri;
 
+    // The title and the version of the note when it was last read or written. The version is 0
+    // if it isn't known.
+    private String mOriginalTitle;
+    private long mVersion;
+
     /**
      * This method is called by Android when the Activity is first started. From the incoming
      * Intent, it determines what kind of editing is desired, and then does it.
@@ -113,7 +123,9 @@ public class TitleEditor extends Activity {
             mCursor.moveToFirst();
 
             // Displays the current title text in the EditText object.
-            mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+            mOriginalTitle = mCursor.getString(COLUMN_INDEX_TITLE);
+            mVersion = mCursor.getLong(COLUMN_INDEX_VERSION);
+            mText.setText(mOriginalTitle);
         }
     }
 
@@ -126,7 +138,9 @@ public class TitleEditor extends Activity {
      * to it to complete their work. The act of going away should save everything and leave the
      * Activity in a state where Android can destroy it if necessary.
      *
-     * Updates the note with the text currently in the text box.
+     * Updates the note with the text currently in the text box, if it is a new title. The update
+     * is made only if no other writer changed the note since it was read; if one did, the new
+     * title is written anyway, since it is what the user typed, and the user is told.
      */
     @Override
     protected void onPause() {
@@ -137,11 +151,24 @@ public class TitleEditor extends Activity {
 
         if (mCursor != null) {
 
+            // Leaves the note as it is if the title wasn't changed, so that an unchanged title
+            // read earlier can't replace one written since.
+            String title = mText.getText().toString();
+            if (title.equals(mOriginalTitle)) {
+                return;
+            }
+
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
 
             // In the values map, sets the title to the current contents of the edit box.
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, mText.getText().toString());
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+
+            // Makes the update conditional on the version that was read, if it is known.
+            Uri uri = mVersion == 0 ? mUri : mUri.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_EXPECTED_VERSION,
+                            Long.toString(mVersion))
+                    .build();
 
             /*
              * Updates the provider with the note's new title.
@@ -151,13 +178,24 @@ public class TitleEditor extends Activity {
              * local database, the block will be momentary, but in a real app you should use
              * android.content.AsyncQueryHandler or android.os.AsyncTask.
              */
-            getContentResolver().update(
-                mUri,    // The URI for the note to update.
+            int count = getContentResolver().update(
+                uri,     // The URI for the note to update, on the condition of its version.
                 values,  // The values map containing the columns to update and the values to use.
                 null,    // No selection criteria is used, so no "where" columns are needed.
                 null     // No "where" columns are used, so no "where" values are needed.
             );
 
+            if (count == 0 && mVersion != 0) {
+                // Another writer changed the note since it was read, so the title is written
+                // again unconditionally, and the user is told once it has been overwritten.
+                if (getContentResolver().update(mUri, values, null, null) == 1) {
+                    Toast.makeText(this, R.string.note_changed_elsewhere, Toast.LENGTH_LONG).show();
+                }
+            }
+
+            // After a conflict, the note's version is unknown until it is read again.
+            mOriginalTitle = title;
+            mVersion = count == 0 || mVersion == 0 ? 0 : mVersion + 1;
         }
     }
 